@@ -162,6 +162,9 @@ public class TagCloudView extends RelativeLayout {
 						  (int)	(tempTag.getColorG() * 255), 
 						  (int) (tempTag.getColorB() * 255));
 	    		mTextView.get(tempTag.getParamNo()).setTextColor(mergedColor);
+	    		//the replaced tag has a new url, so re-bind the click
+	    		mTextView.get(tempTag.getParamNo()).setOnClickListener(
+	    				OnTagClickListener(tempTag.getUrl()));
 	    		mTextView.get(tempTag.getParamNo()).bringToFront();
 	    	}
 			result=true;
@@ -303,12 +306,26 @@ public class TagCloudView extends RelativeLayout {
 		return tempTagList;
 	}
 	
+	//optional handler for clicks on tags, e.g. to show something inline
+	public interface TagClickListener {
+		//return true if the click was handled, false to open the tag url as usual
+		boolean onTagClick(String tagText, String url);
+	}
+	
+	public void setTagClickListener(TagClickListener listener){
+		tagClickListener = listener;
+	}
+	
 	//for handling the click on the tags
 	//onclick open the tag url in a new window. Back button will bring you back to TagCloud
 	View.OnClickListener OnTagClickListener(final String url){
 		return new View.OnClickListener(){
 			@Override
 			public void onClick(View v) {
+				//the text is read now, since Replace() may have changed it
+				if (tagClickListener != null && 
+						tagClickListener.onTagClick(((TextView) v).getText().toString(), url))
+					return;
 				//we now have url from main code
 				Uri uri = Uri.parse( urlMaker(url) );
 				//just open a new intent and set the content to search for the url
@@ -329,4 +346,5 @@ public class TagCloudView extends RelativeLayout {
 	private List<TextView> mTextView;
 	private List<RelativeLayout.LayoutParams> mParams;
 	private int shiftLeft;
+	private TagClickListener tagClickListener;
 }
@@ -0,0 +1,320 @@
+package com.tweetycloud;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import winterwell.jtwitter.AStream;
+import winterwell.jtwitter.Twitter.ITweet;
+import winterwell.jtwitter.TwitterEvent;
+
+import com.komodo.tagin.Tag;
+
+/*
+ Copyright (c) 2012 Shigeru Sasao
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ The Software shall be used for Good, not Evil.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+/**
+ * LiveWordCloud counts words from a stream of tweets over a moving time
+ * window, and works out what has to change in the word cloud. Counts are kept
+ * up to date as each tweet arrives (and as old tweets fall out of the window),
+ * so there is never a full recount.
+ *
+ * The window is split into buckets. With one bucket the window is tumbling:
+ * the counts start again from zero each window. With more buckets it slides
+ * along one bucket at a time.
+ *
+ * Tweets arrive on the stream's thread; {@link #diff()} is called from the UI
+ * thread.
+ *
+ * @author Shigeru Sasao
+ *
+ */
+public class LiveWordCloud implements AStream.IListen {
+
+	/**
+	 * Changes to apply to the TagCloudView. Apply the replacements before the
+	 * additions.
+	 */
+	public static class Diff {
+		/** New tags, for TagCloudView.addTag() */
+		public final List<Tag> added = new ArrayList<Tag>();
+
+		/** New tags, for TagCloudView.Replace() */
+		public final List<Tag> replacements = new ArrayList<Tag>();
+
+		/** The text of the tag each replacement replaces */
+		public final List<String> replaced = new ArrayList<String>();
+
+		public boolean isEmpty() {
+			return added.isEmpty() && replacements.isEmpty();
+		}
+	}
+
+	/** Word counts, one map per bucket. The newest bucket is last */
+	private final ArrayDeque<Map<String, int[]>> buckets = new ArrayDeque<Map<String, int[]>>();
+
+	/** Length of one bucket in milliseconds */
+	private final long bucketMillis;
+
+	/** When the newest bucket started */
+	private long bucketStart;
+
+	/** Word counts over the whole window */
+	private final Map<String, int[]> counts = new HashMap<String, int[]>();
+
+	/** Words whose count went up since the last diff */
+	private final Set<String> dirty = new HashSet<String>();
+
+	/** Number of buckets in the window */
+	private final int numBuckets;
+
+	/** Popularity range to scale counts into */
+	private final int popularityMin, popularityMax;
+
+	/** Words currently in the cloud, with their popularity */
+	private final Map<String, Integer> shown = new HashMap<String, Integer>();
+
+	/** Set if a word in the cloud lost counts since the last diff */
+	private boolean shownDropped;
+
+	/** Number of words in the cloud */
+	private final int size;
+
+	/**
+	 * @param size
+	 *            Number of words in the cloud
+	 * @param windowMillis
+	 *            How far back to count words
+	 * @param numBuckets
+	 *            1 for a tumbling window, more for a sliding one
+	 * @param popularityMin
+	 *            Popularity given to the least popular word in the cloud
+	 * @param popularityMax
+	 *            Popularity given to the most popular word in the cloud
+	 */
+	public LiveWordCloud(int size, long windowMillis, int numBuckets,
+			int popularityMin, int popularityMax) {
+		this.size = size;
+		this.numBuckets = Math.max(1, numBuckets);
+		this.bucketMillis = Math.max(1, windowMillis / this.numBuckets);
+		this.popularityMin = popularityMin;
+		this.popularityMax = popularityMax;
+		bucketStart = System.currentTimeMillis();
+		buckets.add(new HashMap<String, int[]>());
+	}
+
+	/**
+	 * Count the words in a tweet.
+	 *
+	 * @param text
+	 *            Tweet text
+	 * @param now
+	 *            Time the tweet arrived
+	 */
+	synchronized void add(String text, long now) {
+		roll(now);
+		Map<String, int[]> bucket = buckets.getLast();
+		for (String word : Terms.split(text)) {
+			increment(bucket, word);
+			increment(counts, word);
+			dirty.add(word);
+		}
+	}
+
+	/**
+	 * Work out the changes to the cloud since the last call, and assume they
+	 * will be applied.
+	 *
+	 * @return Changes to apply to the TagCloudView, never null
+	 */
+	public synchronized Diff diff() {
+		roll(System.currentTimeMillis());
+
+		// Find the new top words. If no word in the cloud lost counts, only
+		// the words in the cloud and the words which gained counts can be in
+		// the new top. Otherwise look at every word in the window.
+		Collection<String> candidates;
+		if (shownDropped) {
+			candidates = counts.keySet();
+		} else {
+			candidates = new HashSet<String>(shown.keySet());
+			candidates.addAll(dirty);
+		}
+		dirty.clear();
+		shownDropped = false;
+		PriorityQueue<String> top = new PriorityQueue<String>(size + 1,
+				new Comparator<String>() {
+					public int compare(String w1, String w2) {
+						int c = count(w1) - count(w2);
+						if (c != 0) {
+							return c;
+						}
+						// on a tie, keep words already in the cloud
+						return (shown.containsKey(w1) ? 1 : 0)
+								- (shown.containsKey(w2) ? 1 : 0);
+					}
+				});
+		for (String word : candidates) {
+			top.add(word);
+			if (top.size() > size) {
+				top.poll();
+			}
+		}
+		// words in the cloud with no counts in the window may still be needed
+		// to fill the cloud
+		for (String word : shown.keySet()) {
+			if (top.size() >= size) {
+				break;
+			}
+			if (!top.contains(word)) {
+				top.add(word);
+			}
+		}
+
+		// Scale counts to popularity
+		int max = 1;
+		for (String word : top) {
+			max = Math.max(max, count(word));
+		}
+		Map<String, Integer> newShown = new HashMap<String, Integer>();
+		for (String word : top) {
+			newShown.put(word, popularityMin
+					+ (popularityMax - popularityMin) * count(word) / max);
+		}
+
+		// Diff against the cloud
+		Diff diff = new Diff();
+		List<String> evicted = new ArrayList<String>();
+		for (String word : shown.keySet()) {
+			if (!newShown.containsKey(word)) {
+				evicted.add(word);
+			}
+		}
+		Iterator<String> evictedIt = evicted.iterator();
+		for (Map.Entry<String, Integer> entry : newShown.entrySet()) {
+			String word = entry.getKey();
+			Integer popularity = entry.getValue();
+			Tag tag = new Tag(word, popularity,
+					WordCloudActivity.createLink(word));
+			if (shown.containsKey(word)) {
+				if (!shown.get(word).equals(popularity)) {
+					diff.replacements.add(tag);
+					diff.replaced.add(word);
+				}
+			} else if (evictedIt.hasNext()) {
+				diff.replacements.add(tag);
+				diff.replaced.add(evictedIt.next());
+			} else {
+				diff.added.add(tag);
+			}
+		}
+		shown.clear();
+		shown.putAll(newShown);
+		return diff;
+	}
+
+	/**
+	 * @return Number of times word appears in the window
+	 */
+	private int count(String word) {
+		int[] c = counts.get(word);
+		return c == null ? 0 : c[0];
+	}
+
+	private static void increment(Map<String, int[]> map, String word) {
+		int[] c = map.get(word);
+		if (c == null) {
+			map.put(word, new int[] { 1 });
+		} else {
+			c[0]++;
+		}
+	}
+
+	public boolean processEvent(TwitterEvent event) {
+		return true;
+	}
+
+	public boolean processSystemEvent(Object[] obj) {
+		return true;
+	}
+
+	public boolean processTweet(ITweet tweet) {
+		String text = tweet.getText();
+		if (text != null) {
+			add(text, System.currentTimeMillis());
+		}
+		return true;
+	}
+
+	/**
+	 * Start new buckets as time passes, and take the counts of expired ones
+	 * away from the totals.
+	 */
+	private void roll(long now) {
+		if (now - bucketStart < bucketMillis) {
+			return;
+		}
+		// skip straight over long gaps
+		long gaps = (now - bucketStart) / bucketMillis;
+		for (long i = 0; i < Math.min(gaps, numBuckets); i++) {
+			buckets.add(new HashMap<String, int[]>());
+		}
+		bucketStart += gaps * bucketMillis;
+		while (buckets.size() > numBuckets) {
+			for (Map.Entry<String, int[]> entry : buckets.removeFirst()
+					.entrySet()) {
+				String word = entry.getKey();
+				int[] c = counts.get(word);
+				c[0] -= entry.getValue()[0];
+				if (c[0] <= 0) {
+					counts.remove(word);
+				}
+				if (shown.containsKey(word)) {
+					shownDropped = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Start from the words already in the cloud (e.g. from the database), so
+	 * that live words replace them.
+	 *
+	 * @param tags
+	 *            The tags the TagCloudView was created with
+	 */
+	public synchronized void seed(List<Tag> tags) {
+		for (Tag tag : tags) {
+			shown.put(tag.getText(), tag.getPopularity());
+		}
+	}
+}
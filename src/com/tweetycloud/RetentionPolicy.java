@@ -0,0 +1,104 @@
+package com.tweetycloud;
+
+/*
+ Copyright (c) 2012 Shigeru Sasao
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ The Software shall be used for Good, not Evil.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+/**
+ * RetentionPolicy says how many saved tweets to keep from a source. The
+ * oldest tweets go first. A limit of 0 means no limit.
+ * 
+ * @see TweetWriter#setRetention(String, RetentionPolicy)
+ * @author Shigeru Sasao
+ * 
+ */
+public class RetentionPolicy {
+
+	/** Keep everything */
+	public static final RetentionPolicy KEEP_ALL = new RetentionPolicy(0, 0, 0);
+
+	/** Oldest tweet to keep, in milliseconds */
+	private final long maxAgeMillis;
+
+	/** Most tweets to keep */
+	private final int maxRows;
+
+	/** Most bytes of tweet text to keep */
+	private final long maxBytes;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param maxAgeMillis
+	 *            Delete tweets older than this. Tweets saved without a time
+	 *            count as older than any age.
+	 * @param maxRows
+	 *            Delete the oldest tweets beyond this many
+	 * @param maxBytes
+	 *            Delete the oldest tweets beyond this much text (in UTF-8).
+	 *            This is the bulk of what is saved, not the exact size on
+	 *            disk.
+	 */
+	public RetentionPolicy(long maxAgeMillis, int maxRows, long maxBytes) {
+		if (maxAgeMillis < 0 || maxRows < 0 || maxBytes < 0) {
+			throw new IllegalArgumentException("Limits can't be negative");
+		}
+		this.maxAgeMillis = maxAgeMillis;
+		this.maxRows = maxRows;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return Oldest tweet to keep, in milliseconds. 0 for no limit.
+	 */
+	public long getMaxAgeMillis() {
+		return maxAgeMillis;
+	}
+
+	/**
+	 * @return Most tweets to keep. 0 for no limit.
+	 */
+	public int getMaxRows() {
+		return maxRows;
+	}
+
+	/**
+	 * @return Most bytes of tweet text to keep. 0 for no limit.
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return true if nothing is ever deleted
+	 */
+	public boolean isKeepAll() {
+		return maxAgeMillis == 0 && maxRows == 0 && maxBytes == 0;
+	}
+
+	@Override
+	public String toString() {
+		return "RetentionPolicy[maxAge=" + maxAgeMillis + "ms, maxRows="
+				+ maxRows + ", maxBytes=" + maxBytes + "]";
+	}
+}
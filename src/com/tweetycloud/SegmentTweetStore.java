@@ -0,0 +1,1301 @@
+package com.tweetycloud;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import winterwell.jtwitter.Status;
+import winterwell.jtwitter.User;
+
+/*
+ Copyright (c) 2012 Shigeru Sasao
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ The Software shall be used for Good, not Evil.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+/**
+ * SegmentTweetStore keeps saved tweets in plain files, with no Android or
+ * SQLite, so the data path can run (and be benchmarked) on any JVM.
+ * 
+ * Tweets are appended to the newest segment file as length-prefixed binary
+ * records, so saving never rewrites anything. Deleting a tweet appends a
+ * tombstone record. The newest segment is written and read through one
+ * read-write memory map, a whole segment long, so it's never remapped as it
+ * grows. A full segment is sealed, cut down to size, and never written
+ * again; it is read through a read-only map. A background thread merges the
+ * sealed segments into one, keeping only the live tweets, so deleted tweets
+ * don't take up space for ever. If a background merge fails, the
+ * MergeListener is told, and it is tried again when the next segment is
+ * sealed.
+ * 
+ * Each segment has a sparse index of the tweet times in every block of
+ * INDEX_INTERVAL records, so visiting a time window skips the blocks
+ * outside it. Where each live tweet is kept is held in memory, by source
+ * and id, and is rebuilt by reading the segments when the store is opened.
+ * 
+ * The store can be used from several threads. Only one store at a time
+ * should have a directory open.
+ * 
+ * @author Shigeru Sasao
+ * 
+ */
+public class SegmentTweetStore implements TweetStore {
+
+	/** Thrown when the segment files can't be read or written */
+	public static class StoreException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public StoreException(String message, Throwable cause) {
+			super(message, cause);
+		}
+	}
+
+	/** Told when a merge in the background fails */
+	public interface MergeListener {
+		/**
+		 * @param e
+		 *            Why the merge failed. It is tried again when the next
+		 *            segment is sealed.
+		 */
+		void mergeFailed(StoreException e);
+	}
+
+	/** Default size at which a segment is sealed */
+	public static final long DEFAULT_SEGMENT_BYTES = 8 * 1024 * 1024;
+
+	/** Default number of sealed segments which starts a merge */
+	public static final int DEFAULT_MERGE_THRESHOLD = 4;
+
+	/** Number of records in each block of the sparse index */
+	static final int INDEX_INTERVAL = 64;
+
+	/** Time (or user id) of a tweet saved without one */
+	static final long NONE = Long.MIN_VALUE;
+
+	/** Start of every segment file: "TWSG" */
+	private static final int MAGIC = 0x54575347;
+
+	/** Magic number and first segment number */
+	private static final int HEADER_BYTES = 12;
+
+	/** Bytes of a record before its source: type, id, time, user id, retweet */
+	private static final int FIXED_BYTES = 1 + 8 + 8 + 8 + 1;
+
+	private static final byte TYPE_TWEET = 1;
+
+	private static final byte TYPE_DELETE = 2;
+
+	/** Suffix of a merged segment which isn't finished yet */
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Set once close() is called */
+	private boolean closed;
+
+	/** Where the segment files are */
+	private final File dir;
+
+	/** Guards everything below. Reads take the read lock. */
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/** Number of sealed segments which starts a merge. 0 for never. */
+	private final int mergeThreshold;
+
+	/** Set whilst a merge is running */
+	private boolean merging;
+
+	/** Runs the background merges, one at a time. Its thread dies when idle. */
+	private final ThreadPoolExecutor mergeExecutor;
+
+	/** Told when a background merge fails. May be null. */
+	private volatile MergeListener mergeListener;
+
+	/** Set whilst a background merge is waiting to start */
+	private final AtomicBoolean mergeQueued = new AtomicBoolean();
+
+	/** Key for the next segment opened, see location() */
+	private int nextKey = 1;
+
+	/** Reused to build records */
+	private ByteBuffer out = ByteBuffer.allocate(1024);
+
+	/** Size at which a segment is sealed */
+	private final long segmentBytes;
+
+	/** Segments, oldest first. The last one is written to. */
+	private final List<Segment> segments = new ArrayList<Segment>();
+
+	/** Segments by key */
+	private final Map<Integer, Segment> segmentsByKey = new HashMap<Integer, Segment>();
+
+	/** Live tweets, by source */
+	private final Map<String, SourceState> sources = new HashMap<String, SourceState>();
+
+	/**
+	 * Open a store, creating it if need be
+	 * 
+	 * @param dir
+	 *            Directory to keep the segment files in
+	 */
+	public SegmentTweetStore(File dir) {
+		this(dir, DEFAULT_SEGMENT_BYTES, DEFAULT_MERGE_THRESHOLD);
+	}
+
+	/**
+	 * Open a store, creating it if need be
+	 * 
+	 * @param dir
+	 *            Directory to keep the segment files in
+	 * @param segmentBytes
+	 *            Size at which a segment is sealed
+	 * @param mergeThreshold
+	 *            Number of sealed segments which starts a merge in the
+	 *            background (at least 2). 0 to only merge when merge() is
+	 *            called.
+	 */
+	public SegmentTweetStore(File dir, long segmentBytes, int mergeThreshold) {
+		if (segmentBytes <= HEADER_BYTES || segmentBytes > Integer.MAX_VALUE
+				|| mergeThreshold < 0) {
+			throw new IllegalArgumentException("Bad segment size or threshold");
+		}
+		this.dir = dir;
+		this.segmentBytes = segmentBytes;
+		this.mergeThreshold = mergeThreshold == 0 ? 0 : Math.max(2,
+				mergeThreshold);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new StoreException("Can't create " + dir, null);
+		}
+		final String name = "SegmentMerge:" + dir;
+		mergeExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, name);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		mergeExecutor.allowCoreThreadTimeOut(true);
+		try {
+			open();
+		} catch (IOException e) {
+			for (Segment segment : segments) {
+				segment.close();
+			}
+			mergeExecutor.shutdown();
+			throw new StoreException("Can't open " + dir, e);
+		}
+	}
+
+	/**
+	 * Read the segments, deleting any which a finished merge replaced, and
+	 * start a new segment to write to
+	 */
+	private void open() throws IOException {
+		List<Segment> found = new ArrayList<Segment>();
+		File[] files = dir.listFiles();
+		for (File file : files == null ? new File[0] : files) {
+			if (file.getName().endsWith(TEMP_SUFFIX)) {
+				// a merge which didn't finish
+				file.delete();
+				continue;
+			}
+			Segment segment = Segment.parse(file);
+			if (segment != null) {
+				found.add(segment);
+			}
+		}
+		// newest first, and the newest merge of each number first
+		Collections.sort(found, new Comparator<Segment>() {
+			public int compare(Segment s1, Segment s2) {
+				if (s1.number != s2.number) {
+					return s1.number < s2.number ? 1 : -1;
+				}
+				return s2.generation - s1.generation;
+			}
+		});
+		long next = found.isEmpty() ? 1 : found.get(0).number + 1;
+		long covered = Long.MAX_VALUE;
+		for (Segment segment : found) {
+			if (segment.number >= covered || !segment.open()) {
+				// replaced by a merged segment, or never written to
+				segment.close();
+				segment.file.delete();
+				continue;
+			}
+			covered = segment.first;
+			segments.add(0, segment);
+		}
+		for (Segment segment : segments) {
+			register(segment);
+			scan(segment);
+		}
+		Segment active = Segment.create(dir, next, next, 0, "");
+		segments.add(active);
+		register(active);
+		active.startWriting(segmentBytes);
+	}
+
+	/**
+	 * Give a segment its key
+	 */
+	private void register(Segment segment) {
+		segment.key = nextKey++;
+		segmentsByKey.put(segment.key, segment);
+	}
+
+	/**
+	 * Rebuild the live tweets and the sparse index from a segment
+	 */
+	private void scan(Segment segment) throws IOException {
+		ByteBuffer in = segment.read();
+		int pos = HEADER_BYTES;
+		while (pos < segment.size) {
+			int length = segment.size - pos < 4 ? 0 : in.getInt(pos);
+			if (length < FIXED_BYTES + 10 || length > segment.size - pos - 4) {
+				break;
+			}
+			byte type = in.get(pos + 4);
+			if (type != TYPE_TWEET && type != TYPE_DELETE) {
+				break;
+			}
+			long id = in.getLong(pos + 5);
+			long createdAt = in.getLong(pos + 13);
+			SourceState state = state(readString(in, pos + 4 + FIXED_BYTES));
+			segment.index(pos, createdAt);
+			if (type == TYPE_TWEET) {
+				if (!state.contains(id)) {
+					state.add(id, location(segment, pos), textLength(in, pos));
+				}
+			} else {
+				long location = state.location(id);
+				if (location != 0) {
+					state.remove(id, textLength(location));
+				}
+			}
+			pos += 4 + length;
+		}
+		if (pos < segment.size) {
+			// a record was only partly written when the store was last used
+			segment.truncate(pos);
+		}
+	}
+
+	public void saveTweets(Map<String, ? extends Collection<Status>> bySource) {
+		lock.writeLock().lock();
+		try {
+			checkOpen();
+			for (Map.Entry<String, ? extends Collection<Status>> entry : bySource
+					.entrySet()) {
+				String source = entry.getKey();
+				SourceState state = state(source);
+				for (Status status : entry.getValue()) {
+					long id = status.getId().longValue();
+					if (state.contains(id)) {
+						continue;
+					}
+					User user = status.getUser();
+					byte[] text = status.getText().getBytes(UTF8);
+					long location = append(TYPE_TWEET, id,
+							status.getCreatedAt() == null ? NONE : status
+									.getCreatedAt().getTime(),
+							user == null || user.getId() == null ? NONE : user
+									.getId(), status.getOriginal() != null,
+							source, user == null ? null : user.getName(),
+							status.lang, text);
+					state.add(id, location, text.length);
+				}
+			}
+			last().sync();
+		} catch (IOException e) {
+			throw new StoreException("Can't save tweets", e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		mergeIfDue();
+	}
+
+	public BigInteger getSinceId(String source) {
+		lock.readLock().lock();
+		try {
+			SourceState state = sources.get(source);
+			if (state == null || state.size == 0) {
+				return null;
+			}
+			return BigInteger.valueOf(state.maxId);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public List<String> getSources() {
+		lock.readLock().lock();
+		try {
+			List<String> names = new ArrayList<String>();
+			for (Map.Entry<String, SourceState> entry : sources.entrySet()) {
+				if (entry.getValue().size > 0) {
+					names.add(entry.getKey());
+				}
+			}
+			Collections.sort(names);
+			return names;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public void visitTweetText(String source, TextVisitor visitor) {
+		visit(source, 0, 0, false, visitor);
+	}
+
+	public void visitTweetText(String source, long since, long until,
+			TextVisitor visitor) {
+		visit(source, since, until, true, visitor);
+	}
+
+	/**
+	 * Go through the text of the live tweets, oldest segment first
+	 * 
+	 * @param window
+	 *            If false, since and until are ignored
+	 */
+	private void visit(String source, long since, long until, boolean window,
+			TextVisitor visitor) {
+		byte[] sourceBytes = source == null ? null : source.getBytes(UTF8);
+		// each visit has its own decoder, as visits run at the same time
+		CharsetDecoder decoder = UTF8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		CharBuffer chars = CharBuffer.allocate(280);
+		lock.readLock().lock();
+		try {
+			checkOpen();
+			SourceState state = source == null ? null : sources.get(source);
+			if (source != null && state == null) {
+				return;
+			}
+			for (Segment segment : segments) {
+				ByteBuffer in = segment.read();
+				for (int b = 0; b < segment.blocks.size(); b++) {
+					Block block = segment.blocks.get(b);
+					if (window
+							&& (block.maxTime < since || block.minTime >= until)) {
+						continue;
+					}
+					int end = segment.blockEnd(b);
+					for (int pos = block.offset; pos < end; pos += 4 + in
+							.getInt(pos)) {
+						if (in.get(pos + 4) != TYPE_TWEET) {
+							continue;
+						}
+						long createdAt = in.getLong(pos + 13);
+						if (window
+								&& (createdAt == NONE || createdAt < since || createdAt >= until)) {
+							continue;
+						}
+						int at = pos + 4 + FIXED_BYTES;
+						SourceState tweetState = state;
+						if (sourceBytes == null) {
+							tweetState = sources.get(readString(in, at));
+						} else if (!matches(in, at, sourceBytes)) {
+							continue;
+						}
+						// skip tweets which were deleted since
+						if (tweetState == null
+								|| tweetState.location(in.getLong(pos + 5)) != location(
+										segment, pos)) {
+							continue;
+						}
+						at = skipString(in, skipString(in, skipString(in, at)));
+						int length = in.getInt(at);
+						if (chars.capacity() < length) {
+							chars = CharBuffer.allocate(length);
+						}
+						chars.clear();
+						in.clear();
+						in.limit(at + 4 + length);
+						in.position(at + 4);
+						decoder.reset();
+						decoder.decode(in, chars, true);
+						decoder.flush(chars);
+						in.clear();
+						visitor.visit(chars.array(), chars.position());
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new StoreException("Can't read tweets", e);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Delete the oldest tweets from a source which the retention policy
+	 * doesn't keep, by appending tombstones for them. At most chunkSize
+	 * tweets are deleted, so call it again until it returns less than
+	 * chunkSize. The space is given back when the segments are merged.
+	 * 
+	 * @param source
+	 *            Where the tweets came from
+	 * @param policy
+	 *            What to keep
+	 * @param chunkSize
+	 *            Most tweets to delete
+	 * @return Number of tweets deleted
+	 */
+	public int pruneTweets(String source, RetentionPolicy policy, int chunkSize) {
+		if (policy.isKeepAll() || chunkSize < 1) {
+			return 0;
+		}
+		long cutoff = policy.getMaxAgeMillis() == 0 ? Long.MIN_VALUE : System
+				.currentTimeMillis() - policy.getMaxAgeMillis();
+		lock.writeLock().lock();
+		try {
+			checkOpen();
+			SourceState state = sources.get(source);
+			if (state == null || state.size == 0) {
+				return 0;
+			}
+			long excessRows = 0;
+			if (policy.getMaxRows() > 0) {
+				excessRows = state.size - policy.getMaxRows();
+			}
+			long excessBytes = 0;
+			if (policy.getMaxBytes() > 0) {
+				excessBytes = state.textBytes - policy.getMaxBytes();
+			}
+			// the chunkSize oldest tweets, as { time, id, text bytes }, with
+			// the newest of them on top. Tweets saved without a time count as
+			// time 0.
+			PriorityQueue<long[]> oldest = new PriorityQueue<long[]>(
+					chunkSize + 1, new Comparator<long[]>() {
+						public int compare(long[] t1, long[] t2) {
+							return t1[0] < t2[0] ? 1 : t1[0] > t2[0] ? -1 : 0;
+						}
+					});
+			for (int slot = 0; slot < state.locations.length; slot++) {
+				long location = state.locations[slot];
+				if (location == 0) {
+					continue;
+				}
+				Segment segment = segmentsByKey.get((int) (location >>> 32));
+				ByteBuffer in = segment.read();
+				long createdAt = in.getLong((int) location + 13);
+				oldest.add(new long[] { createdAt == NONE ? 0 : createdAt,
+						state.ids[slot], textLength(in, (int) location) });
+				if (oldest.size() > chunkSize) {
+					oldest.poll();
+				}
+			}
+			long[][] tweets = oldest.toArray(new long[oldest.size()][]);
+			Arrays.sort(tweets, Collections.reverseOrder(oldest.comparator()));
+			int deleted = 0;
+			for (long[] tweet : tweets) {
+				// oldest first, so stop at the first tweet to keep
+				if (tweet[0] >= cutoff && excessRows <= 0 && excessBytes <= 0) {
+					break;
+				}
+				append(TYPE_DELETE, tweet[1], NONE, NONE, false, source, null,
+						null, new byte[0]);
+				state.remove(tweet[1], tweet[2]);
+				excessRows--;
+				excessBytes -= tweet[2];
+				deleted++;
+			}
+			if (deleted > 0) {
+				last().sync();
+			}
+			return deleted;
+		} catch (IOException e) {
+			throw new StoreException("Can't delete tweets", e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Merge the sealed segments into one, leaving out deleted tweets. This
+	 * runs in the background once mergeThreshold segments are sealed, but
+	 * can be called directly too. Saves and reads carry on whilst it runs.
+	 */
+	public void merge() {
+		List<Segment> inputs = new ArrayList<Segment>();
+		lock.writeLock().lock();
+		try {
+			if (closed || merging || segments.size() < 2) {
+				return;
+			}
+			merging = true;
+			// memory maps are limited to 2GB
+			long total = HEADER_BYTES;
+			for (Segment segment : segments.subList(0, segments.size() - 1)) {
+				total += segment.size - HEADER_BYTES;
+				if (total > Integer.MAX_VALUE && !inputs.isEmpty()) {
+					break;
+				}
+				inputs.add(segment);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		try {
+			merge(inputs);
+		} catch (IOException e) {
+			if (!isClosed()) {
+				throw new StoreException("Can't merge segments", e);
+			}
+		} finally {
+			lock.writeLock().lock();
+			merging = false;
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Copy the live tweets from the inputs to a new segment, then swap it in
+	 */
+	private void merge(List<Segment> inputs) throws IOException {
+		Segment lastInput = inputs.get(inputs.size() - 1);
+		int generation = 0;
+		for (Segment segment : inputs) {
+			generation = Math.max(generation, segment.generation + 1);
+		}
+		Segment output = Segment.create(dir, lastInput.number,
+				inputs.get(0).first, generation, TEMP_SUFFIX);
+		// where each copied tweet was, and where it is now
+		List<SourceState> movedStates = new ArrayList<SourceState>();
+		long[] movedIds = new long[256];
+		long[] movedFrom = new long[256];
+		int[] movedTo = new int[256];
+		try {
+			for (Segment input : inputs) {
+				ByteBuffer in = input.read();
+				for (int b = 0; b < input.blocks.size(); b++) {
+					// sealed segments don't change, but which tweets are live
+					// does
+					lock.readLock().lock();
+					try {
+						if (closed) {
+							throw new IOException("Store closed");
+						}
+						int end = input.blockEnd(b);
+						for (int pos = input.blocks.get(b).offset; pos < end; pos += 4 + in
+								.getInt(pos)) {
+							if (in.get(pos + 4) != TYPE_TWEET) {
+								continue;
+							}
+							long id = in.getLong(pos + 5);
+							SourceState state = sources.get(readString(in, pos
+									+ 4 + FIXED_BYTES));
+							long from = location(input, pos);
+							if (state == null || state.location(id) != from) {
+								continue;
+							}
+							ByteBuffer record = in.duplicate();
+							record.limit(pos + 4 + in.getInt(pos));
+							record.position(pos);
+							int n = movedStates.size();
+							if (n == movedIds.length) {
+								movedIds = Arrays.copyOf(movedIds, n * 2);
+								movedFrom = Arrays.copyOf(movedFrom, n * 2);
+								movedTo = Arrays.copyOf(movedTo, n * 2);
+							}
+							movedStates.add(state);
+							movedIds[n] = id;
+							movedFrom[n] = from;
+							movedTo[n] = output.append(record,
+									in.getLong(pos + 13));
+						}
+					} finally {
+						lock.readLock().unlock();
+					}
+				}
+			}
+			output.sync();
+			output.close();
+			// once renamed, the merged segment replaces the inputs, even if
+			// they aren't deleted before the store is next opened
+			File target = new File(dir, Segment.name(output.number,
+					generation));
+			if (!output.file.renameTo(target)) {
+				throw new IOException("Can't rename " + output.file);
+			}
+			output.file = target;
+		} catch (IOException e) {
+			output.close();
+			output.file.delete();
+			throw e;
+		}
+
+		lock.writeLock().lock();
+		try {
+			if (closed) {
+				return;
+			}
+			output.reopen();
+			register(output);
+			for (int i = 0; i < movedStates.size(); i++) {
+				// unless it was deleted whilst merging
+				if (movedStates.get(i).location(movedIds[i]) == movedFrom[i]) {
+					movedStates.get(i).move(movedIds[i],
+							location(output, movedTo[i]));
+				}
+			}
+			segments.removeAll(inputs);
+			segments.add(0, output);
+			for (Segment segment : inputs) {
+				segmentsByKey.remove(segment.key);
+				segment.close();
+				segment.file.delete();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param listener
+	 *            Told when a background merge fails. Null for no-one.
+	 */
+	public void setMergeListener(MergeListener listener) {
+		mergeListener = listener;
+	}
+
+	/**
+	 * Start a merge in the background if enough segments are sealed
+	 */
+	private void mergeIfDue() {
+		lock.readLock().lock();
+		try {
+			if (closed || merging || mergeThreshold == 0
+					|| segments.size() - 1 < mergeThreshold) {
+				return;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		if (!mergeQueued.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			mergeExecutor.execute(new Runnable() {
+				public void run() {
+					mergeQueued.set(false);
+					try {
+						merge();
+					} catch (StoreException e) {
+						// try again when the next segment is sealed
+						MergeListener listener = mergeListener;
+						if (listener != null) {
+							listener.mergeFailed(e);
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// closed meanwhile
+			mergeQueued.set(false);
+		}
+	}
+
+	/**
+	 * Close the segment files. A merge which is running is abandoned.
+	 */
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			mergeExecutor.shutdown();
+			for (Segment segment : segments) {
+				segment.close();
+			}
+			Segment active = last();
+			if (active.size == HEADER_BYTES) {
+				active.file.delete();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private boolean isClosed() {
+		lock.readLock().lock();
+		try {
+			return closed;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("Tweet store is closed");
+		}
+	}
+
+	/**
+	 * Append a record to the active segment, sealing it first if it's full
+	 * 
+	 * @return Location of the record
+	 */
+	private long append(byte type, long id, long createdAt, long userId,
+			boolean retweet, String source, String user, String lang,
+			byte[] text) throws IOException {
+		byte[] sourceBytes = toBytes(source);
+		byte[] userBytes = toBytes(user);
+		byte[] langBytes = toBytes(lang);
+		int length = FIXED_BYTES + stringBytes(sourceBytes)
+				+ stringBytes(userBytes) + stringBytes(langBytes) + 4
+				+ text.length;
+		if (out.capacity() < 4 + length) {
+			out = ByteBuffer.allocate(4 + length);
+		}
+		out.clear();
+		out.putInt(length).put(type).putLong(id).putLong(createdAt)
+				.putLong(userId).put((byte) (retweet ? 1 : 0));
+		putString(sourceBytes);
+		putString(userBytes);
+		putString(langBytes);
+		out.putInt(text.length).put(text);
+		out.flip();
+		Segment segment = last();
+		if ((long) segment.size + out.remaining() > segmentBytes
+				&& segment.size > HEADER_BYTES) {
+			// seal it, and start the next one
+			segment.seal();
+			segment = Segment.create(dir, segment.number + 1,
+					segment.number + 1, 0, "");
+			register(segment);
+			segments.add(segment);
+			segment.startWriting(segmentBytes);
+		}
+		return location(segment, segment.append(out, createdAt));
+	}
+
+	private void putString(byte[] bytes) {
+		if (bytes == null) {
+			out.putShort((short) -1);
+		} else {
+			out.putShort((short) bytes.length).put(bytes);
+		}
+	}
+
+	/**
+	 * @return The active segment
+	 */
+	private Segment last() {
+		return segments.get(segments.size() - 1);
+	}
+
+	/**
+	 * Get a source's live tweets, creating them if need be
+	 */
+	private SourceState state(String source) {
+		SourceState state = sources.get(source);
+		if (state == null) {
+			state = new SourceState();
+			sources.put(source, state);
+		}
+		return state;
+	}
+
+	/**
+	 * @return Bytes of text in the tweet record at a location
+	 */
+	private long textLength(long location) throws IOException {
+		Segment segment = segmentsByKey.get((int) (location >>> 32));
+		return textLength(segment.read(), (int) location);
+	}
+
+	/**
+	 * @return Bytes of text in the tweet record at pos
+	 */
+	private static int textLength(ByteBuffer in, int pos) {
+		int at = pos + 4 + FIXED_BYTES;
+		return in.getInt(skipString(in, skipString(in, skipString(in, at))));
+	}
+
+	/**
+	 * @return Where a record is: the segment key and the record's offset
+	 */
+	private static long location(Segment segment, int offset) {
+		return (long) segment.key << 32 | offset;
+	}
+
+	/**
+	 * @return true if the string at pos is the same as bytes
+	 */
+	private static boolean matches(ByteBuffer in, int pos, byte[] bytes) {
+		if (in.getShort(pos) != bytes.length) {
+			return false;
+		}
+		for (int i = 0; i < bytes.length; i++) {
+			if (in.get(pos + 2 + i) != bytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The string at pos. May be null.
+	 */
+	private static String readString(ByteBuffer in, int pos) {
+		int length = in.getShort(pos);
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = in.get(pos + 2 + i);
+		}
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * @return Position after the string at pos
+	 */
+	private static int skipString(ByteBuffer in, int pos) {
+		return pos + 2 + Math.max(0, in.getShort(pos));
+	}
+
+	private static int stringBytes(byte[] bytes) {
+		return 2 + (bytes == null ? 0 : bytes.length);
+	}
+
+	private static byte[] toBytes(String string) {
+		if (string == null) {
+			return null;
+		}
+		byte[] bytes = string.getBytes(UTF8);
+		if (bytes.length > Short.MAX_VALUE) {
+			throw new IllegalArgumentException("Too long: " + string);
+		}
+		return bytes;
+	}
+
+	/**
+	 * A block of the sparse index: where it starts, and the range of tweet
+	 * times in it (leaving out tweets saved without a time)
+	 */
+	private static class Block {
+		long maxTime = Long.MIN_VALUE;
+		long minTime = Long.MAX_VALUE;
+		final int offset;
+
+		Block(int offset) {
+			this.offset = offset;
+		}
+	}
+
+	/**
+	 * A segment file, named segment-number.generation. A merged segment has
+	 * the number of the last segment merged into it, a higher generation,
+	 * and holds the first number merged in its header.
+	 */
+	private static class Segment {
+
+		private static final Pattern NAME = Pattern
+				.compile("segment-(\\d+)\\.(\\d+)");
+
+		/** Sparse index, in record order */
+		final List<Block> blocks = new ArrayList<Block>();
+
+		private FileChannel channel;
+
+		File file;
+
+		/** Number of the first segment in this one */
+		long first;
+
+		/** Number of merges this has been through */
+		final int generation;
+
+		/** Set by the store when opened */
+		int key;
+
+		/**
+		 * Map of the file, or null. Read-write, and longer than size, whilst
+		 * this is the active segment (see startWriting); read-only once
+		 * sealed.
+		 */
+		private MappedByteBuffer map;
+
+		/** Set whilst appends go through the read-write map */
+		private boolean writing;
+
+		/** Number of this segment, or of the last one merged into it */
+		final long number;
+
+		private RandomAccessFile raf;
+
+		/** Number of records */
+		private int records;
+
+		/** Size of the file */
+		int size;
+
+		private Segment(File file, long number, int generation) {
+			this.file = file;
+			this.number = number;
+			this.generation = generation;
+		}
+
+		static String name(long number, int generation) {
+			return "segment-" + number + "." + generation;
+		}
+
+		/**
+		 * @return The segment the file holds, or null if it isn't one
+		 */
+		static Segment parse(File file) {
+			Matcher m = NAME.matcher(file.getName());
+			if (!m.matches()) {
+				return null;
+			}
+			try {
+				return new Segment(file, Long.parseLong(m.group(1)),
+						Integer.parseInt(m.group(2)));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+
+		/**
+		 * Create an empty segment
+		 */
+		static Segment create(File dir, long number, long first,
+				int generation, String suffix) throws IOException {
+			Segment segment = new Segment(new File(dir, name(number,
+					generation) + suffix), number, generation);
+			segment.first = first;
+			segment.raf = new RandomAccessFile(segment.file, "rw");
+			segment.channel = segment.raf.getChannel();
+			segment.channel.truncate(0);
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			header.putInt(MAGIC).putLong(first).flip();
+			segment.channel.write(header, 0);
+			segment.size = HEADER_BYTES;
+			return segment;
+		}
+
+		/**
+		 * Open an existing segment and read its header
+		 * 
+		 * @return false if the file was never written to
+		 */
+		boolean open() throws IOException {
+			reopen();
+			if (channel.size() < HEADER_BYTES) {
+				return false;
+			}
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			channel.read(header, 0);
+			header.flip();
+			if (header.getInt() != MAGIC) {
+				throw new IOException("Not a segment file: " + file);
+			}
+			first = header.getLong();
+			size = (int) Math.min(channel.size(), Integer.MAX_VALUE);
+			return true;
+		}
+
+		void reopen() throws IOException {
+			raf = new RandomAccessFile(file, "rw");
+			channel = raf.getChannel();
+			map = null;
+			writing = false;
+		}
+
+		/**
+		 * Make this the active segment: map it read-write, capacity bytes
+		 * long, and append through the map from now on. This grows the file
+		 * to capacity. If the store isn't closed cleanly, the zeros past the
+		 * last record look like a partly written record, and are cut off
+		 * when it's next opened.
+		 */
+		synchronized void startWriting(long capacity) throws IOException {
+			map = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+					Math.max(capacity, size));
+			writing = true;
+		}
+
+		/**
+		 * Stop writing: save the map, cut the file down to its records, and
+		 * read it through a read-only map from now on
+		 */
+		synchronized void seal() throws IOException {
+			sync();
+			writing = false;
+			map = null;
+			channel.truncate(size);
+		}
+
+		/**
+		 * Write a record to the end of the file
+		 * 
+		 * @param record
+		 *            The record, from its position to its limit
+		 * @return Offset of the record
+		 */
+		int append(ByteBuffer record, long createdAt) throws IOException {
+			int offset = size;
+			if (writing) {
+				appendToMap(record);
+			} else {
+				long pos = offset;
+				while (record.hasRemaining()) {
+					pos += channel.write(record, pos);
+				}
+				size = (int) pos;
+			}
+			index(offset, createdAt);
+			return offset;
+		}
+
+		private synchronized void appendToMap(ByteBuffer record)
+				throws IOException {
+			long end = (long) size + record.remaining();
+			if (end > map.capacity()) {
+				// a record longer than a whole segment
+				map = channel.map(FileChannel.MapMode.READ_WRITE, 0, end);
+			}
+			ByteBuffer to = map.duplicate();
+			to.position(size);
+			to.put(record);
+			size = to.position();
+		}
+
+		/**
+		 * Add a record to the sparse index
+		 */
+		void index(int offset, long createdAt) {
+			if (records % INDEX_INTERVAL == 0) {
+				blocks.add(new Block(offset));
+			}
+			records++;
+			if (createdAt != NONE) {
+				Block block = blocks.get(blocks.size() - 1);
+				block.minTime = Math.min(block.minTime, createdAt);
+				block.maxTime = Math.max(block.maxTime, createdAt);
+			}
+		}
+
+		/**
+		 * @return Offset after the last record in block b
+		 */
+		int blockEnd(int b) {
+			return b + 1 < blocks.size() ? blocks.get(b + 1).offset : size;
+		}
+
+		/**
+		 * @return The whole file, mapped. Reads should use absolute gets, or
+		 *         a duplicate, and stop at size: the active segment's map
+		 *         goes on past it. Only a segment written without a map (a
+		 *         merge output) is ever mapped again.
+		 */
+		synchronized ByteBuffer read() throws IOException {
+			if (map == null || (!writing && map.capacity() != size)) {
+				map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+			return map.duplicate();
+		}
+
+		synchronized void sync() throws IOException {
+			if (writing) {
+				map.force();
+			} else {
+				channel.force(false);
+			}
+		}
+
+		synchronized void truncate(int pos) throws IOException {
+			map = null;
+			channel.truncate(pos);
+			size = pos;
+		}
+
+		synchronized void close() {
+			try {
+				if (writing) {
+					// cut off the unused end of the map
+					writing = false;
+					map.force();
+					map = null;
+					channel.truncate(size);
+				}
+			} catch (IOException e) {
+				// the next open cuts it off instead
+			}
+			map = null;
+			try {
+				if (raf != null) {
+					raf.close();
+				}
+			} catch (IOException e) {
+				// nothing more to do with it
+			}
+		}
+	}
+
+	/**
+	 * A source's live tweets: where each one is, by id, in an open
+	 * addressing hash table, so ids aren't boxed. Location 0 marks an empty
+	 * slot, as no record is at offset 0.
+	 */
+	private static class SourceState {
+		long[] ids = new long[16];
+
+		long[] locations = new long[16];
+
+		/** Newest tweet id */
+		long maxId = Long.MIN_VALUE;
+
+		/** Number of tweets */
+		int size;
+
+		/** Bytes of tweet text */
+		long textBytes;
+
+		boolean contains(long id) {
+			return locations[slot(id)] != 0;
+		}
+
+		/**
+		 * @return Where the tweet is, or 0 if it isn't here
+		 */
+		long location(long id) {
+			return locations[slot(id)];
+		}
+
+		void add(long id, long location, long bytes) {
+			if ((size + 1) * 3 > locations.length * 2) {
+				grow();
+			}
+			int slot = slot(id);
+			if (locations[slot] == 0) {
+				size++;
+				textBytes += bytes;
+				maxId = Math.max(maxId, id);
+			}
+			ids[slot] = id;
+			locations[slot] = location;
+		}
+
+		/**
+		 * Change where a tweet is
+		 */
+		void move(long id, long location) {
+			int slot = slot(id);
+			if (locations[slot] != 0) {
+				locations[slot] = location;
+			}
+		}
+
+		void remove(long id, long bytes) {
+			int slot = slot(id);
+			if (locations[slot] == 0) {
+				return;
+			}
+			locations[slot] = 0;
+			size--;
+			textBytes -= bytes;
+			// move up any tweets which collided with it
+			int mask = locations.length - 1;
+			for (int next = (slot + 1) & mask; locations[next] != 0; next = (next + 1)
+					& mask) {
+				int home = hash(ids[next]) & mask;
+				if (((next - home) & mask) >= ((next - slot) & mask)) {
+					ids[slot] = ids[next];
+					locations[slot] = locations[next];
+					locations[next] = 0;
+					slot = next;
+				}
+			}
+			if (id == maxId) {
+				maxId = Long.MIN_VALUE;
+				for (int i = 0; i < locations.length; i++) {
+					if (locations[i] != 0) {
+						maxId = Math.max(maxId, ids[i]);
+					}
+				}
+			}
+		}
+
+		private void grow() {
+			long[] oldIds = ids;
+			long[] oldLocations = locations;
+			ids = new long[oldIds.length * 2];
+			locations = new long[oldLocations.length * 2];
+			for (int i = 0; i < oldLocations.length; i++) {
+				if (oldLocations[i] != 0) {
+					int slot = slot(oldIds[i]);
+					ids[slot] = oldIds[i];
+					locations[slot] = oldLocations[i];
+				}
+			}
+		}
+
+		private int slot(long id) {
+			int mask = locations.length - 1;
+			int slot = hash(id) & mask;
+			while (locations[slot] != 0 && ids[slot] != id) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+		private static int hash(long id) {
+			long h = id * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32));
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package com.tweetycloud;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/*
+ Copyright (c) 2012 Shigeru Sasao
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ The Software shall be used for Good, not Evil.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+/**
+ * TermCounts is a hash table of term counts which is looked up by a range of
+ * characters, lower casing as it goes. Unlike a HashMap, counting a word
+ * which has been seen before allocates nothing, so tweet text can be counted
+ * straight from a reused buffer (see TweetDataSource.visitTweetText). A
+ * String is only made the first time a term is seen.
+ * 
+ * @author Shigeru Sasao
+ * 
+ */
+class TermCounts {
+
+	/** Terms, lower case. Null for an empty slot */
+	private String[] terms;
+
+	/** Count of the term in the same slot */
+	private int[] counts;
+
+	/** Number of terms */
+	private int size;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param expected
+	 *            Roughly how many terms there will be
+	 */
+	TermCounts(int expected) {
+		int capacity = 16;
+		while (capacity < expected * 2) {
+			capacity *= 2;
+		}
+		terms = new String[capacity];
+		counts = new int[capacity];
+	}
+
+	/**
+	 * Add to the count of a term
+	 * 
+	 * @param text
+	 *            Characters containing the term, in any case
+	 * @param start
+	 *            Start of the term
+	 * @param end
+	 *            End of the term (exclusive)
+	 * @param delta
+	 *            Change in count
+	 */
+	void add(char[] text, int start, int end, int delta) {
+		int slot = find(text, start, end);
+		if (terms[slot] == null) {
+			char[] term = new char[end - start];
+			for (int i = start; i < end; i++) {
+				term[i - start] = Character.toLowerCase(text[i]);
+			}
+			terms[slot] = new String(term);
+			size++;
+			if (size * 2 > terms.length) {
+				counts[slot] = delta;
+				grow();
+				return;
+			}
+		}
+		counts[slot] += delta;
+	}
+
+	/**
+	 * Add to the count of a term
+	 * 
+	 * @param term
+	 *            The term, in any case
+	 * @param delta
+	 *            Change in count
+	 */
+	void add(String term, int delta) {
+		char[] text = term.toCharArray();
+		add(text, 0, text.length, delta);
+	}
+
+	/**
+	 * Clear all the counts, keeping the table for reuse
+	 */
+	void clear() {
+		Arrays.fill(terms, null);
+		Arrays.fill(counts, 0);
+		size = 0;
+	}
+
+	/**
+	 * @return true if the term has been added, ignoring case
+	 */
+	boolean contains(char[] text, int start, int end) {
+		return terms[find(text, start, end)] != null;
+	}
+
+	/**
+	 * @param slot
+	 *            From 0 to capacity() - 1
+	 * @return The count of the term in the slot
+	 */
+	int count(int slot) {
+		return counts[slot];
+	}
+
+	/**
+	 * @return Number of slots, to go through the terms with term(slot) and
+	 *         count(slot)
+	 */
+	int capacity() {
+		return terms.length;
+	}
+
+	/**
+	 * @return Number of terms
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @param slot
+	 *            From 0 to capacity() - 1
+	 * @return The term in the slot, or null if the slot is empty
+	 */
+	String term(int slot) {
+		return terms[slot];
+	}
+
+	/**
+	 * Find the most frequent terms
+	 * 
+	 * @param limit
+	 *            Maximum number of terms
+	 * @return Slots of the terms, most frequent first
+	 */
+	int[] top(int limit) {
+		PriorityQueue<Integer> top = new PriorityQueue<Integer>(
+				Math.max(1, limit + 1), new Comparator<Integer>() {
+					public int compare(Integer slot1, Integer slot2) {
+						return counts[slot1] - counts[slot2];
+					}
+				});
+		for (int slot = 0; slot < terms.length; slot++) {
+			if (terms[slot] == null || counts[slot] <= 0) {
+				continue;
+			}
+			top.add(slot);
+			if (top.size() > limit) {
+				top.poll();
+			}
+		}
+		int[] slots = new int[top.size()];
+		for (int i = slots.length - 1; i >= 0; i--) {
+			slots[i] = top.poll();
+		}
+		return slots;
+	}
+
+	/**
+	 * Find the slot which holds a term, or the empty slot where it would go
+	 */
+	private int find(char[] text, int start, int end) {
+		// same as the lower case String's hashCode
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + Character.toLowerCase(text[i]);
+		}
+		hash ^= (hash >>> 16);
+		int mask = terms.length - 1;
+		int slot = hash & mask;
+		while (terms[slot] != null && !matches(terms[slot], text, start, end)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Double the table
+	 */
+	private void grow() {
+		String[] oldTerms = terms;
+		int[] oldCounts = counts;
+		terms = new String[oldTerms.length * 2];
+		counts = new int[oldTerms.length * 2];
+		int mask = terms.length - 1;
+		for (int i = 0; i < oldTerms.length; i++) {
+			String term = oldTerms[i];
+			if (term == null) {
+				continue;
+			}
+			int hash = term.hashCode();
+			int slot = (hash ^ (hash >>> 16)) & mask;
+			while (terms[slot] != null) {
+				slot = (slot + 1) & mask;
+			}
+			terms[slot] = term;
+			counts[slot] = oldCounts[i];
+		}
+	}
+
+	/**
+	 * @return true if the characters are the term, ignoring case
+	 */
+	private static boolean matches(String term, char[] text, int start,
+			int end) {
+		if (term.length() != end - start) {
+			return false;
+		}
+		for (int i = start; i < end; i++) {
+			if (term.charAt(i - start) != Character.toLowerCase(text[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,276 @@
+package com.tweetycloud;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ Copyright (c) 2012 Shigeru Sasao
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ The Software shall be used for Good, not Evil.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+/**
+ * Terms splits tweets into the words which are counted for the word cloud.
+ * The same rules are used when counting at write time (TweetDataSource) and
+ * when counting live (LiveWordCloud).
+ * 
+ * @author Shigeru Sasao
+ * 
+ */
+public class Terms {
+
+	/** Set of common words to ignore */
+	private static final Set<String> ignoreWords = new HashSet<String>(Arrays.asList("a", "able",
+			"about", "above", "abroad", "according", "accordingly", "across",
+			"actually", "adj", "after", "afterwards", "again", "against",
+			"ago", "ahead", "ain't", "all", "allow", "allows", "almost",
+			"alone", "along", "alongside", "already", "also", "although",
+			"always", "am", "amid", "amidst", "among", "amongst", "an", "and",
+			"another", "any", "anybody", "anyhow", "anyone", "anything",
+			"anyway", "anyways", "anywhere", "apart", "appear", "appreciate",
+			"appropriate", "are", "aren't", "around", "as", "a's", "aside",
+			"ask", "asking", "associated", "at", "available", "away",
+			"awfully", "b", "back", "backward", "backwards", "be", "became",
+			"because", "become", "becomes", "becoming", "been", "before",
+			"beforehand", "begin", "behind", "being", "believe", "below",
+			"beside", "besides", "best", "better", "between", "beyond", "both",
+			"brief", "but", "by", "c", "came", "can", "cannot", "cant",
+			"can't", "caption", "cause", "causes", "certain", "certainly",
+			"changes", "clearly", "c'mon", "co", "co.", "com", "come", "comes",
+			"concerning", "consequently", "consider", "considering", "contain",
+			"containing", "contains", "corresponding", "could", "couldn't",
+			"course", "c's", "currently", "d", "dare", "daren't", "definitely",
+			"described", "despite", "did", "didn't", "different", "directly",
+			"do", "does", "doesn't", "doing", "done", "don't", "down",
+			"downwards", "during", "e", "each", "edu", "eg", "eight", "eighty",
+			"either", "else", "elsewhere", "end", "ending", "enough",
+			"entirely", "especially", "et", "etc", "even", "ever", "evermore",
+			"every", "everybody", "everyone", "everything", "everywhere", "ex",
+			"exactly", "example", "except", "f", "fairly", "far", "farther",
+			"few", "fewer", "fifth", "first", "five", "followed", "following",
+			"follows", "for", "forever", "former", "formerly", "forth",
+			"forward", "found", "four", "from", "further", "furthermore", "g",
+			"get", "gets", "getting", "given", "gives", "great", "go", "goes",
+			"going", "gone", "got", "gotten", "greetings", "h", "had",
+			"hadn't", "half", "happens", "hardly", "has", "hasn't", "have",
+			"haven't", "having", "he", "he'd", "he'll", "hello", "help",
+			"hence", "her", "here", "hereafter", "hereby", "herein", "here's",
+			"hereupon", "hers", "herself", "he's", "hi", "him", "himself",
+			"his", "hither", "hopefully", "how", "howbeit", "however",
+			"hundred", "i", "i'd", "ie", "if", "ignored", "i'll", "i'm",
+			"immediate", "in", "inasmuch", "inc", "inc.", "indeed", "indicate",
+			"indicated", "indicates", "inner", "inside", "insofar", "instead",
+			"into", "inward", "is", "isn't", "it", "it'd", "it'll", "its",
+			"it's", "itself", "i've", "j", "just", "k", "keep", "keeps",
+			"kept", "know", "known", "knows", "l", "last", "lately", "later",
+			"latter", "latterly", "least", "less", "lest", "let", "let's",
+			"like", "liked", "likely", "likewise", "little", "look", "looking",
+			"looks", "low", "lower", "ltd", "m", "made", "mainly", "make",
+			"makes", "many", "may", "maybe", "mayn't", "me", "mean",
+			"meantime", "meanwhile", "merely", "might", "mightn't", "mine",
+			"minus", "miss", "more", "moreover", "most", "mostly", "mr", "mrs",
+			"much", "must", "mustn't", "my", "myself", "n", "name", "namely",
+			"nd", "near", "nearly", "necessary", "need", "needn't", "needs",
+			"neither", "never", "neverf", "neverless", "nevertheless", "new",
+			"next", "nine", "ninety", "no", "nobody", "non", "none",
+			"nonetheless", "noone", "no-one", "nor", "normally", "not",
+			"nothing", "notwithstanding", "novel", "now", "nowhere", "o",
+			"obviously", "of", "off", "often", "oh", "ok", "okay", "old", "on",
+			"once", "one", "ones", "one's", "only", "onto", "opposite", "or",
+			"other", "others", "otherwise", "ought", "oughtn't", "our", "ours",
+			"ourselves", "out", "outside", "over", "overall", "own", "p",
+			"particular", "particularly", "past", "per", "perhaps", "placed",
+			"please", "plus", "possible", "presumably", "probably", "provided",
+			"provides", "q", "que", "quite", "qv", "r", "rather", "rd", "re",
+			"really", "reasonably", "recent", "recently", "regarding",
+			"regardless", "regards", "relatively", "respectively", "right",
+			"round", "rt", "s", "said", "same", "saw", "say", "saying", "says",
+			"second", "secondly", "see", "seeing", "seem", "seemed", "seeming",
+			"seems", "seen", "self", "selves", "sensible", "sent", "serious",
+			"seriously", "seven", "several", "shall", "shan't", "she", "she'd",
+			"she'll", "she's", "should", "shouldn't", "since", "six", "so",
+			"some", "somebody", "someday", "somehow", "someone", "something",
+			"sometime", "sometimes", "somewhat", "somewhere", "soon", "sorry",
+			"specified", "specify", "specifying", "still", "sub", "such",
+			"sup", "sure", "t", "take", "taken", "taking", "tell", "tends",
+			"th", "than", "thank", "thanks", "thanx", "that", "that'll",
+			"thats", "that's", "that've", "the", "their", "theirs", "them",
+			"themselves", "then", "thence", "there", "thereafter", "thereby",
+			"there'd", "therefore", "therein", "there'll", "there're",
+			"theres", "there's", "thereupon", "there've", "these", "they",
+			"they'd", "they'll", "they're", "they've", "thing", "things",
+			"think", "third", "thirty", "this", "thorough", "thoroughly",
+			"those", "though", "three", "through", "throughout", "thru",
+			"thus", "till", "to", "together", "too", "took", "toward",
+			"towards", "tried", "tries", "truly", "try", "trying", "t's",
+			"twice", "two", "u", "un", "under", "underneath", "undoing",
+			"unfortunately", "unless", "unlike", "unlikely", "until", "unto",
+			"up", "upon", "upwards", "us", "use", "used", "useful", "uses",
+			"using", "usually", "v", "value", "various", "versus", "very",
+			"via", "viz", "vs", "w", "want", "wants", "was", "wasn't", "way",
+			"we", "we'd", "welcome", "well", "we'll", "went", "were", "we're",
+			"weren't", "we've", "what", "whatever", "what'll", "what's",
+			"what've", "when", "whence", "whenever", "where", "whereafter",
+			"whereas", "whereby", "wherein", "where's", "whereupon",
+			"wherever", "whether", "which", "whichever", "while", "whilst",
+			"whither", "who", "who'd", "whoever", "whole", "who'll", "whom",
+			"whomever", "who's", "whose", "why", "will", "willing", "wish",
+			"with", "within", "without", "wonder", "won't", "would",
+			"wouldn't", "x", "y", "yes", "yet", "you", "you'd", "you'll",
+			"your", "you're", "yours", "yourself", "yourselves", "you've", "z",
+			"zero"));
+
+	/**
+	 * The ignore words again, for looking up words straight from a buffer of
+	 * tweet text
+	 */
+	private static final TermCounts ignoreTable = new TermCounts(
+			ignoreWords.size());
+	static {
+		for (String word : ignoreWords) {
+			ignoreTable.add(word, 1);
+		}
+	}
+
+	/**
+	 * Split a tweet into the words to count
+	 * 
+	 * @param text
+	 *            Tweet text
+	 * @return Lower case words, in order, with repeats
+	 */
+	public static List<String> split(String text) {
+		List<String> terms = new ArrayList<String>();
+		char[] chars = text.toCharArray();
+		// lower case a character at a time, the same as TermCounts
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = Character.toLowerCase(chars[i]);
+		}
+		int start = 0;
+		for (int i = 0; i <= chars.length; i++) {
+			if (i == chars.length || chars[i] == ' ') {
+				if (isWord(chars, start, i)) {
+					terms.add(new String(chars, start, i - start));
+				}
+				start = i + 1;
+			}
+		}
+		return terms;
+	}
+
+	/**
+	 * Count the words in the tweets from a time window
+	 * 
+	 * @param store
+	 *            Where the tweets are saved
+	 * @param source
+	 *            Where the tweets came from. Null for all sources.
+	 * @param since
+	 *            Start of the window, in epoch milliseconds
+	 * @param until
+	 *            End of the window (exclusive), in epoch milliseconds
+	 * @param limit
+	 *            Maximum number of terms
+	 * @return Terms and their counts, most frequent first
+	 */
+	public static Map<String, Integer> getTopTerms(TweetStore store,
+			String source, long since, long until, int limit) {
+		final TermCounts counts = new TermCounts(1024);
+		store.visitTweetText(source, since, until,
+				new TweetStore.TextVisitor() {
+					public void visit(char[] text, int length) {
+						count(text, length, counts, 1);
+					}
+				});
+		Map<String, Integer> terms = new LinkedHashMap<String, Integer>();
+		for (int slot : counts.top(limit)) {
+			terms.put(counts.term(slot), counts.count(slot));
+		}
+		return terms;
+	}
+
+	/**
+	 * Count the words in a tweet, as split() would split them, without making
+	 * a String for each word
+	 * 
+	 * @param text
+	 *            Buffer holding the tweet text
+	 * @param length
+	 *            Length of the text in the buffer
+	 * @param counts
+	 *            Counts to add to
+	 * @param delta
+	 *            Amount to add for each word, e.g. -1 for a deleted tweet
+	 */
+	static void count(char[] text, int length, TermCounts counts, int delta) {
+		int start = 0;
+		for (int i = 0; i <= length; i++) {
+			if (i == length || text[i] == ' ') {
+				if (isWord(text, start, i)) {
+					counts.add(text, start, i, delta);
+				}
+				start = i + 1;
+			}
+		}
+	}
+
+	/**
+	 * Check if a word in a buffer should be counted for the cloud
+	 * 
+	 * @return true if the word has a letter in it, and is not a common word
+	 *         (in any case)
+	 */
+	private static boolean isWord(char[] text, int start, int end) {
+		boolean hasLetter = false;
+		for (int i = start; i < end; i++) {
+			char c = text[i];
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+				hasLetter = true;
+				break;
+			}
+		}
+		return hasLetter && !ignoreTable.contains(text, start, end);
+	}
+
+	/**
+	 * Check if a (lower case) word should be counted for the cloud
+	 * 
+	 * @param word
+	 *            A word from a tweet
+	 * @return true if the word has a letter in it, and is not a common word
+	 */
+	public static boolean isWord(String word) {
+		boolean hasLetter = false;
+		for (int i = 0; i < word.length(); i++) {
+			char c = word.charAt(i);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+				hasLetter = true;
+				break;
+			}
+		}
+		return hasLetter && !ignoreWords.contains(word);
+	}
+}
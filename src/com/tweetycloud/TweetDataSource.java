@@ -1,14 +1,28 @@
 package com.tweetycloud;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import winterwell.jtwitter.Status;
+import winterwell.jtwitter.TwitterList;
+import winterwell.jtwitter.User;
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
 /*
  Copyright (c) 2012 Shigeru Sasao
@@ -40,7 +54,7 @@ import android.database.sqlite.SQLiteDatabase;
  * @author Shigeru Sasao
  * 
  */
-public class TweetDataSource {
+public class TweetDataSource implements TweetStore {
 
 	/** The SQLite database */
 	private SQLiteDatabase database;
@@ -48,6 +62,78 @@ public class TweetDataSource {
 	/** Helper class containing the actual SQL statements */
 	private TweetyCloudSQLiteHelper dbHelper;
 
+	/** Cache key of the user's Twitter lists, from Twitter.getListsAll */
+	public static final String PAGE_LISTS = "lists";
+
+	/** Default number of tweets saved per transaction by saveTweets */
+	public static final int DEFAULT_BATCH_SIZE = 500;
+
+	/**
+	 * Upsert sql statement, for saveTweets. A tweet already saved from the
+	 * same source is kept as it is (tweets don't change), so its terms are
+	 * not counted twice.
+	 */
+	private static final String UPSERT_TWEET = "insert or ignore into "
+			+ TweetyCloudSQLiteHelper.TABLE_TWEETS + "("
+			+ TweetyCloudSQLiteHelper.COLUMN_TWEET_ID + ", "
+			+ TweetyCloudSQLiteHelper.COLUMN_USER + ", "
+			+ TweetyCloudSQLiteHelper.COLUMN_USER_ID + ", "
+			+ TweetyCloudSQLiteHelper.COLUMN_TEXT + ", "
+			+ TweetyCloudSQLiteHelper.COLUMN_SOURCE + ", "
+			+ TweetyCloudSQLiteHelper.COLUMN_CREATED_AT + ", "
+			+ TweetyCloudSQLiteHelper.COLUMN_RETWEET + ", "
+			+ TweetyCloudSQLiteHelper.COLUMN_LANG
+			+ ") values (?, ?, ?, ?, ?, ?, ?, ?)";
+
+	/** Latest tweet id sql statement, for getSinceId */
+	private static final String SELECT_SINCE_ID = "select max("
+			+ TweetyCloudSQLiteHelper.COLUMN_TWEET_ID + ") from "
+			+ TweetyCloudSQLiteHelper.TABLE_TWEETS + " where "
+			+ TweetyCloudSQLiteHelper.COLUMN_SOURCE + " = ?";
+
+	/** Full-text search sql statement, for searchTweets */
+	private static final String SEARCH_TWEETS = "select t."
+			+ TweetyCloudSQLiteHelper.COLUMN_TWEET_ID + ", t."
+			+ TweetyCloudSQLiteHelper.COLUMN_USER + ", t."
+			+ TweetyCloudSQLiteHelper.COLUMN_TEXT + " from "
+			+ TweetyCloudSQLiteHelper.TABLE_TWEETS_FTS + " f join "
+			+ TweetyCloudSQLiteHelper.TABLE_TWEETS + " t on t."
+			+ TweetyCloudSQLiteHelper.COLUMN_ID + " = f.docid where "
+			+ TweetyCloudSQLiteHelper.TABLE_TWEETS_FTS + " match ?";
+
+	/**
+	 * Oldest tweets first sql statement, for pruneTweets. Tweets saved
+	 * without a time come first, and count as time 0.
+	 */
+	private static final String SELECT_OLDEST = "select "
+			+ TweetyCloudSQLiteHelper.COLUMN_ID + ", coalesce("
+			+ TweetyCloudSQLiteHelper.COLUMN_CREATED_AT + ", 0), length(cast("
+			+ TweetyCloudSQLiteHelper.COLUMN_TEXT + " as blob)), "
+			+ TweetyCloudSQLiteHelper.COLUMN_TEXT + " from "
+			+ TweetyCloudSQLiteHelper.TABLE_TWEETS + " where "
+			+ TweetyCloudSQLiteHelper.COLUMN_SOURCE + " = ? order by "
+			+ TweetyCloudSQLiteHelper.COLUMN_CREATED_AT + " limit ";
+
+	/** Number of tweets sql statement, for pruneTweets */
+	private static final String SELECT_COUNT = "select count(*) from "
+			+ TweetyCloudSQLiteHelper.TABLE_TWEETS + " where "
+			+ TweetyCloudSQLiteHelper.COLUMN_SOURCE + " = ?";
+
+	/** Bytes of tweet text sql statement, for pruneTweets */
+	private static final String SELECT_BYTES = "select "
+			+ "coalesce(sum(length(cast(" + TweetyCloudSQLiteHelper.COLUMN_TEXT
+			+ " as blob))), 0) from "
+			+ TweetyCloudSQLiteHelper.TABLE_TWEETS + " where "
+			+ TweetyCloudSQLiteHelper.COLUMN_SOURCE + " = ?";
+
+	/** Delete sql statement, for pruneTweets */
+	private static final String DELETE_TWEET = "delete from "
+			+ TweetyCloudSQLiteHelper.TABLE_TWEETS + " where "
+			+ TweetyCloudSQLiteHelper.COLUMN_ID + " = ?";
+
+	/** Number of tweets saved per transaction by saveTweets */
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
 	/** All columns in the table **/
 	private String[] allColumns = { TweetyCloudSQLiteHelper.COLUMN_TWEET_ID,
 			TweetyCloudSQLiteHelper.COLUMN_USER,
@@ -80,23 +166,487 @@ public class TweetDataSource {
 	}
 
 	/**
-	 * Save a tweet into the database
+	 * Save a tweet from the home timeline into the database, unless it's
+	 * already there
 	 * 
 	 * @param status
 	 *            Status class containing the tweet
 	 */
 	public void saveTweet(Status status) {
-		ContentValues values = new ContentValues();
-		values.put(TweetyCloudSQLiteHelper.COLUMN_TWEET_ID, status.getId()
-				.toString());
-		values.put(TweetyCloudSQLiteHelper.COLUMN_USER, status.getUser()
-				.getName());
-		values.put(TweetyCloudSQLiteHelper.COLUMN_TEXT, status.getText());
-		database.insert(TweetyCloudSQLiteHelper.TABLE_TWEETS, null, values);
+		saveTweets(Collections.singletonList(status));
+	}
+
+	/**
+	 * Save many tweets from the home timeline into the database
+	 * 
+	 * @param statuses
+	 *            Status classes containing the tweets
+	 * @see #saveTweets(Collection, String)
+	 */
+	public void saveTweets(Collection<Status> statuses) {
+		saveTweets(statuses, TweetyCloudSQLiteHelper.SOURCE_HOME);
+	}
+
+	/**
+	 * Save many tweets into the database, merging them into the tweets
+	 * already saved from the same source. This is much faster than calling
+	 * saveTweet for each one: the tweets are saved in one transaction (or
+	 * one per batch, see setBatchSize) using a precompiled statement.
+	 * 
+	 * The source's term counts are updated in the same transaction.
+	 * 
+	 * @param statuses
+	 *            Status classes containing the tweets
+	 * @param source
+	 *            Where the tweets came from: SOURCE_HOME, or see
+	 *            getListSource
+	 */
+	public void saveTweets(Collection<Status> statuses, String source) {
+		saveTweets(Collections.singletonMap(source, statuses));
+	}
+
+	/**
+	 * Save tweets from several sources together, in one transaction (or one
+	 * per batch, see setBatchSize), e.g. to commit everything TweetWriter
+	 * has queued at once.
+	 * 
+	 * @param bySource
+	 *            Tweets to save, by source
+	 * @see #saveTweets(Collection, String)
+	 */
+	public void saveTweets(Map<String, ? extends Collection<Status>> bySource) {
+		int total = 0;
+		for (Collection<Status> statuses : bySource.values()) {
+			total += statuses.size();
+		}
+		SQLiteStatement insert = database.compileStatement(UPSERT_TWEET);
+		TermCounts termCounts = new TermCounts(Math.min(total, batchSize) * 4);
+		try {
+			int count = 0;
+			database.beginTransaction();
+			try {
+				for (Map.Entry<String, ? extends Collection<Status>> entry : bySource
+						.entrySet()) {
+					String source = entry.getKey();
+					for (Status status : entry.getValue()) {
+						insert.bindLong(1, status.getId().longValue());
+						User user = status.getUser();
+						if (user == null || user.getName() == null) {
+							insert.bindNull(2);
+						} else {
+							insert.bindString(2, user.getName());
+						}
+						if (user == null || user.getId() == null) {
+							insert.bindNull(3);
+						} else {
+							insert.bindLong(3, user.getId());
+						}
+						insert.bindString(4, status.getText());
+						insert.bindString(5, source);
+						if (status.getCreatedAt() == null) {
+							insert.bindNull(6);
+						} else {
+							insert.bindLong(6, status.getCreatedAt().getTime());
+						}
+						insert.bindLong(7, status.getOriginal() == null ? 0 : 1);
+						if (status.lang == null) {
+							insert.bindNull(8);
+						} else {
+							insert.bindString(8, status.lang);
+						}
+						// count the terms of new tweets. executeInsert gives -1
+						// if the tweet was already saved, and so ignored.
+						if (insert.executeInsert() != -1) {
+							TweetyCloudSQLiteHelper.countTerms(termCounts,
+									status.getText(), 1);
+						}
+						count++;
+						// commit this batch and start the next
+						if (count % batchSize == 0) {
+							TweetyCloudSQLiteHelper.addTermCounts(database,
+									source, termCounts);
+							termCounts.clear();
+							database.setTransactionSuccessful();
+							database.endTransaction();
+							database.beginTransaction();
+						}
+					}
+					TweetyCloudSQLiteHelper.addTermCounts(database, source,
+							termCounts);
+					termCounts.clear();
+				}
+				database.setTransactionSuccessful();
+			} finally {
+				database.endTransaction();
+			}
+		} finally {
+			insert.close();
+		}
+	}
+
+	/**
+	 * Delete the oldest tweets from a source which the retention policy
+	 * doesn't keep. At most chunkSize tweets are deleted, in one transaction,
+	 * so this never holds the database for long: call it again until it
+	 * returns less than chunkSize. The source's term counts are updated in
+	 * the same transaction, and the triggers update the full-text index.
+	 * 
+	 * @param source
+	 *            SOURCE_HOME, or see getListSource
+	 * @param policy
+	 *            What to keep
+	 * @param chunkSize
+	 *            Most tweets to delete
+	 * @return Number of tweets deleted
+	 */
+	public int pruneTweets(String source, RetentionPolicy policy, int chunkSize) {
+		if (policy.isKeepAll() || chunkSize < 1) {
+			return 0;
+		}
+		long cutoff = policy.getMaxAgeMillis() == 0 ? Long.MIN_VALUE : System
+				.currentTimeMillis() - policy.getMaxAgeMillis();
+		SQLiteStatement delete = database.compileStatement(DELETE_TWEET);
+		TermCounts termCounts = new TermCounts(chunkSize * 4);
+		int deleted = 0;
+		database.beginTransaction();
+		try {
+			long excessRows = 0;
+			if (policy.getMaxRows() > 0) {
+				excessRows = queryForLong(SELECT_COUNT, source)
+						- policy.getMaxRows();
+			}
+			long excessBytes = 0;
+			if (policy.getMaxBytes() > 0) {
+				excessBytes = queryForLong(SELECT_BYTES, source)
+						- policy.getMaxBytes();
+			}
+			Cursor cursor = database.rawQuery(SELECT_OLDEST + chunkSize,
+					new String[] { source });
+			try {
+				CharArrayBuffer buffer = new CharArrayBuffer(140);
+				cursor.moveToFirst();
+				while (!cursor.isAfterLast()) {
+					// oldest first, so stop at the first tweet to keep
+					if (cursor.getLong(1) >= cutoff && excessRows <= 0
+							&& excessBytes <= 0) {
+						break;
+					}
+					cursor.copyStringToBuffer(3, buffer);
+					Terms.count(buffer.data, buffer.sizeCopied, termCounts, -1);
+					delete.bindLong(1, cursor.getLong(0));
+					delete.execute();
+					deleted++;
+					excessRows--;
+					excessBytes -= cursor.getLong(2);
+					cursor.moveToNext();
+				}
+			} finally {
+				cursor.close();
+			}
+			TweetyCloudSQLiteHelper.addTermCounts(database, source, termCounts);
+			database.setTransactionSuccessful();
+		} finally {
+			database.endTransaction();
+			delete.close();
+		}
+		return deleted;
+	}
+
+	/**
+	 * Give some of the space freed by deleted tweets back to the system. This
+	 * needs incremental vacuuming, which TweetyCloudSQLiteHelper switches on
+	 * when the database is created or upgraded. Don't call inside a
+	 * transaction.
+	 * 
+	 * @param pages
+	 *            Most pages to give back
+	 * @return true if there are still free pages to give back
+	 */
+	public boolean compact(int pages) {
+		long autoVacuum = queryForLong("PRAGMA auto_vacuum", null);
+		if (autoVacuum != TweetyCloudSQLiteHelper.AUTO_VACUUM_INCREMENTAL) {
+			// not switched over: free pages can't be given back bit by bit
+			return false;
+		}
+		// incremental_vacuum gives back one page per row stepped through, so
+		// read it to the end (execSQL would only do the first page)
+		Cursor cursor = database.rawQuery("PRAGMA incremental_vacuum("
+				+ pages + ")", null);
+		try {
+			while (cursor.moveToNext()) {
+				// keep going
+			}
+		} finally {
+			cursor.close();
+		}
+		return queryForLong("PRAGMA freelist_count", null) > 0;
+	}
+
+	/**
+	 * Get the sources which have saved tweets
+	 * 
+	 * @return Source names, e.g. SOURCE_HOME
+	 */
+	public List<String> getSources() {
+		List<String> sources = new ArrayList<String>();
+		Cursor cursor = database.query(true,
+				TweetyCloudSQLiteHelper.TABLE_TWEETS,
+				new String[] { TweetyCloudSQLiteHelper.COLUMN_SOURCE }, null,
+				null, null, null, null, null);
+		cursor.moveToFirst();
+		while (!cursor.isAfterLast()) {
+			sources.add(cursor.getString(0));
+			cursor.moveToNext();
+		}
+		// Make sure to close the cursor
+		cursor.close();
+		return sources;
+	}
+
+	/**
+	 * Run a query which returns one number
+	 * 
+	 * @param sql
+	 *            The query
+	 * @param arg
+	 *            Value for the query's ?, or null if it has none
+	 * @return The number
+	 */
+	private long queryForLong(String sql, String arg) {
+		SQLiteStatement select = database.compileStatement(sql);
+		try {
+			if (arg != null) {
+				select.bindString(1, arg);
+			}
+			return select.simpleQueryForLong();
+		} finally {
+			select.close();
+		}
+	}
+
+	/**
+	 * Set the number of tweets saved per transaction by saveTweets. Smaller
+	 * batches hold the database lock for less time, larger ones are faster.
+	 * 
+	 * @param batchSize
+	 *            Tweets per transaction. The default is DEFAULT_BATCH_SIZE.
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be positive: "
+					+ batchSize);
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Get the newest tweet id saved from a source, for fetching only newer
+	 * tweets with Twitter.setSinceId
+	 * 
+	 * @param source
+	 *            SOURCE_HOME, or see getListSource
+	 * @return The newest tweet id, or null if there are none
+	 */
+	public BigInteger getSinceId(String source) {
+		SQLiteStatement select = database.compileStatement(SELECT_SINCE_ID);
+		try {
+			select.bindString(1, source);
+			String id = select.simpleQueryForString();
+			return id == null ? null : new BigInteger(id);
+		} finally {
+			select.close();
+		}
+	}
+
+	/**
+	 * Get the most frequent terms in the saved tweets. The counts are kept up
+	 * to date as tweets are saved, so this is a single indexed query.
+	 * 
+	 * @param source
+	 *            SOURCE_HOME, or see getListSource. Null for all sources
+	 *            (which has to add up the counts, so is slower).
+	 * @param limit
+	 *            Maximum number of terms
+	 * @return Terms and their counts, most frequent first
+	 */
+	public Map<String, Integer> getTopTerms(String source, int limit) {
+		Cursor cursor;
+		if (source == null) {
+			cursor = database.query(TweetyCloudSQLiteHelper.TABLE_TERMS,
+					new String[] { TweetyCloudSQLiteHelper.COLUMN_TERM,
+							"sum(" + TweetyCloudSQLiteHelper.COLUMN_COUNT + ")" },
+					null, null, TweetyCloudSQLiteHelper.COLUMN_TERM, null,
+					"2 desc", Integer.toString(limit));
+		} else {
+			cursor = database.query(TweetyCloudSQLiteHelper.TABLE_TERMS,
+					new String[] { TweetyCloudSQLiteHelper.COLUMN_TERM,
+							TweetyCloudSQLiteHelper.COLUMN_COUNT },
+					TweetyCloudSQLiteHelper.COLUMN_SOURCE + " = ?",
+					new String[] { source }, null, null,
+					TweetyCloudSQLiteHelper.COLUMN_COUNT + " desc",
+					Integer.toString(limit));
+		}
+		Map<String, Integer> terms = new LinkedHashMap<String, Integer>();
+		cursor.moveToFirst();
+		while (!cursor.isAfterLast()) {
+			terms.put(cursor.getString(0), cursor.getInt(1));
+			cursor.moveToNext();
+		}
+		// Make sure to close the cursor
+		cursor.close();
+		return terms;
 	}
 
 	/**
-	 * Get all tweets in the database table
+	 * Get the most frequent terms in the tweets from a time window, e.g. the
+	 * last 24 hours. These are counted from the tweets themselves, found with
+	 * the index on source and time.
+	 * 
+	 * @param source
+	 *            SOURCE_HOME, or see getListSource. Null for all sources
+	 *            (which has to scan every tweet, so is slower).
+	 * @param since
+	 *            Start of the window, in epoch milliseconds
+	 * @param until
+	 *            End of the window (exclusive), in epoch milliseconds
+	 * @param limit
+	 *            Maximum number of terms
+	 * @return Terms and their counts, most frequent first
+	 */
+	public Map<String, Integer> getTopTerms(String source, long since,
+			long until, int limit) {
+		return Terms.getTopTerms(this, source, since, until, limit);
+	}
+
+	/**
+	 * Find the saved tweets which contain a term, using the full-text index.
+	 * This needs no network, so it's quick enough to show straight away when
+	 * a tag is tapped.
+	 * 
+	 * @param term
+	 *            A word or phrase, e.g. a tag in the cloud
+	 * @param source
+	 *            SOURCE_HOME, or see getListSource. Null for all sources.
+	 * @param limit
+	 *            Maximum number of tweets
+	 * @return Matching tweets, newest first
+	 */
+	public List<Tweet> searchTweets(String term, String source, int limit) {
+		// search for the term as a phrase, so punctuation (e.g. the # of a
+		// hashtag) can't be read as query syntax
+		String match = "\"" + term.replace("\"", " ") + "\"";
+		String sql = SEARCH_TWEETS;
+		String[] args;
+		if (source == null) {
+			args = new String[] { match };
+		} else {
+			sql += " and t." + TweetyCloudSQLiteHelper.COLUMN_SOURCE + " = ?";
+			args = new String[] { match, source };
+		}
+		sql += " order by t." + TweetyCloudSQLiteHelper.COLUMN_CREATED_AT
+				+ " desc limit " + limit;
+		List<Tweet> tweets = new ArrayList<Tweet>();
+		Cursor cursor = database.rawQuery(sql, args);
+		cursor.moveToFirst();
+		while (!cursor.isAfterLast()) {
+			Tweet t = cursorToTweet(cursor);
+			tweets.add(t);
+			cursor.moveToNext();
+		}
+		// Make sure to close the cursor
+		cursor.close();
+		return tweets;
+	}
+
+	/**
+	 * Get the source name for tweets from a Twitter list
+	 * 
+	 * @param list
+	 *            The Twitter list
+	 * @return The source name to save the list's tweets under
+	 */
+	public static String getListSource(TwitterList list) {
+		return "list:" + (list.getId() == null ? list.getName() : list.getId());
+	}
+
+	/**
+	 * Get the tweets in the database table from one source
+	 * 
+	 * @param source
+	 *            SOURCE_HOME, or see getListSource
+	 * @return List of the source's tweets, newest first
+	 */
+	public List<Tweet> getTweets(String source) {
+		List<Tweet> tweets = new ArrayList<Tweet>();
+		Cursor cursor = database.query(TweetyCloudSQLiteHelper.TABLE_TWEETS,
+				allColumns, TweetyCloudSQLiteHelper.COLUMN_SOURCE + " = ?",
+				new String[] { source }, null, null,
+				TweetyCloudSQLiteHelper.COLUMN_CREATED_AT + " desc");
+		cursor.moveToFirst();
+		while (!cursor.isAfterLast()) {
+			Tweet t = cursorToTweet(cursor);
+			tweets.add(t);
+			cursor.moveToNext();
+		}
+		// Make sure to close the cursor
+		cursor.close();
+		return tweets;
+	}
+
+	/**
+	 * Go through the text of the saved tweets without loading them all. The
+	 * text is handed over in one reused buffer, so memory use stays the same
+	 * however many tweets are saved.
+	 * 
+	 * @param source
+	 *            SOURCE_HOME, or see getListSource. Null for all sources.
+	 * @param visitor
+	 *            Called with the text of each tweet
+	 */
+	public void visitTweetText(String source, TextVisitor visitor) {
+		if (source == null) {
+			TweetyCloudSQLiteHelper.visitText(database, null, null, visitor);
+		} else {
+			TweetyCloudSQLiteHelper.visitText(database,
+					TweetyCloudSQLiteHelper.COLUMN_SOURCE + " = ?",
+					new String[] { source }, visitor);
+		}
+	}
+
+	/**
+	 * Go through the text of the saved tweets from a time window, as
+	 * visitTweetText(source, visitor). Tweets saved without a time are left
+	 * out.
+	 * 
+	 * @param source
+	 *            SOURCE_HOME, or see getListSource. Null for all sources.
+	 * @param since
+	 *            Start of the window, in epoch milliseconds
+	 * @param until
+	 *            End of the window (exclusive), in epoch milliseconds
+	 * @param visitor
+	 *            Called with the text of each tweet
+	 */
+	public void visitTweetText(String source, long since, long until,
+			TextVisitor visitor) {
+		String selection = TweetyCloudSQLiteHelper.COLUMN_CREATED_AT
+				+ " >= ? and " + TweetyCloudSQLiteHelper.COLUMN_CREATED_AT
+				+ " < ?";
+		String[] args;
+		if (source == null) {
+			args = new String[] { Long.toString(since), Long.toString(until) };
+		} else {
+			selection = TweetyCloudSQLiteHelper.COLUMN_SOURCE + " = ? and "
+					+ selection;
+			args = new String[] { source, Long.toString(since),
+					Long.toString(until) };
+		}
+		TweetyCloudSQLiteHelper.visitText(database, selection, args, visitor);
+	}
+
+	/**
+	 * Get all tweets in the database table. This loads every tweet into
+	 * memory: to go through the text use visitTweetText instead.
 	 * 
 	 * @return List of all tweets in the database table
 	 */
@@ -117,6 +667,100 @@ public class TweetDataSource {
 		return tweets;
 	}
 
+	/**
+	 * Save a raw response from Twitter, compressed, so it can be shown at the
+	 * next start before (or without) fetching it again
+	 * 
+	 * @param key
+	 *            What the response is, e.g. PAGE_LISTS
+	 * @param json
+	 *            The response
+	 */
+	public void putCachedPage(String key, String json) {
+		ContentValues values = new ContentValues();
+		values.put(TweetyCloudSQLiteHelper.COLUMN_PAGE_KEY, key);
+		values.put(TweetyCloudSQLiteHelper.COLUMN_DATA, deflate(json));
+		values.put(TweetyCloudSQLiteHelper.COLUMN_SAVED_AT,
+				System.currentTimeMillis());
+		database.insertWithOnConflict(TweetyCloudSQLiteHelper.TABLE_PAGE_CACHE,
+				null, values, SQLiteDatabase.CONFLICT_REPLACE);
+	}
+
+	/**
+	 * Get a raw response saved by putCachedPage
+	 * 
+	 * @param key
+	 *            What the response is, e.g. PAGE_LISTS
+	 * @return The response, or null if there isn't one
+	 */
+	public String getCachedPage(String key) {
+		Cursor cursor = database.query(
+				TweetyCloudSQLiteHelper.TABLE_PAGE_CACHE,
+				new String[] { TweetyCloudSQLiteHelper.COLUMN_DATA },
+				TweetyCloudSQLiteHelper.COLUMN_PAGE_KEY + " = ?",
+				new String[] { key }, null, null, null);
+		try {
+			if (!cursor.moveToFirst()) {
+				return null;
+			}
+			return inflate(cursor.getBlob(0));
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Delete all the saved responses, e.g. when the user logs out
+	 */
+	public void clearCachedPages() {
+		database.delete(TweetyCloudSQLiteHelper.TABLE_PAGE_CACHE, null, null);
+	}
+
+	/**
+	 * Compress text, for putCachedPage
+	 * 
+	 * @param text
+	 *            Text to compress
+	 * @return The text in UTF-8, deflated
+	 */
+	private static byte[] deflate(String text) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DeflaterOutputStream out = new DeflaterOutputStream(bytes);
+			out.write(text.getBytes("UTF-8"));
+			out.close();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			// can't happen with a ByteArrayOutputStream
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Decompress text, for getCachedPage
+	 * 
+	 * @param data
+	 *            Text compressed by deflate
+	 * @return The text
+	 */
+	private static String inflate(byte[] data) {
+		try {
+			InflaterInputStream in = new InflaterInputStream(
+					new ByteArrayInputStream(data));
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+					data.length * 4);
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				bytes.write(buffer, 0, n);
+			}
+			in.close();
+			return new String(bytes.toByteArray(), "UTF-8");
+		} catch (IOException e) {
+			throw new SQLException("Corrupt cached page: " + e);
+		}
+	}
+
 	/**
 	 * Clear the database table
 	 */
@@ -0,0 +1,128 @@
+package com.tweetycloud;
+
+import java.math.BigInteger;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import winterwell.jtwitter.Status;
+
+/*
+ Copyright (c) 2012 Shigeru Sasao
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ The Software shall be used for Good, not Evil.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+/**
+ * TweetStore is where saved tweets live. TweetDataSource keeps them in SQLite
+ * on Android; SegmentTweetStore keeps them in plain files, so the same data
+ * path can run (and be benchmarked) on any JVM.
+ * 
+ * @author Shigeru Sasao
+ * 
+ */
+public interface TweetStore {
+
+	/**
+	 * Receives the text of saved tweets, one at a time, from visitTweetText
+	 */
+	public interface TextVisitor {
+		/**
+		 * @param text
+		 *            Buffer holding the tweet text. It is reused for the next
+		 *            tweet, so copy anything you want to keep.
+		 * @param length
+		 *            Length of the text in the buffer
+		 */
+		void visit(char[] text, int length);
+	}
+
+	/**
+	 * Save tweets, merging them into the tweets already saved from the same
+	 * source: a tweet which is already there is left as it is.
+	 * 
+	 * @param bySource
+	 *            Tweets to save, by source (e.g. SOURCE_HOME)
+	 */
+	void saveTweets(Map<String, ? extends Collection<Status>> bySource);
+
+	/**
+	 * Get the newest tweet id saved from a source, for fetching only newer
+	 * tweets with Twitter.setSinceId
+	 * 
+	 * @param source
+	 *            Where the tweets came from
+	 * @return The newest tweet id, or null if there are none
+	 */
+	BigInteger getSinceId(String source);
+
+	/**
+	 * Get the sources which have saved tweets
+	 * 
+	 * @return Source names, e.g. SOURCE_HOME
+	 */
+	List<String> getSources();
+
+	/**
+	 * Go through the text of the saved tweets without loading them all
+	 * 
+	 * @param source
+	 *            Where the tweets came from. Null for all sources.
+	 * @param visitor
+	 *            Called with the text of each tweet
+	 */
+	void visitTweetText(String source, TextVisitor visitor);
+
+	/**
+	 * Go through the text of the saved tweets from a time window. Tweets
+	 * saved without a time are left out.
+	 * 
+	 * @param source
+	 *            Where the tweets came from. Null for all sources.
+	 * @param since
+	 *            Start of the window, in epoch milliseconds
+	 * @param until
+	 *            End of the window (exclusive), in epoch milliseconds
+	 * @param visitor
+	 *            Called with the text of each tweet
+	 */
+	void visitTweetText(String source, long since, long until,
+			TextVisitor visitor);
+
+	/**
+	 * Delete some of the oldest tweets from a source which the retention
+	 * policy doesn't keep. Call again until it returns less than chunkSize.
+	 * 
+	 * @param source
+	 *            Where the tweets came from
+	 * @param policy
+	 *            What to keep
+	 * @param chunkSize
+	 *            Most tweets to delete
+	 * @return Number of tweets deleted
+	 */
+	int pruneTweets(String source, RetentionPolicy policy, int chunkSize);
+
+	/**
+	 * Close the store
+	 */
+	void close();
+}
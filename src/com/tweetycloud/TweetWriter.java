@@ -0,0 +1,557 @@
+package com.tweetycloud;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import winterwell.jtwitter.Status;
+import android.content.Context;
+import android.util.Log;
+
+/*
+ Copyright (c) 2012 Shigeru Sasao
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ The Software shall be used for Good, not Evil.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+/**
+ * TweetWriter saves tweets on its own thread, so fetching and parsing the next
+ * page of tweets overlaps with writing the last one. It is the only writer
+ * of tweets: whilst it writes, the cloud reads through its own
+ * TweetDataSource (which, with write-ahead logging, never waits for it).
+ * 
+ * Batches wait in a bounded queue. If the writer falls behind, save() waits
+ * for room rather than dropping tweets. Whatever has queued up whilst a
+ * batch was being written is then written together, in one transaction
+ * (group commit).
+ * 
+ * When idle, the writer also deletes tweets which the retention policies
+ * don't keep, a chunk at a time, and then gives the freed space back to the
+ * system (incremental vacuum). A save that arrives meanwhile waits for one
+ * chunk at most.
+ * 
+ * The app shares one writer (see get), which lives as long as the process,
+ * so activities can come and go, e.g. on rotation, whilst a fetch is still
+ * saving. Once closed, a writer refuses new work rather than waiting for a
+ * thread which has gone.
+ * 
+ * @author Shigeru Sasao
+ * 
+ */
+public class TweetWriter {
+
+	/** Default number of batches which can wait to be written */
+	public static final int DEFAULT_QUEUE_SIZE = 16;
+
+	/** Most tweets deleted per transaction when pruning */
+	public static final int PRUNE_CHUNK_SIZE = 200;
+
+	/** Pages given back per step of compaction */
+	private static final int VACUUM_PAGES = 64;
+
+	/** How long the writer waits for saves before pruning or compacting */
+	private static final long IDLE_MILLIS = 2000;
+
+	/** Pause between steps of pruning or compacting, to let saves in */
+	private static final long STEP_MILLIS = 100;
+
+	/** Queued to stop the thread */
+	private static final Object STOP = new Object();
+
+	/** Queued to wake the thread when a retention policy changes */
+	private static final Object RETENTION = new Object();
+
+	/** Queued to delete the cached pages */
+	private static final Object CLEAR_CACHE = new Object();
+
+	/** Queued to delete the saved tweets, terms and cached pages */
+	private static final Object CLEAR_ALL = new Object();
+
+	/** A flush() waiting for what was queued before it to be written */
+	private static class Flush {
+		final CountDownLatch done = new CountDownLatch(1);
+
+		/** Set if the writer got to it, rather than stopping first */
+		volatile boolean written;
+	}
+
+	/** Tweets from one source, waiting to be written */
+	private static class Batch {
+		final String source;
+		final Collection<Status> statuses;
+
+		Batch(String source, Collection<Status> statuses) {
+			this.source = source;
+			this.statuses = statuses;
+		}
+	}
+
+	/** A raw response from Twitter, waiting to be cached */
+	private static class CachedPage {
+		final String key;
+		final String json;
+
+		CachedPage(String key, String json) {
+			this.key = key;
+			this.json = json;
+		}
+	}
+
+	/** Data access object, only used by the thread */
+	private final TweetDataSource dao;
+
+	/** Set if the database has space to give back. Only used by the thread */
+	private boolean compactDue;
+
+	/** Retention policy for sources without their own */
+	private volatile RetentionPolicy defaultPolicy = RetentionPolicy.KEEP_ALL;
+
+	/** The last failure, reported by flush() */
+	private volatile RuntimeException failure;
+
+	/** Set if the database is open. Only used by the thread */
+	private boolean open;
+
+	/** Retention policy for each source */
+	private final Map<String, RetentionPolicy> policies = new HashMap<String, RetentionPolicy>();
+
+	/** Set when every source should be checked against its policy */
+	private volatile boolean pruneAll;
+
+	/** Sources which may have tweets to prune. Only used by the thread */
+	private final Set<String> toPrune = new LinkedHashSet<String>();
+
+	/** Batches, cached pages, flush latches and markers such as STOP */
+	private final BlockingQueue<Object> queue;
+
+	/** The writer thread */
+	private final Thread thread;
+
+	/**
+	 * Set by close(), or when the thread stops. After this nothing more can
+	 * be queued.
+	 */
+	private volatile boolean closed;
+
+	/** The app's writer, see get */
+	private static TweetWriter shared;
+
+	/**
+	 * Get the app's writer, starting it if need be. It is not tied to any
+	 * activity, so don't close it when an activity is destroyed.
+	 * 
+	 * @param context
+	 *            Android context. Only its application context is kept.
+	 * @return The shared writer
+	 */
+	public static synchronized TweetWriter get(Context context) {
+		if (shared == null || shared.closed) {
+			shared = new TweetWriter(context.getApplicationContext());
+		}
+		return shared;
+	}
+
+	/**
+	 * Constructor. Starts the writer thread.
+	 * 
+	 * @param context
+	 *            Android context
+	 */
+	public TweetWriter(Context context) {
+		this(context, DEFAULT_QUEUE_SIZE);
+	}
+
+	/**
+	 * Constructor. Starts the writer thread.
+	 * 
+	 * @param context
+	 *            Android context
+	 * @param queueSize
+	 *            Number of batches which can wait to be written
+	 */
+	public TweetWriter(Context context, int queueSize) {
+		dao = new TweetDataSource(context);
+		queue = new ArrayBlockingQueue<Object>(Math.max(1, queueSize));
+		thread = new Thread("TweetWriter") {
+			@Override
+			public void run() {
+				runLoop();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queue tweets to be saved, as TweetDataSource.saveTweets(statuses,
+	 * source). Waits if the queue is full.
+	 * 
+	 * @param statuses
+	 *            Status classes containing the tweets. Don't change the
+	 *            collection afterwards.
+	 * @param source
+	 *            SOURCE_HOME, or see TweetDataSource.getListSource
+	 */
+	public void save(Collection<Status> statuses, String source) {
+		if (statuses.isEmpty()) {
+			return;
+		}
+		put(new Batch(source, statuses));
+	}
+
+	/**
+	 * Queue an item, waiting for room if need be
+	 * 
+	 * @param item
+	 *            Anything the thread understands
+	 * @return false if interrupted
+	 * @throws IllegalStateException
+	 *             If the writer has been closed
+	 */
+	private boolean put(Object item) {
+		try {
+			// wait in steps, so a close whilst waiting isn't missed
+			while (!queue.offer(item, STEP_MILLIS, TimeUnit.MILLISECONDS)) {
+				checkOpen();
+			}
+			checkOpen();
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * @throws IllegalStateException
+	 *             If the writer has been closed
+	 */
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("TweetWriter is closed");
+		}
+	}
+
+	/**
+	 * Queue a raw response from Twitter to be cached, as
+	 * TweetDataSource.putCachedPage. It is compressed on the writer thread.
+	 * 
+	 * @param key
+	 *            What the response is, e.g. TweetDataSource.PAGE_LISTS
+	 * @param json
+	 *            The response
+	 */
+	public void cachePage(String key, String json) {
+		put(new CachedPage(key, json));
+	}
+
+	/**
+	 * Queue deleting the cached responses, e.g. when the user logs out
+	 */
+	public void clearCachedPages() {
+		put(CLEAR_CACHE);
+	}
+
+	/**
+	 * Queue deleting everything saved: tweets, terms and cached pages, e.g.
+	 * when the user logs out. Tweets queued before this are not saved.
+	 */
+	public void clearTweets() {
+		put(CLEAR_ALL);
+	}
+
+	/**
+	 * Wait until everything queued so far has been saved, e.g. before showing
+	 * the cloud.
+	 * 
+	 * @throws RuntimeException
+	 *             If saving failed since the last flush
+	 * @throws IllegalStateException
+	 *             If the writer is closed, or stopped before getting to it
+	 */
+	public void flush() {
+		Flush flush = new Flush();
+		if (!put(flush)) {
+			return;
+		}
+		try {
+			flush.done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		if (!flush.written) {
+			throw new IllegalStateException(
+					"TweetWriter closed before saving");
+		}
+		RuntimeException e = failure;
+		failure = null;
+		if (e != null) {
+			throw e;
+		}
+	}
+
+	/**
+	 * Save what's queued, then stop the thread and close the database. After
+	 * this, save and flush throw IllegalStateException.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		try {
+			// the thread is still taking items, so this won't wait long
+			queue.put(STOP);
+		} catch (InterruptedException e) {
+			thread.interrupt();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Get the retention policy for a source
+	 * 
+	 * @param source
+	 *            SOURCE_HOME, or see TweetDataSource.getListSource. Null for
+	 *            the default.
+	 * @return What to keep, never null
+	 */
+	public RetentionPolicy getRetention(String source) {
+		if (source == null) {
+			return defaultPolicy;
+		}
+		RetentionPolicy policy;
+		synchronized (policies) {
+			policy = policies.get(source);
+		}
+		return policy == null ? defaultPolicy : policy;
+	}
+
+	/**
+	 * Set how many tweets to keep from a source. Older tweets are deleted in
+	 * the background.
+	 * 
+	 * @param source
+	 *            SOURCE_HOME, or see TweetDataSource.getListSource. Null to
+	 *            set the default, for sources without a policy of their own.
+	 * @param policy
+	 *            What to keep. Null to go back to the default.
+	 */
+	public void setRetention(String source, RetentionPolicy policy) {
+		if (source == null) {
+			defaultPolicy = policy == null ? RetentionPolicy.KEEP_ALL : policy;
+		} else {
+			synchronized (policies) {
+				if (policy == null) {
+					policies.remove(source);
+				} else {
+					policies.put(source, policy);
+				}
+			}
+		}
+		pruneAll = true;
+		// wake the thread. If the queue is full, it's busy anyway.
+		queue.offer(RETENTION);
+	}
+
+	/**
+	 * Open the database, if it isn't already
+	 */
+	private void open() {
+		if (!open) {
+			dao.open();
+			open = true;
+		}
+	}
+
+	/**
+	 * Save or clear the cached pages. A failure here isn't reported: the
+	 * cache is only there to save time.
+	 * 
+	 * @param item
+	 *            A CachedPage or CLEAR_CACHE
+	 */
+	private void writeCache(Object item) {
+		try {
+			open();
+			if (item == CLEAR_CACHE) {
+				dao.clearCachedPages();
+			} else {
+				CachedPage page = (CachedPage) item;
+				dao.putCachedPage(page.key, page.json);
+			}
+		} catch (RuntimeException e) {
+			Log.w("TweetyCloud", e.toString());
+		}
+	}
+
+	/**
+	 * Delete everything saved, and any pruning or compacting still to do
+	 */
+	private void clear() {
+		toPrune.clear();
+		pruneAll = false;
+		compactDue = false;
+		try {
+			open();
+			dao.clearTweets();
+		} catch (RuntimeException e) {
+			Log.w("TweetyCloud", e.toString());
+			failure = e;
+		}
+	}
+
+	/**
+	 * Do one step of pruning or compacting, if there is any to do. Called by
+	 * the thread when idle.
+	 */
+	private void maintain() {
+		try {
+			open();
+			if (pruneAll) {
+				pruneAll = false;
+				toPrune.addAll(dao.getSources());
+			}
+			Iterator<String> it = toPrune.iterator();
+			if (it.hasNext()) {
+				String source = it.next();
+				int deleted = dao.pruneTweets(source, getRetention(source),
+						PRUNE_CHUNK_SIZE);
+				if (deleted > 0) {
+					compactDue = true;
+				}
+				if (deleted < PRUNE_CHUNK_SIZE) {
+					it.remove();
+				}
+			} else if (compactDue) {
+				compactDue = dao.compact(VACUUM_PAGES);
+			}
+		} catch (RuntimeException e) {
+			// don't keep retrying
+			Log.w("TweetyCloud", e.toString());
+			toPrune.clear();
+			compactDue = false;
+		}
+	}
+
+	/**
+	 * Write queued batches until stopped
+	 */
+	private void runLoop() {
+		List<Object> items = new ArrayList<Object>();
+		Map<String, List<Status>> bySource = new LinkedHashMap<String, List<Status>>();
+		List<Flush> flushed = new ArrayList<Flush>();
+		try {
+			boolean stop = false;
+			boolean idle = false;
+			while (!stop) {
+				// wait for a batch, then take everything else that's queued.
+				// With pruning or compacting to do, only wait a while.
+				Object first;
+				if (pruneAll || !toPrune.isEmpty() || compactDue) {
+					first = queue.poll(idle ? STEP_MILLIS : IDLE_MILLIS,
+							TimeUnit.MILLISECONDS);
+					if (first == null) {
+						idle = true;
+						maintain();
+						continue;
+					}
+				} else {
+					first = queue.take();
+				}
+				idle = false;
+				items.add(first);
+				queue.drainTo(items);
+				for (Object item : items) {
+					if (item == STOP) {
+						stop = true;
+					} else if (item == RETENTION) {
+						// pruneAll is already set
+					} else if (item == CLEAR_ALL) {
+						// tweets queued before this belong to the old account
+						bySource.clear();
+						clear();
+					} else if (item instanceof Flush) {
+						flushed.add((Flush) item);
+					} else if (item == CLEAR_CACHE
+							|| item instanceof CachedPage) {
+						writeCache(item);
+					} else {
+						Batch batch = (Batch) item;
+						List<Status> statuses = bySource.get(batch.source);
+						if (statuses == null) {
+							statuses = new ArrayList<Status>();
+							bySource.put(batch.source, statuses);
+						}
+						statuses.addAll(batch.statuses);
+					}
+				}
+				if (!bySource.isEmpty()) {
+					try {
+						open();
+						dao.saveTweets(bySource);
+					} catch (RuntimeException e) {
+						Log.w("TweetyCloud", e.toString());
+						failure = e;
+					}
+					// the new tweets may push old ones out
+					toPrune.addAll(bySource.keySet());
+				}
+				// anything flushed before now has been written
+				for (Flush flush : flushed) {
+					flush.written = true;
+					flush.done.countDown();
+				}
+				items.clear();
+				bySource.clear();
+				flushed.clear();
+			}
+		} catch (InterruptedException e) {
+			// stop
+		} finally {
+			closed = true;
+			if (open) {
+				dao.close();
+			}
+			// don't leave anyone waiting on a flush which won't happen
+			items.addAll(flushed);
+			queue.drainTo(items);
+			for (Object item : items) {
+				if (item instanceof Flush) {
+					((Flush) item).done.countDown();
+				}
+			}
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package com.tweetycloud;
 
+import java.math.BigInteger;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
@@ -93,6 +94,7 @@ public class TweetyCloudActivity extends ListActivity {
 	private static final int HANDLER_MESSAGE_COMPLETED = 2;
 	private static final int HANDLER_MESSAGE_ERROR = 3;
 	private static final int HANDLER_MESSAGE_STOP_THREAD = 4;
+	private static final int HANDLER_MESSAGE_OFFLINE = 5;
 
 	/** File name for application preferences */
 	public static final String PREFS_NAME = "TwitterCloudPrefsFile";
@@ -106,6 +108,13 @@ public class TweetyCloudActivity extends ListActivity {
 	/** Number of most recent tweets to retrieve */
 	private static final int PER_PAGE = 200;
 
+	/**
+	 * How many saved tweets to keep from each source: 30 days, at most 10000
+	 * tweets and 2MB of text
+	 */
+	private static final RetentionPolicy RETENTION = new RetentionPolicy(
+			30L * 24 * 60 * 60 * 1000, 10000, 2 * 1024 * 1024);
+
 	/** Reference to self */
 	private TweetyCloudActivity self;
 
@@ -133,8 +142,14 @@ public class TweetyCloudActivity extends ListActivity {
 	/** Adapter for the Twitter list */
 	private ListAdapter myListAdapter;
 
-	/** Data access object for retrieved tweets */
-	private TweetDataSource dao;
+	/** Saves retrieved tweets in the background */
+	private TweetWriter writer;
+
+	/** Where the tweets being retrieved are saved. Null if not retrieving. */
+	private volatile String fetchSource;
+
+	/** Held whilst retrieving tweets, so only one retrieval runs at a time */
+	private final Object fetchLock = new Object();
 
 	/** Twitter list selected by the user */
 	private TwitterList selectedList;
@@ -163,7 +178,7 @@ public class TweetyCloudActivity extends ListActivity {
 
 				// The Twitter list is ready to be shown to user
 				case HANDLER_MESSAGE_LIST_CREATED:
-					self.setListAdapter(myListAdapter);
+					showLists((List<TwitterList>) msg.obj);
 					break;
 
 				// Authorization succeeded and tokens have been retrieved
@@ -184,6 +199,13 @@ public class TweetyCloudActivity extends ListActivity {
 					stopThread = false;
 					break;
 
+				// Couldn't retrieve tweets, but some were saved last time
+				case HANDLER_MESSAGE_OFFLINE:
+					Toast.makeText(self,
+							"Couldn't reach Twitter. Showing saved tweets.",
+							Toast.LENGTH_LONG).show();
+					break;
+
 				// Error occured while trying to retrieve tweets
 				case HANDLER_MESSAGE_ERROR:
 					progDialog.dismiss();
@@ -198,8 +220,9 @@ public class TweetyCloudActivity extends ListActivity {
 			}
 		};
 
-		// Initialize data source
-		dao = new TweetDataSource(this);
+		// the writer outlives this activity, e.g. across a rotation
+		writer = TweetWriter.get(this);
+		writer.setRetention(null, RETENTION);
 
 		// Skip authentication if tokens already exist
 		settings = getSharedPreferences(PREFS_NAME, 0);
@@ -310,24 +333,74 @@ public class TweetyCloudActivity extends ListActivity {
 		// get twitter list for the user
 		new Thread() {
 			public void run() {
-				myList = jtwitter.getListsAll(jtwitter.getSelf(), self);
-				List<String> myListString = new ArrayList<String>();
-				myListString.add("All");
-				for (TwitterList l : myList) {
-					myListString.add(l.getName());
+				// show the lists saved last time straight away
+				try {
+					// a data source of its own: fetches run alongside this
+					TweetDataSource dao = new TweetDataSource(self);
+					String listsJson;
+					dao.open();
+					try {
+						listsJson = dao
+								.getCachedPage(TweetDataSource.PAGE_LISTS);
+					} finally {
+						dao.close();
+					}
+					if (listsJson != null) {
+						Message msg = Message.obtain();
+						msg.what = HANDLER_MESSAGE_LIST_CREATED;
+						msg.obj = jtwitter.getListsFromJson(listsJson, null);
+						threadHandler.sendMessage(msg);
+						Log.i("TweetyCloud", "Loaded cached lists");
+					}
+				} catch (Exception e) {
+					// never mind, they're about to be fetched
+					Log.w("TweetyCloud", e.toString());
+				}
+
+				// then fetch them again (onListsJson caches the new ones)
+				try {
+					Message msg = Message.obtain();
+					msg.what = HANDLER_MESSAGE_LIST_CREATED;
+					msg.obj = jtwitter.getListsAll(jtwitter.getSelf(), self);
+					threadHandler.sendMessage(msg);
+					Log.i("TweetyCloud", "Fetched lists");
+				} catch (Exception e) {
+					// keep showing the cached lists, if any
+					Log.w("TweetyCloud", e.toString());
 				}
-				Log.i("TweetyCloud", "Fetched lists");
-
-				// show the list to user
-				myListAdapter = new ArrayAdapter<String>(self, R.layout.main,
-						R.id.text1, myListString);
-				Message msg = Message.obtain();
-				msg.what = HANDLER_MESSAGE_LIST_CREATED;
-				threadHandler.sendMessage(msg);
 			}
 		}.start();
 	}
 
+	/**
+	 * Show the user's Twitter lists. Called on the main thread.
+	 * 
+	 * @param lists
+	 *            The user's Twitter lists
+	 */
+	private void showLists(List<TwitterList> lists) {
+		myList = lists;
+		List<String> myListString = new ArrayList<String>();
+		myListString.add("All");
+		for (TwitterList l : myList) {
+			myListString.add(l.getName());
+		}
+		myListAdapter = new ArrayAdapter<String>(self, R.layout.main,
+				R.id.text1, myListString);
+		self.setListAdapter(myListAdapter);
+	}
+
+	/**
+	 * Called by Twitter with the raw json of the user's lists, so it can be
+	 * cached for the next start
+	 * 
+	 * @param json
+	 *            Response from Twitter
+	 */
+	public void onListsJson(String json) {
+		writer.cachePage(TweetDataSource.PAGE_LISTS, json);
+	}
+
 	/**
 	 * onFail is called when Twitter authorisation failed.
 	 * 
@@ -373,15 +446,57 @@ public class TweetyCloudActivity extends ListActivity {
 		stopThread = false;
 		new Thread() {
 			public void run() {
-				List<Status> statuses;
+				// 'All' is selected if selectedList is null. Otherwise a
+				// specific Twitter list is selected.
+				final TwitterList list = selectedList;
+				String source = list == null
+						? TweetyCloudSQLiteHelper.SOURCE_HOME
+						: TweetDataSource.getListSource(list);
+				BigInteger sinceId = null;
+				boolean shown = false;
 				try {
-					// 'All' is selected if selectedList is null. Otherwise a
-					// specific Twitter list is selected.
-					if (selectedList == null) {
-						jtwitter.setMaxResults(PER_PAGE);
-						statuses = jtwitter.getHomeTimeline(self);
-					} else {
-						statuses = selectedList.getStatuses(self, PER_PAGE);
+					// Only fetch tweets newer than the ones already saved.
+					// A data source of its own, as other threads use theirs.
+					TweetDataSource dao = new TweetDataSource(self);
+					dao.open();
+					try {
+						sinceId = dao.getSinceId(source);
+					} finally {
+						dao.close();
+					}
+					// Some saved already? Then show them straight away, and
+					// refresh in the background. The new tweets are in the
+					// cloud next time (or live, for 'All').
+					if (sinceId != null && !stopThread) {
+						Message msg = Message.obtain();
+						msg.what = HANDLER_MESSAGE_COMPLETED;
+						threadHandler.sendMessage(msg);
+						showCloud(list, source);
+						shown = true;
+					}
+					// One fetch at a time: jtwitter and fetchSource are shared
+					synchronized (fetchLock) {
+						// When topping up, page all the way down to the
+						// newest saved tweet -- or older new ones would be
+						// missed for good. Keeping more than RETENTION allows
+						// is pointless though.
+						jtwitter.setMaxResults(sinceId == null ? PER_PAGE
+								: RETENTION.getMaxRows());
+						jtwitter.setSinceId(sinceId);
+						// Each page is saved as it arrives (see onStatusPage)
+						fetchSource = source;
+						try {
+							if (list == null) {
+								jtwitter.getHomeTimeline(self);
+							} else {
+								list.getStatuses(self, PER_PAGE);
+							}
+						} finally {
+							fetchSource = null;
+						}
+					}
+					if (shown) {
+						return;
 					}
 					if (stopThread) {
 						Message msg = Message.obtain();
@@ -390,17 +505,14 @@ public class TweetyCloudActivity extends ListActivity {
 						return;
 					}
 
-					// Save tweets to data source
-					dao.open();
-					dao.clearTweets();
-					for (Status s : statuses) {
-						dao.saveTweet(s);
-					}
-					dao.close();
+					// Wait for the new tweets to be merged into the saved ones
+					writer.flush();
 				} catch (Exception e) {
 					Log.w("TweetyCloud", e.toString());
 					Message msg = Message.obtain();
-					msg.what = HANDLER_MESSAGE_ERROR;
+					// if the cloud is up, it's showing the saved tweets
+					msg.what = shown ? HANDLER_MESSAGE_OFFLINE
+							: HANDLER_MESSAGE_ERROR;
 					threadHandler.sendMessage(msg);
 					return;
 				}
@@ -417,14 +529,42 @@ public class TweetyCloudActivity extends ListActivity {
 					msg.what = HANDLER_MESSAGE_COMPLETED;
 					threadHandler.sendMessage(msg);
 				}
-
-				// Start tag cloud activity
-				Intent myIntent = new Intent(self, WordCloudActivity.class);
-				self.startActivity(myIntent);
+				showCloud(list, source);
 			}
 		}.start();
 	}
 
+	/**
+	 * Start the tag cloud activity. The home timeline ('All') can be kept up
+	 * to date live, by following the user's friends.
+	 * 
+	 * @param list
+	 *            The Twitter list, or null for the home timeline
+	 * @param source
+	 *            Where its tweets are saved
+	 */
+	private void showCloud(TwitterList list, String source) {
+		Intent myIntent = new Intent(self, WordCloudActivity.class);
+		myIntent.putExtra(WordCloudActivity.EXTRA_LIVE, list == null);
+		myIntent.putExtra(WordCloudActivity.EXTRA_SOURCE, source);
+		self.startActivity(myIntent);
+	}
+
+	/**
+	 * Called by Twitter with each page of tweets as soon as it arrives. The
+	 * page is queued for saving, so the next page is fetched whilst this one
+	 * is written.
+	 * 
+	 * @param page
+	 *            Tweets just fetched
+	 */
+	public void onStatusPage(List<Status> page) {
+		String source = fetchSource;
+		if (source != null) {
+			writer.save(page, source);
+		}
+	}
+
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
 		MenuInflater inflater = getMenuInflater();
@@ -458,6 +598,8 @@ public class TweetyCloudActivity extends ListActivity {
 		editor.remove(USER_TOKEN);
 		editor.remove(USER_TOKEN_SECRET);
 		editor.commit();
+		// the saved tweets are the old account's
+		writer.clearTweets();
 		finish();
 	}
 
@@ -1,8 +1,15 @@
 package com.tweetycloud;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import android.content.Context;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 /*
@@ -44,22 +51,213 @@ public class TweetyCloudSQLiteHelper extends SQLiteOpenHelper {
 	public static final String COLUMN_TWEET_ID = "tweet_id";
 	public static final String COLUMN_USER = "tweet_user";
 	public static final String COLUMN_TEXT = "tweet";
+	public static final String COLUMN_SOURCE = "source";
+	public static final String COLUMN_CREATED_AT = "created_at";
+	public static final String COLUMN_USER_ID = "user_id";
+	public static final String COLUMN_RETWEET = "retweet";
+	public static final String COLUMN_LANG = "lang";
+
+	/** Unique index on source and tweet id, for upserts */
+	public static final String INDEX_SOURCE_TWEET_ID = "tweets_source_tweet_id";
+
+	/**
+	 * Index on source and time, for the tweets from a source between two
+	 * times. It also covers the tweet id, so counting or paging through a
+	 * time window needn't touch the table.
+	 */
+	public static final String INDEX_SOURCE_CREATED_AT = "tweets_source_created_at";
+
+	/** Term-frequency table and table columns. Also has COLUMN_SOURCE */
+	public static final String TABLE_TERMS = "terms";
+	public static final String COLUMN_TERM = "term";
+	public static final String COLUMN_COUNT = "count";
+
+	/** Index on source and count, for the top terms */
+	public static final String INDEX_SOURCE_COUNT = "terms_source_count";
+
+	/**
+	 * Full-text index of the tweet text. The docid of each row is the _id of
+	 * the tweet.
+	 */
+	public static final String TABLE_TWEETS_FTS = "tweets_fts";
+
+	/**
+	 * Cache of raw responses from Twitter (compressed), and its columns. See
+	 * TweetDataSource.getCachedPage.
+	 */
+	public static final String TABLE_PAGE_CACHE = "page_cache";
+	public static final String COLUMN_PAGE_KEY = "page_key";
+	public static final String COLUMN_DATA = "data";
+	public static final String COLUMN_SAVED_AT = "saved_at";
+
+	/** Source of tweets from the home timeline */
+	public static final String SOURCE_HOME = "home";
 
 	/** Database information */
 	private static final String DATABASE_NAME = "twittercloud.db";
-	private static final int DATABASE_VERSION = 1;
+	private static final int DATABASE_VERSION = 7;
+
+	/**
+	 * Value of PRAGMA auto_vacuum when free pages can be given back a few at
+	 * a time, by PRAGMA incremental_vacuum
+	 */
+	static final long AUTO_VACUUM_INCREMENTAL = 2;
 
-	/** Database creation sql statement */
+	/**
+	 * Switch to incremental vacuuming. Only takes effect before any tables
+	 * exist, or at the next VACUUM.
+	 */
+	private static final String AUTO_VACUUM = "PRAGMA auto_vacuum = "
+			+ AUTO_VACUUM_INCREMENTAL;
+
+	/**
+	 * Database creation sql statement. Tweet and user ids are integers (they
+	 * fit in 64 bits) and created_at is in epoch milliseconds.
+	 */
 	private static final String DATABASE_CREATE = "create table "
 			+ TABLE_TWEETS + "(" + COLUMN_ID
 			+ " integer primary key autoincrement, " + COLUMN_TWEET_ID
-			+ " text, " + COLUMN_USER + " text, " + COLUMN_TEXT
-			+ " text not null);";
+			+ " integer, " + COLUMN_USER + " text, " + COLUMN_USER_ID
+			+ " integer, " + COLUMN_TEXT + " text not null, " + COLUMN_SOURCE
+			+ " text not null default '" + SOURCE_HOME + "', "
+			+ COLUMN_CREATED_AT + " integer, " + COLUMN_RETWEET
+			+ " integer not null default 0, " + COLUMN_LANG + " text);";
+
+	/** Index creation sql statements */
+	private static final String[] INDEX_CREATE = {
+			"create unique index " + INDEX_SOURCE_TWEET_ID + " on "
+					+ TABLE_TWEETS + "(" + COLUMN_SOURCE + ", "
+					+ COLUMN_TWEET_ID + ");",
+			"create index " + INDEX_SOURCE_CREATED_AT + " on " + TABLE_TWEETS
+					+ "(" + COLUMN_SOURCE + ", " + COLUMN_CREATED_AT + ", "
+					+ COLUMN_TWEET_ID + ");" };
+
+	/** Term-frequency table creation sql statements */
+	private static final String[] TERMS_CREATE = {
+			"create table " + TABLE_TERMS + "(" + COLUMN_SOURCE
+					+ " text not null, " + COLUMN_TERM + " text not null, "
+					+ COLUMN_COUNT + " integer not null, primary key ("
+					+ COLUMN_SOURCE + ", " + COLUMN_TERM + "));",
+			"create index " + INDEX_SOURCE_COUNT + " on " + TABLE_TERMS + "("
+					+ COLUMN_SOURCE + ", " + COLUMN_COUNT + ");" };
+
+	/**
+	 * Full-text index creation sql statement. The index is kept up to date
+	 * by FTS_TRIGGERS.
+	 */
+	private static final String FTS_CREATE = "create virtual table "
+			+ TABLE_TWEETS_FTS + " using fts3(" + COLUMN_TEXT + ");";
+
+	/**
+	 * Triggers which keep the full-text index in step with every insert and
+	 * delete on the tweets table
+	 */
+	private static final String[] FTS_TRIGGERS = {
+			"create trigger " + TABLE_TWEETS_FTS + "_insert after insert on "
+					+ TABLE_TWEETS + " begin insert into " + TABLE_TWEETS_FTS
+					+ "(docid, " + COLUMN_TEXT + ") values (new." + COLUMN_ID
+					+ ", new." + COLUMN_TEXT + "); end;",
+			"create trigger " + TABLE_TWEETS_FTS + "_delete after delete on "
+					+ TABLE_TWEETS + " begin delete from " + TABLE_TWEETS_FTS
+					+ " where docid = old." + COLUMN_ID + "; end;" };
+
+	/** Index the tweets saved before the full-text index existed */
+	private static final String FTS_FILL = "insert into " + TABLE_TWEETS_FTS
+			+ "(docid, " + COLUMN_TEXT + ") select " + COLUMN_ID + ", "
+			+ COLUMN_TEXT + " from " + TABLE_TWEETS + ";";
+
+	/** Page cache creation sql statement */
+	private static final String PAGE_CACHE_CREATE = "create table "
+			+ TABLE_PAGE_CACHE + "(" + COLUMN_PAGE_KEY
+			+ " text primary key, " + COLUMN_DATA + " blob not null, "
+			+ COLUMN_SAVED_AT + " integer not null);";
+
+	/** Term-frequency sql statements, for addTermCounts */
+	private static final String TERM_INSERT = "insert or ignore into "
+			+ TABLE_TERMS + "(" + COLUMN_SOURCE + ", " + COLUMN_TERM + ", "
+			+ COLUMN_COUNT + ") values (?, ?, 0)";
+	private static final String TERM_UPDATE = "update " + TABLE_TERMS
+			+ " set " + COLUMN_COUNT + " = " + COLUMN_COUNT + " + ? where "
+			+ COLUMN_SOURCE + " = ? and " + COLUMN_TERM + " = ?";
+
+	/** Upgrade from version 1: add the new columns */
+	private static final String[] UPGRADE_1_TO_2 = {
+			"alter table " + TABLE_TWEETS + " add column " + COLUMN_SOURCE
+					+ " text not null default '" + SOURCE_HOME + "';",
+			"alter table " + TABLE_TWEETS + " add column " + COLUMN_CREATED_AT
+					+ " integer;",
+			// remove duplicates, or the unique index can't be created
+			"delete from " + TABLE_TWEETS + " where " + COLUMN_ID
+					+ " not in (select min(" + COLUMN_ID + ") from "
+					+ TABLE_TWEETS + " group by " + COLUMN_SOURCE + ", "
+					+ COLUMN_TWEET_ID + ");" };
+
+	/** Old tweets table, whilst upgrading from version 4 */
+	private static final String TABLE_TWEETS_OLD = "tweets_old";
+
+	/**
+	 * The tweets table as it was in version 5, for UPGRADE_4_TO_5. Later
+	 * versions add to this with upgrade steps of their own, so don't change
+	 * it to match DATABASE_CREATE.
+	 */
+	private static final String TWEETS_CREATE_V5 = "create table "
+			+ TABLE_TWEETS + "(" + COLUMN_ID
+			+ " integer primary key autoincrement, " + COLUMN_TWEET_ID
+			+ " integer, " + COLUMN_USER + " text, " + COLUMN_USER_ID
+			+ " integer, " + COLUMN_TEXT + " text not null, " + COLUMN_SOURCE
+			+ " text not null default '" + SOURCE_HOME + "', "
+			+ COLUMN_CREATED_AT + " integer, " + COLUMN_RETWEET
+			+ " integer not null default 0, " + COLUMN_LANG + " text);";
+
+	/**
+	 * Upgrade from version 4: SQLite can't change column types, so move the
+	 * tweets into a new table. Keeping each _id keeps the full-text index
+	 * valid. Retweets are spotted by their text, and the new user id and
+	 * language are left empty.
+	 */
+	private static final String[] UPGRADE_4_TO_5 = {
+			"drop trigger if exists " + TABLE_TWEETS_FTS + "_insert;",
+			"drop trigger if exists " + TABLE_TWEETS_FTS + "_delete;",
+			"drop index if exists " + INDEX_SOURCE_TWEET_ID + ";",
+			"alter table " + TABLE_TWEETS + " rename to " + TABLE_TWEETS_OLD
+					+ ";",
+			TWEETS_CREATE_V5,
+			"insert into " + TABLE_TWEETS + "(" + COLUMN_ID + ", "
+					+ COLUMN_TWEET_ID + ", " + COLUMN_USER + ", "
+					+ COLUMN_TEXT + ", " + COLUMN_SOURCE + ", "
+					+ COLUMN_CREATED_AT + ", " + COLUMN_RETWEET + ") select "
+					+ COLUMN_ID + ", cast(" + COLUMN_TWEET_ID
+					+ " as integer), " + COLUMN_USER + ", " + COLUMN_TEXT
+					+ ", " + COLUMN_SOURCE + ", " + COLUMN_CREATED_AT + ", "
+					+ COLUMN_TEXT + " like 'RT @%' from " + TABLE_TWEETS_OLD
+					+ ";", "drop table " + TABLE_TWEETS_OLD + ";" };
 
 	/** Database drop if exists sql statement */
 	private static final String DATABASE_DROP = "DROP TABLE IF EXISTS "
 			+ TABLE_TWEETS;
 
+	/** Term-frequency table drop if exists sql statement */
+	private static final String TERMS_DROP = "DROP TABLE IF EXISTS "
+			+ TABLE_TERMS;
+
+	/** Page cache drop if exists sql statement */
+	private static final String PAGE_CACHE_DROP = "DROP TABLE IF EXISTS "
+			+ TABLE_PAGE_CACHE;
+
+	/**
+	 * Full-text index drop if exists sql statement. Dropping the tweets table
+	 * drops the triggers.
+	 */
+	private static final String FTS_DROP = "DROP TABLE IF EXISTS "
+			+ TABLE_TWEETS_FTS;
+
+	/**
+	 * Set if the database must be rebuilt (once) to switch it to incremental
+	 * vacuuming. onCreate and onUpgrade run inside a transaction, where
+	 * VACUUM can't, so onOpen does it.
+	 */
+	private boolean vacuumDue;
+
 	/**
 	 * Constructor
 	 * 
@@ -72,26 +270,253 @@ public class TweetyCloudSQLiteHelper extends SQLiteOpenHelper {
 
 	@Override
 	public void onCreate(SQLiteDatabase database) {
+		// before the tables, so a new database starts out incremental
+		database.execSQL(AUTO_VACUUM);
+		vacuumDue = getAutoVacuum(database) != AUTO_VACUUM_INCREMENTAL;
 		database.execSQL(DATABASE_CREATE);
+		for (String sql : INDEX_CREATE) {
+			database.execSQL(sql);
+		}
+		for (String sql : TERMS_CREATE) {
+			database.execSQL(sql);
+		}
+		database.execSQL(FTS_CREATE);
+		for (String sql : FTS_TRIGGERS) {
+			database.execSQL(sql);
+		}
+		database.execSQL(PAGE_CACHE_CREATE);
 	}
 
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		Log.w(TweetyCloudSQLiteHelper.class.getName(),
+		Log.i(TweetyCloudSQLiteHelper.class.getName(),
 				"Upgrading database from version " + oldVersion + " to "
-						+ newVersion + ", which will destroy all old data");
-		db.execSQL(DATABASE_DROP);
-		onCreate(db);
+						+ newVersion + ", keeping old tweets");
+		if (oldVersion < 2) {
+			for (String sql : UPGRADE_1_TO_2) {
+				db.execSQL(sql);
+			}
+			db.execSQL(INDEX_CREATE[0]);
+		}
+		if (oldVersion < 3) {
+			for (String sql : TERMS_CREATE) {
+				db.execSQL(sql);
+			}
+			countAllTerms(db);
+		}
+		if (oldVersion < 4) {
+			db.execSQL(FTS_CREATE);
+			for (String sql : FTS_TRIGGERS) {
+				db.execSQL(sql);
+			}
+			db.execSQL(FTS_FILL);
+		}
+		if (oldVersion < 5) {
+			for (String sql : UPGRADE_4_TO_5) {
+				db.execSQL(sql);
+			}
+			for (String sql : INDEX_CREATE) {
+				db.execSQL(sql);
+			}
+			for (String sql : FTS_TRIGGERS) {
+				db.execSQL(sql);
+			}
+		}
+		if (oldVersion < 6) {
+			db.execSQL(PAGE_CACHE_CREATE);
+		}
+		if (oldVersion < 7) {
+			// an existing database needs a VACUUM to switch, see onOpen
+			vacuumDue = getAutoVacuum(db) != AUTO_VACUUM_INCREMENTAL;
+		}
+	}
+
+	/**
+	 * @param db
+	 *            SQLite database
+	 * @return The PRAGMA auto_vacuum setting: 0 for none, 1 for full, 2 for
+	 *         incremental
+	 */
+	private static long getAutoVacuum(SQLiteDatabase db) {
+		SQLiteStatement select = db.compileStatement("PRAGMA auto_vacuum");
+		try {
+			return select.simpleQueryForLong();
+		} finally {
+			select.close();
+		}
+	}
+
+	@Override
+	public void onOpen(SQLiteDatabase db) {
+		super.onOpen(db);
+		// Switch to incremental vacuuming, once, just after creating or
+		// upgrading: it rebuilds the database, like the other upgrade steps.
+		// From then on TweetDataSource.compact gives back space a few pages
+		// at a time.
+		if (vacuumDue && !db.isReadOnly()) {
+			vacuumDue = false;
+			try {
+				db.execSQL(AUTO_VACUUM);
+				db.execSQL("VACUUM");
+			} catch (SQLException e) {
+				// compact will just have nothing to do
+				Log.w(TweetyCloudSQLiteHelper.class.getName(),
+						"Can't switch to incremental vacuum: " + e);
+			}
+		}
+		// With write-ahead logging the cloud can read whilst TweetWriter
+		// writes. It needs Android 3.0 (API 11), so look for it rather than
+		// link to it: before that, readers wait for the writer.
+		if (!db.isReadOnly()) {
+			try {
+				SQLiteDatabase.class.getMethod("enableWriteAheadLogging")
+						.invoke(db);
+			} catch (Exception e) {
+				Log.i(TweetyCloudSQLiteHelper.class.getName(),
+						"No write-ahead logging: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Add to the term counts for a source. Call inside the transaction which
+	 * saves or deletes the tweets, so the counts always match the tweets.
+	 * 
+	 * @param db
+	 *            SQLite database
+	 * @param source
+	 *            Where the tweets came from
+	 * @param counts
+	 *            Change in count for each term. Negative for deleted tweets.
+	 */
+	static void addTermCounts(SQLiteDatabase db, String source,
+			TermCounts counts) {
+		SQLiteStatement insert = db.compileStatement(TERM_INSERT);
+		SQLiteStatement update = db.compileStatement(TERM_UPDATE);
+		try {
+			boolean decreased = false;
+			for (int slot = 0; slot < counts.capacity(); slot++) {
+				String term = counts.term(slot);
+				int delta = counts.count(slot);
+				if (term == null || delta == 0) {
+					continue;
+				}
+				if (delta > 0) {
+					insert.bindString(1, source);
+					insert.bindString(2, term);
+					insert.execute();
+				} else {
+					decreased = true;
+				}
+				update.bindLong(1, delta);
+				update.bindString(2, source);
+				update.bindString(3, term);
+				update.execute();
+			}
+			// drop terms which are no longer used
+			if (decreased) {
+				db.delete(TABLE_TERMS, COLUMN_SOURCE + " = ? and "
+						+ COLUMN_COUNT + " <= 0", new String[] { source });
+			}
+		} finally {
+			insert.close();
+			update.close();
+		}
+	}
+
+	/**
+	 * Add a tweet's terms to a set of counts, for addTermCounts
+	 * 
+	 * @param counts
+	 *            Change in count for each term
+	 * @param text
+	 *            Tweet text
+	 * @param delta
+	 *            1 for a saved tweet, -1 for a deleted one
+	 */
+	static void countTerms(TermCounts counts, String text, int delta) {
+		char[] chars = text.toCharArray();
+		Terms.count(chars, chars.length, counts, delta);
+	}
+
+	/**
+	 * Go through the text of some saved tweets, one row at a time. The text
+	 * is copied into one reused buffer, so nothing is kept (or made) per
+	 * tweet.
+	 * 
+	 * @param db
+	 *            SQLite database
+	 * @param selection
+	 *            Where clause picking the tweets. Null for all tweets.
+	 * @param selectionArgs
+	 *            Values for the ?s in selection
+	 * @param visitor
+	 *            Called with the text of each tweet
+	 */
+	static void visitText(SQLiteDatabase db, String selection,
+			String[] selectionArgs, TweetStore.TextVisitor visitor) {
+		Cursor cursor = db.query(TABLE_TWEETS, new String[] { COLUMN_TEXT },
+				selection, selectionArgs, null, null, null);
+		try {
+			// room for a whole tweet. copyStringToBuffer grows it if needed.
+			CharArrayBuffer buffer = new CharArrayBuffer(140);
+			cursor.moveToFirst();
+			while (!cursor.isAfterLast()) {
+				cursor.copyStringToBuffer(0, buffer);
+				visitor.visit(buffer.data, buffer.sizeCopied);
+				cursor.moveToNext();
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Fill the term-frequency table from the saved tweets, one source at a
+	 * time
+	 * 
+	 * @param db
+	 *            SQLite database
+	 */
+	private void countAllTerms(SQLiteDatabase db) {
+		List<String> sources = new ArrayList<String>();
+		Cursor cursor = db.query(true, TABLE_TWEETS,
+				new String[] { COLUMN_SOURCE }, null, null, null, null, null,
+				null);
+		try {
+			cursor.moveToFirst();
+			while (!cursor.isAfterLast()) {
+				sources.add(cursor.getString(0));
+				cursor.moveToNext();
+			}
+		} finally {
+			cursor.close();
+		}
+		final TermCounts counts = new TermCounts(1024);
+		TweetStore.TextVisitor counter = new TweetStore.TextVisitor() {
+			public void visit(char[] text, int length) {
+				Terms.count(text, length, counts, 1);
+			}
+		};
+		for (String source : sources) {
+			visitText(db, COLUMN_SOURCE + " = ?", new String[] { source },
+					counter);
+			addTermCounts(db, source, counts);
+			counts.clear();
+		}
 	}
 
 	/**
-	 * Purge the database table
+	 * Purge the database tables
 	 * 
 	 * @param db
 	 *            SQLite database
 	 */
 	public void purge(SQLiteDatabase db) {
 		db.execSQL(DATABASE_DROP);
+		db.execSQL(TERMS_DROP);
+		db.execSQL(FTS_DROP);
+		db.execSQL(PAGE_CACHE_DROP);
 		onCreate(db);
 	}
 }
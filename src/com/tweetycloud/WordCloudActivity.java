@@ -1,18 +1,26 @@
 package com.tweetycloud;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
+import winterwell.jtwitter.OAuthSignpostClient;
+import winterwell.jtwitter.Twitter;
+import winterwell.jtwitter.TwitterStream;
 import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.util.Log;
 import android.view.Display;
 import android.view.Window;
 import android.view.WindowManager;
@@ -57,113 +65,78 @@ public class WordCloudActivity extends Activity {
 	/** Number of words to display in the cloud */
 	private static int WORDS_IN_CLOUD = 80;
 
-	/** List of common words to ignore */
-	private static List<String> ignoreWords = Arrays.asList("a", "able",
-			"about", "above", "abroad", "according", "accordingly", "across",
-			"actually", "adj", "after", "afterwards", "again", "against",
-			"ago", "ahead", "ain't", "all", "allow", "allows", "almost",
-			"alone", "along", "alongside", "already", "also", "although",
-			"always", "am", "amid", "amidst", "among", "amongst", "an", "and",
-			"another", "any", "anybody", "anyhow", "anyone", "anything",
-			"anyway", "anyways", "anywhere", "apart", "appear", "appreciate",
-			"appropriate", "are", "aren't", "around", "as", "a's", "aside",
-			"ask", "asking", "associated", "at", "available", "away",
-			"awfully", "b", "back", "backward", "backwards", "be", "became",
-			"because", "become", "becomes", "becoming", "been", "before",
-			"beforehand", "begin", "behind", "being", "believe", "below",
-			"beside", "besides", "best", "better", "between", "beyond", "both",
-			"brief", "but", "by", "c", "came", "can", "cannot", "cant",
-			"can't", "caption", "cause", "causes", "certain", "certainly",
-			"changes", "clearly", "c'mon", "co", "co.", "com", "come", "comes",
-			"concerning", "consequently", "consider", "considering", "contain",
-			"containing", "contains", "corresponding", "could", "couldn't",
-			"course", "c's", "currently", "d", "dare", "daren't", "definitely",
-			"described", "despite", "did", "didn't", "different", "directly",
-			"do", "does", "doesn't", "doing", "done", "don't", "down",
-			"downwards", "during", "e", "each", "edu", "eg", "eight", "eighty",
-			"either", "else", "elsewhere", "end", "ending", "enough",
-			"entirely", "especially", "et", "etc", "even", "ever", "evermore",
-			"every", "everybody", "everyone", "everything", "everywhere", "ex",
-			"exactly", "example", "except", "f", "fairly", "far", "farther",
-			"few", "fewer", "fifth", "first", "five", "followed", "following",
-			"follows", "for", "forever", "former", "formerly", "forth",
-			"forward", "found", "four", "from", "further", "furthermore", "g",
-			"get", "gets", "getting", "given", "gives", "great", "go", "goes",
-			"going", "gone", "got", "gotten", "greetings", "h", "had",
-			"hadn't", "half", "happens", "hardly", "has", "hasn't", "have",
-			"haven't", "having", "he", "he'd", "he'll", "hello", "help",
-			"hence", "her", "here", "hereafter", "hereby", "herein", "here's",
-			"hereupon", "hers", "herself", "he's", "hi", "him", "himself",
-			"his", "hither", "hopefully", "how", "howbeit", "however",
-			"hundred", "i", "i'd", "ie", "if", "ignored", "i'll", "i'm",
-			"immediate", "in", "inasmuch", "inc", "inc.", "indeed", "indicate",
-			"indicated", "indicates", "inner", "inside", "insofar", "instead",
-			"into", "inward", "is", "isn't", "it", "it'd", "it'll", "its",
-			"it's", "itself", "i've", "j", "just", "k", "keep", "keeps",
-			"kept", "know", "known", "knows", "l", "last", "lately", "later",
-			"latter", "latterly", "least", "less", "lest", "let", "let's",
-			"like", "liked", "likely", "likewise", "little", "look", "looking",
-			"looks", "low", "lower", "ltd", "m", "made", "mainly", "make",
-			"makes", "many", "may", "maybe", "mayn't", "me", "mean",
-			"meantime", "meanwhile", "merely", "might", "mightn't", "mine",
-			"minus", "miss", "more", "moreover", "most", "mostly", "mr", "mrs",
-			"much", "must", "mustn't", "my", "myself", "n", "name", "namely",
-			"nd", "near", "nearly", "necessary", "need", "needn't", "needs",
-			"neither", "never", "neverf", "neverless", "nevertheless", "new",
-			"next", "nine", "ninety", "no", "nobody", "non", "none",
-			"nonetheless", "noone", "no-one", "nor", "normally", "not",
-			"nothing", "notwithstanding", "novel", "now", "nowhere", "o",
-			"obviously", "of", "off", "often", "oh", "ok", "okay", "old", "on",
-			"once", "one", "ones", "one's", "only", "onto", "opposite", "or",
-			"other", "others", "otherwise", "ought", "oughtn't", "our", "ours",
-			"ourselves", "out", "outside", "over", "overall", "own", "p",
-			"particular", "particularly", "past", "per", "perhaps", "placed",
-			"please", "plus", "possible", "presumably", "probably", "provided",
-			"provides", "q", "que", "quite", "qv", "r", "rather", "rd", "re",
-			"really", "reasonably", "recent", "recently", "regarding",
-			"regardless", "regards", "relatively", "respectively", "right",
-			"round", "rt", "s", "said", "same", "saw", "say", "saying", "says",
-			"second", "secondly", "see", "seeing", "seem", "seemed", "seeming",
-			"seems", "seen", "self", "selves", "sensible", "sent", "serious",
-			"seriously", "seven", "several", "shall", "shan't", "she", "she'd",
-			"she'll", "she's", "should", "shouldn't", "since", "six", "so",
-			"some", "somebody", "someday", "somehow", "someone", "something",
-			"sometime", "sometimes", "somewhat", "somewhere", "soon", "sorry",
-			"specified", "specify", "specifying", "still", "sub", "such",
-			"sup", "sure", "t", "take", "taken", "taking", "tell", "tends",
-			"th", "than", "thank", "thanks", "thanx", "that", "that'll",
-			"thats", "that's", "that've", "the", "their", "theirs", "them",
-			"themselves", "then", "thence", "there", "thereafter", "thereby",
-			"there'd", "therefore", "therein", "there'll", "there're",
-			"theres", "there's", "thereupon", "there've", "these", "they",
-			"they'd", "they'll", "they're", "they've", "thing", "things",
-			"think", "third", "thirty", "this", "thorough", "thoroughly",
-			"those", "though", "three", "through", "throughout", "thru",
-			"thus", "till", "to", "together", "too", "took", "toward",
-			"towards", "tried", "tries", "truly", "try", "trying", "t's",
-			"twice", "two", "u", "un", "under", "underneath", "undoing",
-			"unfortunately", "unless", "unlike", "unlikely", "until", "unto",
-			"up", "upon", "upwards", "us", "use", "used", "useful", "uses",
-			"using", "usually", "v", "value", "various", "versus", "very",
-			"via", "viz", "vs", "w", "want", "wants", "was", "wasn't", "way",
-			"we", "we'd", "welcome", "well", "we'll", "went", "were", "we're",
-			"weren't", "we've", "what", "whatever", "what'll", "what's",
-			"what've", "when", "whence", "whenever", "where", "whereafter",
-			"whereas", "whereby", "wherein", "where's", "whereupon",
-			"wherever", "whether", "which", "whichever", "while", "whilst",
-			"whither", "who", "who'd", "whoever", "whole", "who'll", "whom",
-			"whomever", "who's", "whose", "why", "will", "willing", "wish",
-			"with", "within", "without", "wonder", "won't", "would",
-			"wouldn't", "x", "y", "yes", "yet", "you", "you'd", "you'll",
-			"your", "you're", "yours", "yourself", "yourselves", "you've", "z",
-			"zero");
+	/**
+	 * Intent extra: if true, keep the cloud up to date with a live stream of
+	 * tweets from the people the user follows
+	 */
+	public static final String EXTRA_LIVE = "live";
+
+	/**
+	 * Intent extra: which saved tweets to show, e.g.
+	 * TweetyCloudSQLiteHelper.SOURCE_HOME. All saved tweets if not set.
+	 */
+	public static final String EXTRA_SOURCE = "source";
+
+	/**
+	 * Intent extra: only count the saved tweets from this many milliseconds
+	 * back, e.g. 24 hours. All saved tweets if not set.
+	 */
+	public static final String EXTRA_WINDOW_MILLIS = "window_millis";
+
+	/** How far back the live cloud counts words */
+	private static final long LIVE_WINDOW_MILLIS = 5 * 60 * 1000;
+
+	/**
+	 * Number of steps the live window slides in. 1 would make it a tumbling
+	 * window.
+	 */
+	private static final int LIVE_WINDOW_BUCKETS = 10;
+
+	/** Number of saved tweets to show when a tag is tapped */
+	private static final int DRILL_DOWN_TWEETS = 50;
+
+	/** Most often the live cloud is redrawn */
+	private static final long LIVE_REFRESH_MILLIS = 1000;
 
 	/** Data access object */
 	private TweetDataSource dao;
+
+	/** Which saved tweets to show. Null for all */
+	private String source;
 	
 	/** The word cloud view */
 	private TagCloudView mTagCloudView;
 
+	/** Word counts for the live cloud. Null if not live */
+	private LiveWordCloud liveCloud;
+
+	/** Stream of tweets for the live cloud. Lock on this */
+	private TwitterStream stream;
+
+	/**
+	 * Bumped on the main thread by each start and stop, so a connect which
+	 * was overtaken by onPause can tell. Lock on this
+	 */
+	private int streamGeneration;
+
+	/** Runs the live refresh and search results on the main thread */
+	private Handler handler;
+
+	/** Applies the latest live counts to the cloud, then schedules itself */
+	private final Runnable refresh = new Runnable() {
+		public void run() {
+			LiveWordCloud.Diff diff = liveCloud.diff();
+			for (int i = 0; i < diff.replacements.size(); i++) {
+				mTagCloudView.Replace(diff.replacements.get(i),
+						diff.replaced.get(i));
+			}
+			for (Tag tag : diff.added) {
+				mTagCloudView.addTag(tag);
+			}
+			handler.postDelayed(this, LIVE_REFRESH_MILLIS);
+		}
+	};
+
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -191,6 +164,32 @@ public class WordCloudActivity extends Activity {
 		// MainActivity
 		mTagCloudView = new TagCloudView(this, width, height, myTagList);
 
+		// Live mode: start from the database cloud, on the same popularity
+		// scale
+		if (getIntent().getBooleanExtra(EXTRA_LIVE, false)) {
+			int popularityMin = 5, popularityMax = 5;
+			if (!myTagList.isEmpty()) {
+				popularityMin = Integer.MAX_VALUE;
+				popularityMax = 0;
+				for (Tag tag : myTagList) {
+					popularityMin = Math.min(popularityMin, tag.getPopularity());
+					popularityMax = Math.max(popularityMax, tag.getPopularity());
+				}
+			}
+			liveCloud = new LiveWordCloud(WORDS_IN_CLOUD, LIVE_WINDOW_MILLIS,
+					LIVE_WINDOW_BUCKETS, popularityMin, popularityMax);
+			liveCloud.seed(myTagList);
+		}
+		handler = new Handler();
+
+		// Tapping a tag shows the saved tweets which contain it
+		mTagCloudView.setTagClickListener(new TagCloudView.TagClickListener() {
+			public boolean onTagClick(String tagText, String url) {
+				showTweets(tagText);
+				return true;
+			}
+		});
+
 		setContentView(mTagCloudView);
 		mTagCloudView.requestFocus();
 		mTagCloudView.setFocusableInTouchMode(true);
@@ -222,11 +221,193 @@ public class WordCloudActivity extends Activity {
 	@Override
 	protected void onResume() {
 		super.onResume();
+		if (liveCloud != null) {
+			startStream();
+			handler.postDelayed(refresh, LIVE_REFRESH_MILLIS);
+		}
 	}
 
 	@Override
 	protected void onPause() {
 		super.onPause();
+		if (liveCloud != null) {
+			handler.removeCallbacks(refresh);
+			stopStream();
+		}
+	}
+
+	/**
+	 * Connect to the streaming API in a background thread, following the
+	 * people the user follows
+	 */
+	private void startStream() {
+		SharedPreferences settings = getSharedPreferences(
+				TweetyCloudActivity.PREFS_NAME, 0);
+		final String userToken = settings.getString(
+				TweetyCloudActivity.USER_TOKEN, null);
+		final String userTokenSecret = settings.getString(
+				TweetyCloudActivity.USER_TOKEN_SECRET, null);
+		if (userToken == null || userTokenSecret == null) {
+			return;
+		}
+		final int generation;
+		synchronized (this) {
+			generation = ++streamGeneration;
+		}
+		new Thread() {
+			public void run() {
+				try {
+					Twitter jtwitter = new Twitter(null,
+							new OAuthSignpostClient(
+									TweetyCloudActivity.MY_TWITTER_KEY,
+									TweetyCloudActivity.MY_TWITTER_SECRET,
+									userToken, userTokenSecret));
+					List<Number> friends = jtwitter.users().getFriendIDs();
+					List<Long> follow = new ArrayList<Long>();
+					for (Number friend : friends) {
+						if (follow.size() == TwitterStream.MAX_USERS) {
+							break;
+						}
+						follow.add(friend.longValue());
+					}
+					TwitterStream newStream = new TwitterStream(jtwitter);
+					newStream.setFollowUsers(follow);
+					newStream.setAutoReconnect(true);
+					newStream.setListenersOnly(true);
+					newStream.addListener(liveCloud);
+					synchronized (WordCloudActivity.this) {
+						// paused whilst fetching the friends?
+						if (streamGeneration != generation) {
+							return;
+						}
+						stream = newStream;
+					}
+					newStream.connect();
+					boolean paused;
+					synchronized (WordCloudActivity.this) {
+						paused = streamGeneration != generation;
+					}
+					// paused whilst connecting?
+					if (paused) {
+						newStream.close();
+						return;
+					}
+					Log.i("TweetyCloud", "Live stream connected");
+				} catch (Exception e) {
+					Log.w("TweetyCloud", e.toString());
+				}
+			}
+		}.start();
+	}
+
+	/**
+	 * Disconnect the live stream, if any
+	 */
+	private void stopStream() {
+		final TwitterStream oldStream;
+		synchronized (this) {
+			streamGeneration++;
+			oldStream = stream;
+			stream = null;
+		}
+		if (oldStream == null) {
+			return;
+		}
+		// closing can block on the network, so keep it off the main thread
+		new Thread() {
+			public void run() {
+				oldStream.close();
+			}
+		}.start();
+	}
+
+	/**
+	 * Show the saved tweets containing a word, newest first. This uses the
+	 * full-text index, so it works offline. The search runs in a background
+	 * thread; if no saved tweets contain the word (or the search fails), a
+	 * Twitter search for it is opened instead.
+	 * 
+	 * @param word
+	 *            A word in the cloud
+	 */
+	private void showTweets(final String word) {
+		new Thread() {
+			public void run() {
+				// a data source of its own, as the main thread uses dao
+				TweetDataSource search = new TweetDataSource(
+						WordCloudActivity.this);
+				List<Tweet> found;
+				try {
+					search.open();
+					try {
+						found = search.searchTweets(word, source,
+								DRILL_DOWN_TWEETS);
+					} finally {
+						search.close();
+					}
+				} catch (RuntimeException e) {
+					Log.w("TweetyCloud", e.toString());
+					found = Collections.emptyList();
+				}
+				final List<Tweet> tweets = found;
+				handler.post(new Runnable() {
+					public void run() {
+						if (!isFinishing()) {
+							showTweets2(word, tweets);
+						}
+					}
+				});
+			}
+		}.start();
+	}
+
+	/**
+	 * Show the tweets found by showTweets. Called on the main thread.
+	 * 
+	 * @param word
+	 *            A word in the cloud
+	 * @param tweets
+	 *            The saved tweets which contain it
+	 */
+	private void showTweets2(final String word, List<Tweet> tweets) {
+		if (tweets.isEmpty()) {
+			startActivity(new Intent(Intent.ACTION_VIEW,
+					Uri.parse(createLink(word))));
+			return;
+		}
+		CharSequence[] items = new CharSequence[tweets.size()];
+		for (int i = 0; i < items.length; i++) {
+			Tweet tweet = tweets.get(i);
+			items[i] = tweet.getUser() + ": " + tweet.getTweet();
+		}
+		new AlertDialog.Builder(this).setTitle(word).setItems(items, null)
+				.setPositiveButton("Search Twitter",
+						new DialogInterface.OnClickListener() {
+							public void onClick(DialogInterface dialog,
+									int which) {
+								startActivity(new Intent(Intent.ACTION_VIEW,
+										Uri.parse(createLink(word))));
+							}
+						}).setNegativeButton("Close", null).show();
+	}
+
+	/**
+	 * Create the link to open when a word in the cloud is clicked
+	 * 
+	 * @param word
+	 *            A word in the cloud
+	 * @return A Twitter search for the word, or the word itself if it's a link
+	 */
+	static String createLink(String word) {
+		if (word.startsWith("#")) {
+			return "https://mobile.twitter.com/search/"
+					+ word.substring(1).replaceAll(" ", "+");
+		} else if (word.startsWith("http")) {
+			return word;
+		} else {
+			return "https://mobile.twitter.com/search/"
+					+ word.replaceAll(" ", "+");
+		}
 	}
 
 	/**
@@ -236,50 +417,29 @@ public class WordCloudActivity extends Activity {
 	 */
 	private List<Tag> createTags() {
 
-		// Obtain tweets
+		// Find most popular words. These are counted as tweets are saved, so
+		// this is one query however many tweets there are. A time window has
+		// to be counted from its tweets, which the index finds quickly.
+		source = getIntent().getStringExtra(EXTRA_SOURCE);
+		long windowMillis = getIntent().getLongExtra(EXTRA_WINDOW_MILLIS, 0);
 		dao.open();
-		List<Tweet> tweets = dao.getAllTweets();
-		dao.close();
-
-		// Find most popular words
-		Map<String, Integer> wordMap = new HashMap<String, Integer>();
-		String tweetText;
-		for (Tweet tweet : tweets) {
-			tweetText = tweet.getTweet().toLowerCase();
-			List<String> words = new ArrayList<String>(Arrays.asList(tweetText
-					.split(" ")));
-
-			for (String word : words) {
-				if (!word.matches(".*[a-zA-Z]+.*")
-						|| ignoreWords.contains(word)) {
-					continue;
-				}
-				if (wordMap.containsKey(word)) {
-					wordMap.put(word, wordMap.get(word) + 1);
-				} else {
-					wordMap.put(word, 1);
-				}
-			}
+		Map<String, Integer> sortedWordMap;
+		if (windowMillis > 0) {
+			long now = System.currentTimeMillis();
+			sortedWordMap = dao.getTopTerms(source, now - windowMillis, now,
+					WORDS_IN_CLOUD);
+		} else {
+			sortedWordMap = dao.getTopTerms(source, WORDS_IN_CLOUD);
 		}
+		dao.close();
 
 		// create the list of tags with popularity values and related url
 		List<Tag> tempList = new ArrayList<Tag>();
-		Map<String, Integer> sortedWordMap = this.sortByValue(wordMap);
 		Iterator it = sortedWordMap.entrySet().iterator();
 		int count = 0;
 		while (it.hasNext() && count < WORDS_IN_CLOUD) {
 			Map.Entry pairs = (Map.Entry) it.next();
-			String link = null;
-			if (((String) pairs.getKey()).startsWith("#")) {
-				link = "https://mobile.twitter.com/search/"
-						+ ((String) pairs.getKey()).substring(1).replaceAll(
-								" ", "+");
-			} else if (((String) pairs.getKey()).startsWith("http")) {
-				link = (String) pairs.getKey();
-			} else {
-				link = "https://mobile.twitter.com/search/"
-						+ ((String) pairs.getKey()).replaceAll(" ", "+");
-			}
+			String link = createLink((String) pairs.getKey());
 			tempList.add(new Tag((String) pairs.getKey(), ((Integer) pairs
 					.getValue()).intValue() * 2 + 5, link));
 			count++;
@@ -1,18 +1,23 @@
 package winterwell.jtwitter;
 
-import java.io.BufferedReader;
 import java.io.Closeable;
-import java.io.IOException;
+import java.io.File;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.Serializable;
 import java.math.BigInteger;
 import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 import winterwell.json.JSONArray;
@@ -33,8 +38,10 @@ import winterwell.jtwitter.Twitter.ITweet;
  * Streams create a gobbler thread which consumes the output from Twitter. They
  * are then accessed on a polling basis from a second thread. You can also
  * register a listener for push notifications in the gobbler thread. They are
- * thread-safe for this usage -- but not thread-safe for multi-threaded polling
- * (which would be confusing anyway, cos polling typically consumes data).
+ * thread-safe for this usage. Popping from several threads is also safe (each
+ * item is popped once), though the buffers are bounded: when full, the oldest
+ * items are dropped and counted in {@link #getForgotten()}. See
+ * {@link #setBackpressure(KBackpressure)} for other options.
  * 
  * @author daniel
  */
@@ -46,8 +53,11 @@ public abstract class AStream implements Closeable {
 	/**
 	 * Use these for push-notification of incoming tweets and stream activity.
 	 * 
-	 * WARNING: listeners should be fast. They run in the gobbler thread, which
-	 * may be switched off by Twitter if it can't keep up with the flow.
+	 * WARNING: listeners should be fast. They run in a delivery thread, fed by
+	 * the gobbler thread (see {@link ParsePipeline}). If they fall too far
+	 * behind, the stream's {@link KBackpressure} policy kicks in. A slow
+	 * listener can be given its own queue & thread, via
+	 * {@link AStream#addListener(IListen, int)}.
 	 * 
 	 * @see AStream#popTweets() etc. for pull-based notification.
 	 */
@@ -75,43 +85,145 @@ public abstract class AStream implements Closeable {
 		boolean processTweet(ITweet tweet);
 	}
 
+	/**
+	 * What to do when a consumer falls behind, and its buffer (of
+	 * {@link #MAX_BUFFER} messages) fills up. This applies separately to the
+	 * polling buffer (popTweets() etc.) and the listeners.
+	 * 
+	 * @see AStream#setBackpressure(KBackpressure)
+	 */
+	public static enum KBackpressure {
+		/**
+		 * Make the gobbler wait for the consumer to catch up. Twitter
+		 * disconnect streams which fall too far behind, so the wait is
+		 * limited by {@link AStream#setMaxBlockMillis(long)}. If it times
+		 * out, the oldest messages are dropped.
+		 */
+		BLOCK,
+		/**
+		 * Drop the newest messages -- keep what's already in the buffer.
+		 */
+		DROP_NEWEST,
+		/**
+		 * The default: drop the oldest messages to make room.
+		 */
+		DROP_OLDEST,
+		/**
+		 * Write the overflow to a temp file, and replay it (in order) as the
+		 * consumer catches up. Nothing is dropped unless the disk fails. See
+		 * {@link AStream#setSpillDir(File)}.
+		 */
+		SPILL
+	}
+
+	/**
+	 * Like {@link IListen}, but receives messages in batches -- so e.g. a
+	 * database writer can do one transaction per batch rather than per tweet.
+	 * Batch listeners run in their own thread.
+	 * 
+	 * @see AStream#addListener(IListenBatch, int, long)
+	 */
+	public static interface IListenBatch {
+		/**
+		 * Called with at least one message. Within each array, messages are
+		 * in the order they arrived. Arrays may be empty (never null). The
+		 * arrays are re-used for later batches, so copy out anything you
+		 * want to keep.
+		 * 
+		 * @param tweets
+		 * @param events
+		 * @param sysEvents
+		 *            Miscellaneous Twitter messages, such as limits & deletes
+		 */
+		void processBatch(ITweet[] tweets, TwitterEvent[] events,
+				Object[][] sysEvents);
+	}
+
+	/**
+	 * Where the connection is at.
+	 * 
+	 * @see AStream#getConnectionState()
+	 */
+	public static enum KConnectionState {
+		/**
+		 * Waiting before the next reconnect attempt. See
+		 * {@link StreamMetrics#backoffSeconds}.
+		 */
+		BACKING_OFF,
+		CONNECTED,
+		/**
+		 * Trying to reconnect right now.
+		 */
+		CONNECTING,
+		/**
+		 * Not connected, and not trying to be. E.g. closed, or auto-reconnect
+		 * is off.
+		 */
+		DISCONNECTED,
+		/**
+		 * Auto-reconnect has given up. The reason will be thrown by the next
+		 * popTweets() (or similar) call.
+		 */
+		FAILED
+	}
+
 	public static final class Outage implements Serializable {
 		private static final long serialVersionUID = 1L;
 		final BigInteger sinceId;
+		/**
+		 * When the connection went down. 0 if unknown.
+		 */
+		final long sinceTime;
 		final long untilTime;
+		/**
+		 * How many times {@link AStream#fillInOutages()} has tried this one.
+		 */
+		int attempts;
 
 		public Outage(BigInteger sinceId, long untilTime) {
-			super();
+			this(sinceId, 0, untilTime);
+		}
+
+		/**
+		 * @param sinceId
+		 *            The last tweet received before the outage
+		 * @param sinceTime
+		 *            When the connection went down
+		 * @param untilTime
+		 *            When the connection came back
+		 */
+		public Outage(BigInteger sinceId, long sinceTime, long untilTime) {
 			this.sinceId = sinceId;
+			this.sinceTime = sinceTime;
 			this.untilTime = untilTime;
 		}
 
 		@Override
 		public String toString() {
-			return "[id:" + sinceId + " to time:" + untilTime + "]";
+			return "[id:" + sinceId
+					+ (sinceTime == 0 ? "" : " from time:" + sinceTime)
+					+ " to time:" + untilTime + "]";
 		}
 	}
 
 	/**
-	 * Start dropping messages after this.
+	 * Start dropping messages after this. This sets the size of the buffers
+	 * for streams created afterwards.
 	 */
 	public static int MAX_BUFFER = 10000;
 
 	/**
-	 * 15 minutes
+	 * Give up on filling in an outage after this many tries. With
+	 * auto-reconnect, they're {@link Reconnector#FILL_IN_DELAY} apart.
 	 */
-	private static final int MAX_WAIT_SECONDS = 900;
+	public static int MAX_FILL_IN_ATTEMPTS = 10;
 
-	static int forgetIfFull(List incoming) {
-		// forget a batch?
-		if (incoming.size() < MAX_BUFFER)
-			return 0;
-		int chop = MAX_BUFFER / 10;
-		for (int i = 0; i < chop; i++) {
-			incoming.remove(0);
-		}
-		return chop;
-	}
+	/**
+	 * How many threads to use for parsing messages for listeners.
+	 * The default is one less than the number of cores (minimum 1).
+	 */
+	public static int PARSE_THREADS = Math.max(1, Runtime.getRuntime()
+			.availableProcessors() - 1);
 
 	static Object read3_parse(JSONObject jo, Twitter jtwitr)
 			throws JSONException {
@@ -153,13 +265,50 @@ public abstract class AStream implements Closeable {
 
 	boolean autoReconnect;
 
+	volatile KBackpressure backpressure = KBackpressure.DROP_OLDEST;
+
 	final IHttpClient client;
 
-	List<TwitterEvent> events = new ArrayList();
+	final RingBuffer<TwitterEvent> events = new RingBuffer<TwitterEvent>(
+			MAX_BUFFER);
 
 	boolean fillInFollows = true;
 
-	private int forgotten;
+	/**
+	 * Messages dropped to stay within our bounds. Written from several
+	 * threads: the gobbler's read(), fill-ins, and the reconnector.
+	 */
+	private final AtomicLong forgotten = new AtomicLong();
+
+	// Metrics. Except where noted, these are written by the gobbler thread.
+	// Counters are atomic: during a reconnect the old and new gobblers can
+	// overlap, and journal replay runs in other threads.
+	/**
+	 * Set by the {@link Reconnector} whilst waiting
+	 */
+	volatile int backoffSeconds;
+	final AtomicLong bytesIn = new AtomicLong();
+	final AtomicLong duplicates = new AtomicLong();
+	final AtomicInteger errors = new AtomicInteger();
+	final AtomicLong framesIn = new AtomicLong();
+	volatile String lastError;
+	/**
+	 * Set by the {@link StreamFramer}: when anything (including a keep-alive)
+	 * last arrived.
+	 */
+	volatile long lastDataTime;
+	final ConcurrentMap<IListen, Latency> listenerLatency = new ConcurrentHashMap<IListen, Latency>();
+	private final Object metricsLock = new Object();
+	private long metricsBytes;
+	private long metricsFrames;
+	private long metricsTime = System.currentTimeMillis();
+	final Latency parseLatency = new Latency();
+	/**
+	 * Incremented by the {@link Reconnector}
+	 */
+	volatile int reconnects;
+
+	final Reconnector reconnector = new Reconnector(this);
 
 	List<Long> friends;
 
@@ -168,21 +317,66 @@ public abstract class AStream implements Closeable {
 	 */
 	final Twitter jtwit;
 
-	private BigInteger lastId = BigInteger.ZERO;
+	/**
+	 * Optional client-side routing. Can be null.
+	 */
+	volatile StreamFilter filter;
+
+	/**
+	 * Optional on-disk log of everything received. Can be null.
+	 */
+	volatile StreamJournal journal;
+
+	/**
+	 * The latest tweet-id seen by the gobbler. For recording outages.
+	 */
+	volatile long lastTweetId;
 
-	final List<IListen> listeners = new ArrayList(0);
+	/**
+	 * Copy-on-write, so delivery needs no lock. Lock on this for
+	 * edit-then-edit operations.
+	 */
+	final List<IListen> listeners = new CopyOnWriteArrayList<IListen>();
 
-	final List<Outage> outages = new ArrayList();
+	/**
+	 * For {@link KBackpressure#BLOCK}
+	 */
+	volatile long maxBlockMillis = 5000;
+
+	final List<Outage> outages = new CopyOnWriteArrayList<Outage>();
 
 	int previousCount;
 
 	StreamGobbler readThread;
 
+	/**
+	 * For {@link KBackpressure#SPILL}. null for the system temp directory.
+	 */
+	File spillDir;
+
 	InputStream stream;
 
-	List<Object[]> sysEvents = new ArrayList();
+	final RingBuffer<Object[]> sysEvents = new RingBuffer<Object[]>(
+			MAX_BUFFER);
 
-	List<ITweet> tweets = new ArrayList();
+	/**
+	 * The ids of {@link #tweets}, for fast de-duplication. Only edit this
+	 * whilst holding the tweets lock.
+	 */
+	final IdSet tweetIds = new IdSet(MAX_BUFFER);
+
+	final RingBuffer<ITweet> tweets = new RingBuffer<ITweet>(MAX_BUFFER) {
+		@Override
+		void onRelease(ITweet tweet) {
+			// keep the id index in step with the buffer
+			tweetIds.remove(tweet.getId());
+		}
+	};
+
+	/**
+	 * Re-used by {@link #read()}. Lock on this whilst using it.
+	 */
+	private final List<String> jsonBatch = new ArrayList<String>();
 
 	/**
 	 * default: false
@@ -203,6 +397,24 @@ public abstract class AStream implements Closeable {
 		// }
 	}
 
+	/**
+	 * Add a tweet to the buffer -- unless it's a duplicate of one already
+	 * there. Drops old tweets if the buffer is full.
+	 * 
+	 * @param tweet
+	 * @return true if added, false if this was a duplicate
+	 */
+	final boolean addTweet(ITweet tweet) {
+		synchronized (tweets) {
+			if ( ! tweetIds.add(tweet.getId())) {
+				duplicates.incrementAndGet();
+				return false;
+			}
+			forgotten.addAndGet(tweets.offer(tweet));
+			return true;
+		}
+	}
+
 	/**
 	 * Add a listener to the front of the queue. WARNING: listeners need to be
 	 * fast (see javadoc notes on {@link IListen})
@@ -212,12 +424,52 @@ public abstract class AStream implements Closeable {
 	public void addListener(IListen listener) {
 		synchronized (listeners) {
 			// remove if already there
-			listeners.remove(listener);
+			removeListener(listener);
 			// add to the front of the list
 			listeners.add(0, listener);
 		}
 	}
 
+	/**
+	 * Add a listener which has its own queue & thread, so it can consume at
+	 * its own pace without holding up other listeners (or being held up by
+	 * them). If it falls more than queueSize messages behind, its oldest
+	 * messages are dropped (see {@link #getBackpressureStats()}).
+	 * <p>
+	 * Queued listeners cannot hide messages from earlier listeners -- their
+	 * return values are ignored. Use {@link #addListener(IListen)} for that.
+	 * 
+	 * @param listener
+	 * @param queueSize
+	 */
+	public void addListener(IListen listener, int queueSize) {
+		synchronized (listeners) {
+			removeListener(listener);
+			listeners.add(0, new QueuedListener(listener, queueSize));
+		}
+	}
+
+	/**
+	 * Add a listener which receives messages in batches, in its own thread.
+	 * If it falls more than {@link #MAX_BUFFER} messages behind, its oldest
+	 * messages are dropped (see {@link #getBackpressureStats()}).
+	 * 
+	 * @param listener
+	 * @param maxBatch
+	 *            The most messages in one batch
+	 * @param maxLingerMillis
+	 *            The longest a message will wait for the rest of its batch to
+	 *            arrive. 0 to deliver whatever has arrived straightaway.
+	 */
+	public void addListener(IListenBatch listener, int maxBatch,
+			long maxLingerMillis) {
+		synchronized (listeners) {
+			removeListener(listener);
+			listeners.add(0, new BatchListener(listener, maxBatch,
+					maxLingerMillis));
+		}
+	}
+
 	/**
 	 * The stream will track outages during use (provided
 	 * {@link #setAutoReconnect(boolean)} is true). This method allows you to
@@ -240,14 +492,31 @@ public abstract class AStream implements Closeable {
 		outages.add(outage);
 	}
 
+	/**
+	 * Record an outage found by the {@link Reconnector}.
+	 */
+	void addOutage2(Outage outage) {
+		// TODO merge small outages
+		outages.add(outage);
+		// paranoia: avoid memory leaks
+		if (outages.size() > 100000) {
+			for (int i = 0; i < 1000; i++) {
+				outages.remove(0);
+			}
+			// add an arbitrary number to the forgotten count: 10 per outage
+			forgotten.addAndGet(10000);
+		}
+	}
+
 	/**
 	 * Forget the past. Clears all current queues of tweets, etc.
 	 */
 	public void clear() {
 		outages.clear();
-		popEvents();
-		popSystemEvents();
-		popTweets();
+		read();
+		events.clear();
+		sysEvents.clear();
+		tweets.clear();
 	}
 
 	/**
@@ -257,6 +526,15 @@ public abstract class AStream implements Closeable {
 	// But it always closes the input-stream.
 	@Override
 	synchronized public void close() {
+		// stop any auto-reconnect
+		reconnector.cancel();
+		close2();
+	}
+
+	/**
+	 * Close the connection, without affecting auto-reconnect.
+	 */
+	synchronized void close2() {
 		// close the gobbler (unless it's the gobbler who's calling this)
 		if (readThread != null && Thread.currentThread() != readThread) {
 			readThread.pleaseStop();
@@ -284,13 +562,13 @@ public abstract class AStream implements Closeable {
 	 * Auto-reconnect is ignored here: if there's an exception it will be thrown
 	 * and a reconnect will not be attempted. This gives a fast-return.
 	 * 
-	 * @see #reconnect()
+	 * @see #setAutoReconnect(boolean)
 	 */
 	synchronized public void connect() throws TwitterException {
 		if (isConnected())
 			return;
 		// close all first
-		close();
+		close2();
 
 		assert readThread == null || readThread.stream == this : this;
 
@@ -309,12 +587,13 @@ public abstract class AStream implements Closeable {
 				assert readThread.stream == this : readThread;
 			}
 			// check the connection took
-			if (isConnected())
-				return;
-			Thread.sleep(10);
 			if ( ! isConnected()) {
-				throw new TwitterException(readThread.ex);
+				Thread.sleep(10);
+				if ( ! isConnected()) {
+					throw new TwitterException(readThread.ex);
+				}
 			}
+			reconnector.connected();
 		} catch (Exception e) {
 			if (e instanceof TwitterException)
 				throw (TwitterException) e;
@@ -327,13 +606,34 @@ public abstract class AStream implements Closeable {
 
 	abstract HttpURLConnection connect2() throws Exception;
 
+	/**
+	 * {@link #connect()} for the {@link Reconnector} -- unless the stream has
+	 * been closed since the reconnect began. The check is made under this
+	 * object's lock, which {@link #close()} also holds, so a close can't slip
+	 * in between the check and the connect.
+	 * 
+	 * @param generation
+	 *            From the reconnector, when the reconnect began
+	 * @return false if the reconnect has been cancelled
+	 */
+	synchronized boolean reconnect(int generation) throws TwitterException {
+		if ( ! reconnector.isCurrent(generation))
+			return false;
+		connect();
+		return true;
+	}
+
 	/**
 	 * Use the REST API to fill in outages when possible. Filled-in outages will
 	 * be removed from the list.
 	 * <p>
 	 * In accordance with best-practice, this method will skip over very recent
 	 * outages (which will be picked up by subsequent calls to
-	 * {@link #fillInOutages()}).
+	 * {@link #fillInOutages()}). So will outages which hit the rate limit --
+	 * upto {@link #MAX_FILL_IN_ATTEMPTS} tries, after which they're dropped,
+	 * with a "fill-in-failed" system event. Other errors (e.g. a followed user
+	 * who has gone private) are reported as "fill-in-failed" events, and do not
+	 * keep an outage on the list.
 	 * </p>
 	 * <p>
 	 * From <i>dev.twitter.com</i>:<br>
@@ -354,11 +654,21 @@ public abstract class AStream implements Closeable {
 			if (System.currentTimeMillis() - outage.untilTime < 60000) {
 				continue;
 			}
+			if (outage.attempts >= MAX_FILL_IN_ATTEMPTS) {
+				outages.remove(outage);
+				addSysEvent(new Object[] { "fill-in-failed", outage });
+				continue;
+			}
+			outage.attempts++;
 			jtwit2.setSinceId(outage.sinceId);
 			jtwit2.setUntilDate(new Date(outage.untilTime));
 			jtwit2.setMaxResults(100000); // hopefully not needed!
 			// fetch
-			fillInOutages2(jtwit2, outage);
+			if ( ! fillInOutages2(jtwit2, outage)) {
+				// rate-limited: leave it (and the rest, which would hit the
+				// same limit) for next time
+				return;
+			}
 			// success
 			outages.remove(outage);
 		}
@@ -369,8 +679,11 @@ public abstract class AStream implements Closeable {
 	 * @param jtwit2
 	 *            with screenname, auth-token, sinceId and untilDate all set up
 	 * @param outage
+	 * @return false if the fill-in hit the rate limit, and should be tried
+	 *         again later. Other errors should be reported as "fill-in-failed"
+	 *         system events, and not stop the rest of the fill-in.
 	 */
-	abstract void fillInOutages2(Twitter jtwit2, Outage outage);
+	abstract boolean fillInOutages2(Twitter jtwit2, Outage outage);
 
 	@Override
 	protected void finalize() throws Throwable {
@@ -379,11 +692,113 @@ public abstract class AStream implements Closeable {
 	}
 
 	/**
-	 * @return never null
+	 * @return the recent events. never null. This is a snapshot copy:
+	 *         editing it does not change the stream's buffer (it used to be
+	 *         the buffer itself), and it does not clear the buffer -- use
+	 *         {@link #popEvents()} for that.
 	 */
 	public final List<TwitterEvent> getEvents() {
 		read();
-		return events;
+		return events.toList();
+	}
+
+	/**
+	 * @return counts of what the {@link KBackpressure} policy has done for the
+	 *         current connection, e.g. "poll.droppedOldest",
+	 *         "listen.spilled", "listen.blockTimeouts". "poll" is the buffer
+	 *         behind popTweets() etc, "listen" is the listener pipeline.
+	 *         Queued & batch listeners add "listener:name.dropped" and
+	 *         ".queued".
+	 */
+	public Map<String, Long> getBackpressureStats() {
+		Map<String, Long> stats = new TreeMap<String, Long>();
+		for (IListen l : listeners) {
+			if (l instanceof ThreadedListener) {
+				((ThreadedListener) l).stats(stats);
+			}
+		}
+		StreamGobbler gobbler = readThread;
+		if (gobbler == null)
+			return stats;
+		gobbler.pollOverflow.stats(stats);
+		ParsePipeline pipeline = gobbler.pipeline;
+		if (pipeline != null) {
+			pipeline.overflow.stats(stats);
+		}
+		return stats;
+	}
+
+	/**
+	 * @return a snapshot of the stream's health & throughput. Rates and
+	 *         latencies cover the time since the previous call.
+	 */
+	public StreamMetrics getMetrics() {
+		synchronized (metricsLock) {
+			long now = System.currentTimeMillis();
+			double secs = Math.max(0.001, (now - metricsTime) / 1000.0);
+			long frames = framesIn.get();
+			long bytes = bytesIn.get();
+			double fps = (frames - metricsFrames) / secs;
+			double bps = (bytes - metricsBytes) / secs;
+			metricsTime = now;
+			metricsFrames = frames;
+			metricsBytes = bytes;
+			double[] parse = parseLatency.snapshot();
+			// listeners
+			Map<String, Double> lMean = new TreeMap<String, Double>();
+			Map<String, Double> lMax = new TreeMap<String, Double>();
+			for (IListen l : listeners) {
+				Latency lat;
+				String name;
+				if (l instanceof ThreadedListener) {
+					lat = ((ThreadedListener) l).latency;
+					name = ((ThreadedListener) l).listener.toString();
+				} else {
+					lat = listenerLatency.get(l);
+					name = l.toString();
+				}
+				if (lat == null) {
+					continue;
+				}
+				double[] s = lat.snapshot();
+				lMean.put(name, s[1]);
+				lMax.put(name, s[2]);
+			}
+			// queues
+			Map<String, Integer> queues = new TreeMap<String, Integer>();
+			StreamGobbler gobbler = readThread;
+			if (gobbler != null) {
+				queues.put("poll", gobbler.jsons.size());
+				ParsePipeline pipeline = gobbler.pipeline;
+				if (pipeline != null) {
+					queues.put("listen", pipeline.size());
+				}
+			}
+			queues.put("tweets", tweets.size());
+			queues.put("events", events.size());
+			queues.put("sysEvents", sysEvents.size());
+			// drops
+			Map<String, Long> dropped = new TreeMap<String, Long>();
+			dropped.put("forgotten", forgotten.get());
+			dropped.put("duplicate", duplicates.get());
+			StreamFilter f = filter;
+			if (f != null) {
+				dropped.put("filtered", f.getDiscardedCount());
+			}
+			for (Map.Entry<String, Long> e : getBackpressureStats().entrySet()) {
+				String k = e.getKey();
+				if (k.endsWith(".queued") || k.endsWith(".spillSize")) {
+					queues.put(k, e.getValue().intValue());
+				} else if (k.contains("dropped")) {
+					dropped.put(k, e.getValue());
+				}
+			}
+			long gap = lastDataTime == 0 ? -1 : now - lastDataTime;
+			return new StreamMetrics(now, isConnected(), frames, fps, bytes,
+					bps, gap, parse[1], parse[2], lMean, lMax, queues,
+					dropped, reconnects, backoffSeconds, outages.size(),
+					errors.get(), lastError);
+		}
 	}
 
 	/**
@@ -396,7 +811,7 @@ public abstract class AStream implements Closeable {
 	 *         {@link #popTweets()} regularly to clear the buffers.
 	 */
 	public final int getForgotten() {
-		return forgotten;
+		return (int) Math.min(forgotten.get(), Integer.MAX_VALUE);
 	}
 
 	/**
@@ -412,13 +827,23 @@ public abstract class AStream implements Closeable {
 	}
 
 	/**
-	 * @return the recent system events, such as "delete this status".
+	 * @return the recent system events, such as "delete this status". This is
+	 *         a snapshot copy: editing it does not change the stream's buffer
+	 *         (it used to be the buffer itself), and it does not clear the
+	 *         buffer -- use {@link #popSystemEvents()} for that.
 	 */
 	public final List<Object[]> getSystemEvents() {
 		read();
-		return sysEvents;
+		return sysEvents.toList();
 	}
 
+	/**
+	 * @return the recent tweets. This is a snapshot copy: editing it does not
+	 *         change the stream's buffer (it used to be the buffer itself),
+	 *         and it does not clear the buffer -- use {@link #popTweets()} for
+	 *         that. Popped tweets are forgotten by the de-duplication, so a
+	 *         popped tweet which arrives again is delivered again.
+	 */
 	public final List<ITweet> getTweets() {
 		read();
 		// // re-order?? Or do we not care TODO test this is the right way round
@@ -428,7 +853,7 @@ public abstract class AStream implements Closeable {
 		// return t1.getCreatedAt().compareTo(t2.getCreatedAt());
 		// }
 		// });
-		return tweets;
+		return tweets.toList();
 	}
 
 	/**
@@ -441,8 +866,20 @@ public abstract class AStream implements Closeable {
 		if (!autoReconnect)
 			return false;
 		// is this trying to reconnect -- or has it failed for good?
-		return readThread != null && readThread.isAlive()
-				&& !readThread.stopFlag;
+		return reconnector.isReconnecting();
+	}
+
+	/**
+	 * @return connected, reconnecting, or not.
+	 */
+	public final KConnectionState getConnectionState() {
+		if (isConnected())
+			return KConnectionState.CONNECTED;
+		KConnectionState s = reconnector.getState();
+		// not yet noticed that it's down?
+		if (s == KConnectionState.CONNECTED)
+			return KConnectionState.DISCONNECTED;
+		return s;
 	}
 
 	/**
@@ -465,8 +902,9 @@ public abstract class AStream implements Closeable {
 	 * never null
 	 */
 	public final List<TwitterEvent> popEvents() {
-		List evs = getEvents();
-		events = new ArrayList();
+		read();
+		List<TwitterEvent> evs = new ArrayList<TwitterEvent>(events.size());
+		events.drainTo(evs, Integer.MAX_VALUE);
 		return evs;
 	}
 
@@ -478,29 +916,76 @@ public abstract class AStream implements Closeable {
 	 *         taken to reconnect.
 	 */
 	public final List<Object[]> popSystemEvents() {
-		List<Object[]> evs = getSystemEvents();
-		sysEvents = new ArrayList();
+		read();
+		List<Object[]> evs = new ArrayList<Object[]>(sysEvents.size());
+		sysEvents.drainTo(evs, Integer.MAX_VALUE);
 		return evs;
 	}
 
 	/**
-	 * @return the recent events. Calling this will clear the list of tweets.
+	 * @return the recent tweets. Calling this will clear the list of tweets.
+	 *         Each tweet is only returned once, even if several threads are
+	 *         popping.
 	 */
 	public final List<ITweet> popTweets() {
-		List<ITweet> ts = getTweets();
-		// TODO is there a race condition here? 
-		// Only if two threads are using pop & getTweets
-		tweets = new ArrayList();
+		read();
+		List<ITweet> ts = new ArrayList<ITweet>(tweets.size());
+		tweets.drainTo(ts, Integer.MAX_VALUE);
 		return ts;
 	}
 
+	/**
+	 * Batched alternative to {@link #popTweets()}, which avoids allocating a
+	 * new list each time.
+	 * 
+	 * @param into
+	 *            Tweets will be added to this
+	 * @param max
+	 *            The most tweets to pop
+	 * @return the number of tweets added to into
+	 */
+	public final int popTweets(List<? super ITweet> into, int max) {
+		read();
+		return tweets.drainTo(into, max);
+	}
+
 	private final void read() {
-		String[] jsons = readThread.popJsons();
-		for (String json : jsons) {
-			try {
-				read2(json);
-			} catch (JSONException e) {
-				throw new TwitterException.Parsing(json, e);
+		StreamGobbler gobbler = readThread;
+		if (gobbler != null) {
+			synchronized (jsonBatch) {
+				try {
+					while (true) {
+						int max = 1000;
+						// Unless we're dropping old stuff, only take what
+						// the buffers have room for
+						if (backpressure != KBackpressure.DROP_OLDEST) {
+							max = Math.min(max, Math.min(tweets.remaining(),
+									Math.min(events.remaining(),
+											sysEvents.remaining())));
+							if (max == 0) {
+								break;
+							}
+						}
+						if (gobbler.jsons.drainTo(jsonBatch, max) == 0) {
+							// catch up from the spill-file?
+							if (gobbler.pollOverflow.replay() == 0) {
+								break;
+							}
+							continue;
+						}
+						gobbler.pollOverflow.roomMade();
+						for (String json : jsonBatch) {
+							try {
+								read2(json);
+							} catch (JSONException e) {
+								throw new TwitterException.Parsing(json, e);
+							}
+						}
+						jsonBatch.clear();
+					}
+				} finally {
+					jsonBatch.clear();
+				}
 			}
 		}
 		if (isConnected())
@@ -511,18 +996,40 @@ public abstract class AStream implements Closeable {
 			return;
 		// Dead/zombie thread? Clean Up!
 		Exception ex = readThread == null? null : readThread.ex;
+		// reconnecting already?
+		if (reconnector.isReconnecting())
+			return;
 		// close all
-		close();
+		close2();
 		// The connection is down!
 		if ( ! autoReconnect) {
 			if (ex instanceof TwitterException) throw (TwitterException)ex;
 			throw new TwitterException(ex);
 		}
-		// reconnect using a different thread
-		reconnect();
+		// given up?
+		TwitterException fatal = reconnector.getFatal();
+		if (fatal != null)
+			throw fatal;
+		// reconnect in the background
+		reconnector.onFailure(ex);
+	}
+
+	/**
+	 * Add an event to its buffer. When it's full, only
+	 * {@link KBackpressure#DROP_OLDEST} overwrites the oldest -- otherwise
+	 * the new one is dropped. (Unless dropping old stuff, read() only takes
+	 * as many messages as the buffers have room for, so this is rare.)
+	 */
+	private <T> void offer(RingBuffer<T> buffer, T item) {
+		if (backpressure == KBackpressure.DROP_OLDEST) {
+			forgotten.addAndGet(buffer.offer(item));
+		} else if ( ! buffer.tryOffer(item)) {
+			forgotten.incrementAndGet();
+		}
 	}
 
 	private void read2(String json) throws JSONException {
+		long t0 = System.nanoTime();
 		JSONObject jobj = new JSONObject(json);
 
 		// the 1st object for a user stream is a list of friend ids
@@ -534,30 +1041,23 @@ public abstract class AStream implements Closeable {
 
 		// parse the json
 		Object object = read3_parse(jobj, jtwit);
+		tag(object);
+		parseLatency.end(t0);
 
 		// tweets
 		// TODO DMs?? They don't seem to get sent!
 		// System.out.println(jo);
 		if (object instanceof Status) {
 			Status tweet = (Status) object;
-			// de-duplicate a bit locally (this is rare -- perhaps don't
-			// bother??)
-			if (tweets.contains(tweet))
-				return;
-			tweets.add(tweet);
-			// track the last id for tracking outages
-			if (tweet.id.compareTo(lastId) > 0) {
-				lastId = tweet.id;
-			}
-			forgotten += forgetIfFull(tweets);
+			// de-duplicate a bit locally (this is rare, but the check is cheap)
+			addTweet(tweet);
 			return;
 		}
 
 		// Events
 		if (object instanceof TwitterEvent) {
 			TwitterEvent event = (TwitterEvent) object;
-			events.add(event);
-			forgotten += forgetIfFull(events);
+			offer(events, event);
 			return;
 		}
 		// Deletes and other system events, like limits
@@ -567,16 +1067,19 @@ public abstract class AStream implements Closeable {
 			if ("delete".equals(sysEvent[0])) {
 				Status deadTweet = (Status) sysEvent[1];
 				// prune local (which is unlikely to do much)
-				boolean pruned = tweets.remove(deadTweet);
+				boolean pruned;
+				synchronized (tweets) {
+					pruned = tweetIds.remove(deadTweet.id)
+							&& tweets.remove(deadTweet);
+				}
 				if (!pruned) {
-					sysEvents.add(sysEvent);
-					forgotten += forgetIfFull(sysEvents);
+					offer(sysEvents, sysEvent);
 				}
 				return;
 			} else if ("limit".equals(sysEvent[0])) {
 				Integer cnt = (Integer) sysEvent[1];				
-				sysEvents.add(sysEvent);
-				forgotten += cnt;
+				offer(sysEvents, sysEvent);
+				forgotten.addAndGet(cnt);
 				return;				
 			}
 		}
@@ -605,36 +1108,7 @@ public abstract class AStream implements Closeable {
 		for (User nf : newFriends) {
 			TwitterEvent e = new TwitterEvent(new Date(), you,
 					TwitterEvent.Type.FOLLOW, nf, null);
-			events.add(e);
-		}
-		forgotten += forgetIfFull(events);
-	}
-
-	/**
-	 * (Re)connect to Twitter. This can take upto 15 minutes before it gives up!
-	 * Although it will give up straight away on user error (E40X exceptions).
-	 * <p>
-	 * Stores outage information if appropriate.
-	 */
-	synchronized void reconnect() {
-		// do the reconnect (can be slow)
-		long now = System.currentTimeMillis();
-		reconnect2();
-		long dt = System.currentTimeMillis() - now;
-		addSysEvent(new Object[]{"reconnect", dt});
-
-		// store the outage
-		// TODO merge small outages
-		if (lastId != BigInteger.ZERO) {
-			outages.add(new Outage(lastId, System.currentTimeMillis()));
-			// paranoia: avoid memory leaks
-			if (outages.size() > 100000) {
-				for (int i = 0; i < 1000; i++) {
-					outages.remove(0);
-				}
-				// add an arbitrary number to the forgotten count: 10 per outage
-				forgotten += 10000;
-			}
+			offer(events, e);
 		}
 	}
 
@@ -644,73 +1118,116 @@ public abstract class AStream implements Closeable {
 	 * @param sysEvent
 	 */
 	void addSysEvent(Object[] sysEvent) {
-		sysEvents.add(sysEvent);
+		offer(sysEvents, sysEvent);
 		if (listeners.size()==0) return;
-		synchronized (listeners) {
+		// keep it in order with the messages being delivered
+		StreamGobbler gobbler = readThread;
+		ParsePipeline pipeline = gobbler == null ? null : gobbler.pipeline;
+		if (pipeline != null && ! pipeline.isClosed()
+				&& ! pipeline.isDeliverer()) {
 			try {
-				for (IListen listener : listeners) {
-					boolean carryOn = listener.processSystemEvent(sysEvent);
-					// hide from earlier listeners?
-					if (!carryOn) {
-						break;
-					}
-				}
-			} catch (Exception e) {
-				// swallow it & keep the stream flowing
-				e.printStackTrace();
+				pipeline.deliver(sysEvent);
+				return;
+			} catch (InterruptedException e) {
+				// oh well - deliver it directly
 			}
 		}
+		notifyListeners(sysEvent);
 	}
 
-	private void reconnect2() {
-		// Try again as advised by dev.twitter.com:
-		// 1. straightaway
+	/**
+	 * Pass a parsed message to the listeners.
+	 * 
+	 * @param obj
+	 *            from {@link #read3_parse(JSONObject, Twitter)} or a sys-event
+	 */
+	void notifyListeners(Object obj) {
+		// no lock needed: listeners is copy-on-write
 		try {
-			connect();
-			return;
-		} catch (TwitterException.E40X e) {
-			throw e;
-		} catch (Exception e) {
-			// oh well
-			System.out.println(e);
-		}
-		// 2. Exponential back-off. Wait a random number of seconds between 20
-		// and 40 seconds.
-		// Double this value on each subsequent connection failure.
-		// Limit this value to the maximum of a random number of seconds between
-		// 240 and 300 seconds.
-		int wait = 20 + new Random().nextInt(40);
-		int waited = 0;
-		while (waited < MAX_WAIT_SECONDS) {
-			try {
-				Thread.sleep(wait * 1000);
-				waited += wait;
-				if (wait < 300) {
-					wait = wait * 2;
+			for (IListen listener : listeners) {
+				boolean carryOn;
+				long t0 = System.nanoTime();
+				if (obj instanceof ITweet) {
+					carryOn = listener.processTweet((ITweet) obj);
+				} else if (obj instanceof TwitterEvent) {
+					carryOn = listener.processEvent((TwitterEvent) obj);
+				} else if (obj instanceof Object[]) {
+					carryOn = listener.processSystemEvent((Object[]) obj);
+				} else {
+					// unknown json (already logged by read3_parse)
+					return;
+				}
+				latency(listener).end(t0);
+				// hide from earlier listeners?
+				if (!carryOn) {
+					break;
 				}
-				connect();
-				// success :)
-				return;
-			} catch (TwitterException.E40X e) {
-				throw e;
-			} catch (Exception e) {
-				// oh well
-				System.out.println(e);
 			}
+		} catch (Exception e) {
+			// swallow it & keep the stream flowing
+			e.printStackTrace();
 		}
-		throw new TwitterException.E50X("Could not connect to streaming server");
 	}
 
-	synchronized void reconnectFromGobblerThread() {
-		assert Thread.currentThread() == readThread || readThread==null : this;
-		if (isConnected())
+	/**
+	 * @return the timer for listener (created if need be)
+	 */
+	private Latency latency(IListen listener) {
+		Latency lat = listenerLatency.get(listener);
+		if (lat == null) {
+			Latency fresh = new Latency();
+			lat = listenerLatency.putIfAbsent(listener, fresh);
+			if (lat == null) {
+				lat = fresh;
+			}
+		}
+		return lat;
+	}
+
+	/**
+	 * Copy the {@link StreamFilter} rules (if any) onto a freshly parsed
+	 * tweet.
+	 * 
+	 * @param obj
+	 *            from {@link #read3_parse(JSONObject, Twitter)}
+	 */
+	final void tag(Object obj) {
+		StreamFilter f = filter;
+		if (f == null || !(obj instanceof Status))
 			return;
-		reconnect();
+		Status status = (Status) obj;
+		status.matchedRules = f.getRules(status.id);
+	}
+
+	public boolean removeListener(IListenBatch listener) {
+		synchronized (listeners) {
+			for (IListen l : listeners) {
+				if (l instanceof BatchListener
+						&& ((BatchListener) l).listener.equals(listener)) {
+					((BatchListener) l).close();
+					listenerLatency.remove(l);
+					return listeners.remove(l);
+				}
+			}
+			return false;
+		}
 	}
 
 	public boolean removeListener(IListen listener) {
 		synchronized (listeners) {
-			return listeners.remove(listener);
+			for (IListen l : listeners) {
+				if (l.equals(listener)) {
+					listenerLatency.remove(l);
+					return listeners.remove(l);
+				}
+				if (l instanceof QueuedListener
+						&& ((QueuedListener) l).listener.equals(listener)) {
+					((QueuedListener) l).close();
+					listenerLatency.remove(l);
+					return listeners.remove(l);
+				}
+			}
+			return false;
 		}
 	}
 
@@ -723,6 +1240,69 @@ public abstract class AStream implements Closeable {
 		autoReconnect = yes;
 	}
 
+	/**
+	 * @param yes
+	 *            If true (the default), outages are filled in via the REST API
+	 *            a little while after an auto-reconnect. See
+	 *            {@link #fillInOutages()}.
+	 */
+	public void setAutoFillInOutages(boolean yes) {
+		reconnector.setAutoFillIn(yes);
+	}
+
+	/**
+	 * @param policy
+	 *            What to do when the buffers fill up. The default is
+	 *            {@link KBackpressure#DROP_OLDEST}. Can be changed at any
+	 *            time.
+	 * @see #getBackpressureStats()
+	 */
+	public void setBackpressure(KBackpressure policy) {
+		assert policy != null;
+		backpressure = policy;
+	}
+
+	/**
+	 * @param maxBlockMillis
+	 *            For {@link KBackpressure#BLOCK}: how long to wait for a slow
+	 *            consumer before dropping messages. 5 seconds by default.
+	 *            Keep this short: whilst blocked, nothing is read from
+	 *            Twitter.
+	 */
+	public void setMaxBlockMillis(long maxBlockMillis) {
+		this.maxBlockMillis = maxBlockMillis;
+	}
+
+	/**
+	 * @param filter
+	 *            If set, tweets are filtered & tagged by this before parsing.
+	 *            Can be null (the default) for no filtering.
+	 */
+	public void setFilter(StreamFilter filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * @param journal
+	 *            If set, every raw message received is appended to this --
+	 *            for crash recovery, or to replay the stream later. Can be
+	 *            null (the default) for no journal. The stream does not close
+	 *            the journal.
+	 */
+	public void setJournal(StreamJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * @param dir
+	 *            For {@link KBackpressure#SPILL}: where to put the overflow
+	 *            files. null (the default) for the system temp directory.
+	 *            Affects connections made afterwards.
+	 */
+	public void setSpillDir(File dir) {
+		spillDir = dir;
+	}
+
 	/**
 	 * How many messages prior-to-connecting to retrieve. Twitter bug: Currently
 	 * this does not work!
@@ -752,14 +1332,14 @@ final class StreamGobbler extends Thread {
 	Exception ex;
 
 	/**
-	 * count of the number of tweets this gobbler had to drop due to buffer size
+	 * The collected json snippets, waiting for {@link AStream#read()}.
 	 */
-	int forgotten;
+	final RingBuffer<String> jsons = new RingBuffer<String>(AStream.MAX_BUFFER);
 
 	/**
-	 * Use synchronised blocks when editing this
+	 * Applies the backpressure policy to {@link #jsons}
 	 */
-	private ArrayList<String> jsons = new ArrayList();
+	final Overflow pollOverflow;
 
 //	long offTime;
 
@@ -767,9 +1347,25 @@ final class StreamGobbler extends Thread {
 
 	final AStream stream;
 
+	/**
+	 * Parses & delivers messages to listeners. Created when first needed.
+	 */
+	volatile ParsePipeline pipeline;
+
 	public StreamGobbler(AStream stream) {
 		setDaemon(true);
 		this.stream = stream;
+		pollOverflow = new Overflow(new Overflow.ITarget() {
+			@Override
+			public boolean dropOldest() {
+				return jsons.dropOldest();
+			}
+
+			@Override
+			public boolean tryOffer(String json) {
+				return jsons.tryOffer(json);
+			}
+		}, stream, "poll");
 	}
 
 	@Override
@@ -788,103 +1384,33 @@ final class StreamGobbler extends Thread {
 			URLConnectionHttpClient.close(stream.stream);
 		}
 		stopFlag = true;
+		if (pipeline != null) {
+			pipeline.close();
+		}
+		pollOverflow.close();
 	}
 
-	/**
-	 * Read off the collected json snippets for processing
-	 * 
-	 * @return
-	 */
-	public synchronized String[] popJsons() {
-		String[] arr = jsons.toArray(new String[jsons.size()]);
-		// jsons.clear(); This wasn't really working for good memory management
-		jsons = new ArrayList();
-		return arr;
-	}
-
-	private void readJson(BufferedReader br, int len) throws IOException {
-		// Read len chars from the stream
-		assert len > 0;
-		char[] sb = new char[len];
-		int cnt = 0;
-		while (len > 0) {
-			int rd = br.read(sb, cnt, len);
-			if (rd == -1)
-				throw new IOException("end of stream");
-			// continue;
-			cnt += rd;
-			len -= rd;
-		}
-		
-		String json = new String(sb);
+	private void readJson(String json) {
 		if ( ! stream.listenersOnly) {
-			synchronized (this) {
-				jsons.add(json);
-				// forget a batch?
-				forgotten += AStream.forgetIfFull(jsons);
-			}
+			// drops are counted by the overflow (see getBackpressureStats())
+			pollOverflow.offer(json);
 		}
 
 		// push notifications
 		readJson2_notifyListeners(json);
 	}
 
+	/**
+	 * Parsing and listener calls happen in the pipeline's threads, so that
+	 * this thread can get on with reading.
+	 */
 	private void readJson2_notifyListeners(String json) {
 		if (stream.listeners.size() == 0)
 			return;
-		synchronized (stream.listeners) {
-			try {
-				JSONObject jo = new JSONObject(json);
-				Object obj = AStream.read3_parse(jo, stream.jtwit);
-				for (IListen listener : stream.listeners) {
-					boolean carryOn;
-					if (obj instanceof ITweet) {
-						carryOn = listener.processTweet((ITweet) obj);
-					} else if (obj instanceof TwitterEvent) {
-						carryOn = listener.processEvent((TwitterEvent) obj);
-					} else {
-						carryOn = listener.processSystemEvent((Object[]) obj);
-					}
-					// hide from earlier listeners?
-					if (!carryOn) {
-						break;
-					}
-				}
-			} catch (Exception e) {
-				// swallow it & keep the stream flowing
-				e.printStackTrace();
-			}
+		if (pipeline == null) {
+			pipeline = new ParsePipeline(stream, AStream.PARSE_THREADS);
 		}
-	}
-
-	/**
-	 * Read a number from the stream -- which is the length of the next message.
-	 * @param br
-	 * @return
-	 * @throws IOException
-	 */
-	private int readLength(BufferedReader br) throws IOException {
-		StringBuilder numSb = new StringBuilder();
-		while (true) {
-			int ich = br.read();
-			if (ich == -1)
-				throw new IOException("end of stream " + this);
-			// continue;
-			char ch = (char) ich;
-			if (ch == '\n' || ch == '\r') {
-				// ignore leading whitespace, stop otherwise
-				if (numSb.length() == 0) {
-					continue;
-				}
-				// done!
-				break;
-			}
-			// collect digits
-			assert Character.isDigit(ch) : ch;
-			assert numSb.length() < 10 : numSb; // paranoia
-			numSb.append(ch);
-		}
-		return Integer.valueOf(numSb.toString());
+		pipeline.submit(json);
 	}
 
 	@Override
@@ -892,11 +1418,26 @@ final class StreamGobbler extends Thread {
 		while (!stopFlag) {			
 			assert stream.stream != null : stream;
 			try {
-				InputStreamReader isr = new InputStreamReader(stream.stream);
-				BufferedReader br = new BufferedReader(isr);
+				StreamFramer framer = new StreamFramer(stream.stream, stream);
 				while (!stopFlag) {
-					int len = readLength(br);
-					readJson(br, len);
+					ByteBuffer frame = framer.nextFrame();
+					if ( ! frame.hasRemaining()) {
+						continue;
+					}
+					stream.framesIn.incrementAndGet();
+					long id = StreamJournal.parseId(frame);
+					if (id > stream.lastTweetId) {
+						stream.lastTweetId = id;
+					}
+					StreamJournal journal = stream.journal;
+					if (journal != null) {
+						journal.append(frame);
+					}
+					StreamFilter filter = stream.filter;
+					if (filter != null && ! filter.accept(frame)) {
+						continue;
+					}
+					readJson(StreamFramer.toString(frame));
 				}
 			} catch (Exception ioe) {
 				if (stopFlag) {
@@ -904,23 +1445,19 @@ final class StreamGobbler extends Thread {
 					return;
 				}
 				ex = ioe;
+				stream.errors.incrementAndGet();
+				stream.lastError = ioe.toString();
 //				offTime = System.currentTimeMillis();
 				// TODO log this as a sys-event
 				stream.addSysEvent(new Object[]{"exception", ex});
-				// try a reconnect?
-				if (!stream.autoReconnect)
-					return; // no - break out of the loop
-				// Note: the thread can also hang or die, so we also do
-				// reconnects from
-				// the AStream.read() method.
-				try {
-					stream.reconnectFromGobblerThread();
-					assert stream.stream != null : stream;
-				} catch (Exception e) {
-					// #fail
-					ex = e;
-					return;
+				// try a reconnect? This happens in the background, with a new
+				// gobbler -- so this one is done.
+				// Note: the thread can also hang or die, so reconnects are
+				// also triggered from the AStream.read() method.
+				if (stream.autoReconnect) {
+					stream.reconnector.onFailure(ex);
 				}
+				return;
 			}
 		}
 	}
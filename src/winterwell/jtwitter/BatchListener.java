@@ -0,0 +1,153 @@
+package winterwell.jtwitter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import winterwell.jtwitter.AStream.IListenBatch;
+import winterwell.jtwitter.Twitter.ITweet;
+
+/**
+ * Collects messages into batches for an {@link IListenBatch}, on its own
+ * thread. A batch is delivered when it reaches maxBatch items, or when its
+ * first item has waited maxLinger -- whichever comes first.
+ * <p>
+ * Like {@link QueuedListener}, this always passes messages on, and drops the
+ * oldest if it falls too far behind.
+ * <p>
+ * The arrays passed to the listener are re-used when the next batch has the
+ * same shape (e.g. full batches of tweets), so a busy stream doesn't
+ * allocate new ones each time.
+ *
+ * @see AStream#addListener(IListenBatch, int, long)
+ */
+final class BatchListener extends ThreadedListener {
+
+	private static final Object[][] NO_SYS_EVENTS = new Object[0][];
+
+	private static final TwitterEvent[] NO_EVENTS = new TwitterEvent[0];
+
+	private static final ITweet[] NO_TWEETS = new ITweet[0];
+
+	final AtomicLong batches = new AtomicLong();
+
+	private TwitterEvent[] events = NO_EVENTS;
+
+	private final int maxBatch;
+
+	private final long maxLingerNanos;
+
+	private Object[][] sysEvents = NO_SYS_EVENTS;
+
+	private final IListenBatch target;
+
+	private ITweet[] tweets = NO_TWEETS;
+
+	BatchListener(IListenBatch listener, int maxBatch, long maxLingerMillis) {
+		super(listener, "ListenBatch", Math.max(AStream.MAX_BUFFER, maxBatch));
+		target = listener;
+		this.maxBatch = Math.max(1, maxBatch);
+		maxLingerNanos = TimeUnit.MILLISECONDS.toNanos(maxLingerMillis);
+		start();
+	}
+
+	/**
+	 * Split the batch by type, and pass it on.
+	 */
+	private void deliver(List<Object> batch) {
+		int nTweets = 0, nEvents = 0;
+		for (Object obj : batch) {
+			if (obj instanceof ITweet) {
+				nTweets++;
+			} else if (obj instanceof TwitterEvent) {
+				nEvents++;
+			}
+		}
+		int nSysEvents = batch.size() - nTweets - nEvents;
+		if (tweets.length != nTweets) {
+			tweets = new ITweet[nTweets];
+		}
+		if (events.length != nEvents) {
+			events = new TwitterEvent[nEvents];
+		}
+		if (sysEvents.length != nSysEvents) {
+			sysEvents = new Object[nSysEvents][];
+		}
+		int t = 0, e = 0, s = 0;
+		for (Object obj : batch) {
+			if (obj instanceof ITweet) {
+				tweets[t++] = (ITweet) obj;
+			} else if (obj instanceof TwitterEvent) {
+				events[e++] = (TwitterEvent) obj;
+			} else {
+				sysEvents[s++] = (Object[]) obj;
+			}
+		}
+		batches.incrementAndGet();
+		long t0 = System.nanoTime();
+		try {
+			target.processBatch(tweets, events, sysEvents);
+		} catch (Exception ex) {
+			// swallow it & keep the stream flowing
+			ex.printStackTrace();
+		}
+		latency.end(t0);
+		// don't keep the messages alive until the next batch
+		Arrays.fill(tweets, null);
+		Arrays.fill(events, null);
+		Arrays.fill(sysEvents, null);
+	}
+
+	@Override
+	void runLoop() throws InterruptedException {
+		List<Object> batch = new ArrayList<Object>(maxBatch);
+		while (true) {
+			Object first = queue.take();
+			if (first == STOP)
+				return;
+			batch.add(first);
+			// linger for more?
+			long deadline = System.nanoTime() + maxLingerNanos;
+			while (batch.size() < maxBatch) {
+				queue.drainTo(batch, maxBatch - batch.size());
+				if (batch.size() >= maxBatch) {
+					break;
+				}
+				long wait = deadline - System.nanoTime();
+				if (wait <= 0) {
+					break;
+				}
+				Object next = queue.poll(wait, TimeUnit.NANOSECONDS);
+				if (next == null) {
+					break;
+				}
+				batch.add(next);
+			}
+			// close() clears the queue, so STOP can only be last
+			boolean stop = batch.remove(STOP);
+			if (!batch.isEmpty()) {
+				deliver(batch);
+			}
+			batch.clear();
+			if (stop)
+				return;
+		}
+	}
+
+	/**
+	 * Add this listener's counts to stats.
+	 */
+	@Override
+	void stats(Map<String, Long> stats) {
+		super.stats(stats);
+		stats.put("listener:" + listener + ".batches", batches.get());
+	}
+
+	@Override
+	public String toString() {
+		return "BatchListener[" + listener + "]";
+	}
+}
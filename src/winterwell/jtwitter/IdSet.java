@@ -0,0 +1,69 @@
+package winterwell.jtwitter;
+
+import java.math.BigInteger;
+import java.util.HashSet;
+
+import winterwell.jtwitter.guts.LongSet;
+
+/**
+ * A set of Twitter ids. Ids are numbers which (nearly always) fit in a long,
+ * so these are stored unboxed. Ids which don't fit fall back to a set of
+ * BigIntegers.
+ * <p>
+ * Used by {@link AStream} for fast de-duplication of incoming tweets. Not
+ * thread-safe.
+ */
+final class IdSet {
+
+	private final HashSet<BigInteger> bigIds = new HashSet<BigInteger>(0);
+
+	private final LongSet ids;
+
+	IdSet(int expectedSize) {
+		ids = new LongSet(expectedSize);
+	}
+
+	/**
+	 * @return true if id was not already in the set
+	 */
+	boolean add(Number id) {
+		if (isLong(id))
+			return ids.add(id.longValue());
+		return bigIds.add(big(id));
+	}
+
+	private BigInteger big(Number id) {
+		return id instanceof BigInteger ? (BigInteger) id : new BigInteger(
+				id.toString());
+	}
+
+	void clear() {
+		ids.clear();
+		bigIds.clear();
+	}
+
+	boolean contains(Number id) {
+		if (isLong(id))
+			return ids.contains(id.longValue());
+		return bigIds.contains(big(id));
+	}
+
+	private boolean isLong(Number id) {
+		if (id instanceof BigInteger)
+			return ((BigInteger) id).bitLength() < 64;
+		return id instanceof Long || id instanceof Integer;
+	}
+
+	/**
+	 * @return true if id was in the set
+	 */
+	boolean remove(Number id) {
+		if (isLong(id))
+			return ids.remove(id.longValue());
+		return bigIds.remove(big(id));
+	}
+
+	int size() {
+		return ids.size() + bigIds.size();
+	}
+}
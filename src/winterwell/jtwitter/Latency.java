@@ -0,0 +1,54 @@
+package winterwell.jtwitter;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cheap, thread-safe timing of an operation, for {@link StreamMetrics}.
+ */
+final class Latency {
+
+	private final AtomicLong count = new AtomicLong();
+
+	private long lastCount;
+
+	private long lastTotal;
+
+	private final AtomicLong max = new AtomicLong();
+
+	private final AtomicLong totalNanos = new AtomicLong();
+
+	/**
+	 * @param startNanos
+	 *            from System.nanoTime() at the start of the operation
+	 */
+	void end(long startNanos) {
+		long dt = System.nanoTime() - startNanos;
+		count.incrementAndGet();
+		totalNanos.addAndGet(dt);
+		while (true) {
+			long m = max.get();
+			if (dt <= m || max.compareAndSet(m, dt))
+				return;
+		}
+	}
+
+	/**
+	 * @return {count, mean milliseconds, max milliseconds} since the last
+	 *         call. Resets the max.
+	 */
+	synchronized double[] snapshot() {
+		long c = count.get();
+		long t = totalNanos.get();
+		long m = max.getAndSet(0);
+		long dc = c - lastCount;
+		double mean = dc == 0 ? 0 : (t - lastTotal) / (dc * 1000000.0);
+		lastCount = c;
+		lastTotal = t;
+		return new double[] { dc, mean, m / 1000000.0 };
+	}
+
+	@Override
+	public String toString() {
+		return "Latency[" + count + "]";
+	}
+}
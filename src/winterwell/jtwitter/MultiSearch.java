@@ -0,0 +1,236 @@
+package winterwell.jtwitter;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import winterwell.jtwitter.Twitter.ICallback;
+import winterwell.jtwitter.Twitter.KRequestType;
+
+/**
+ * Run many searches at once. E.g. for back-filling all the keywords tracked by
+ * a {@link TwitterStream} after an outage.
+ * <p>
+ * Each search runs in its own thread, using a copy of the Twitter object, so
+ * the search settings (since-id, until-date, maxResults, language, etc.) of
+ * the Twitter object are respected. Results are de-duplicated across searches
+ * by status id.
+ * <p>
+ * Example usage:
+ *
+ * <pre><code>
+ * MultiSearch ms = new MultiSearch(twitter, 8);
+ * List&lt;Status&gt; tweets = ms.search(keywords, null);
+ * </code></pre>
+ *
+ * <h3>Rate limits</h3>
+ * Search has its own rate limit. If this runs out, any searches which have not
+ * finished are stopped and listed in {@link #getUnfinished()} -- so you can try
+ * them again later.
+ */
+public class MultiSearch {
+
+	/**
+	 * Why searches failed, by search term.
+	 */
+	private final Map<String, Exception> errors = new ConcurrentHashMap<String, Exception>();
+
+	private final Twitter jtwit;
+
+	/**
+	 * Stop when the search rate limit falls to this.
+	 */
+	private int minRateLimit;
+
+	private final int numThreads;
+
+	/**
+	 * Search terms which were not (fully) searched, e.g. due to rate limits.
+	 */
+	private final List<String> unfinished = Collections
+			.synchronizedList(new ArrayList<String>());
+
+	private int rpp = 100;
+
+	/**
+	 * Set to true by a callback returning true, or by hitting the rate limit.
+	 */
+	private volatile boolean stopFlag;
+
+	private volatile boolean rateLimited;
+
+	/**
+	 * ids of statuses found so far
+	 */
+	private final Set<BigInteger> seen = Collections
+			.newSetFromMap(new ConcurrentHashMap<BigInteger, Boolean>());
+
+	/**
+	 * @param jtwit
+	 *            The search settings from this are used. The object itself is
+	 *            not modified.
+	 * @param numThreads
+	 *            The maximum number of searches to run in parallel. Be
+	 *            considerate: 4 to 10 is plenty.
+	 */
+	public MultiSearch(Twitter jtwit, int numThreads) {
+		assert numThreads > 0 : numThreads;
+		this.jtwit = jtwit;
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * @return search terms which did not finish in the last call to
+	 *         {@link #search(Collection, ICallback)} (due to rate limits,
+	 *         errors, or the callback stopping things). Never null.
+	 */
+	public List<String> getUnfinished() {
+		return unfinished;
+	}
+
+	/**
+	 * @return the exceptions which stopped searches in the last call to
+	 *         {@link #search(Collection, ICallback)}, by search term. These
+	 *         terms are also in {@link #getUnfinished()}. Never null.
+	 */
+	public Map<String, Exception> getErrors() {
+		return errors;
+	}
+
+	/**
+	 * @return true if the last call to {@link #search(Collection, ICallback)}
+	 *         stopped early because the search rate limit ran out.
+	 */
+	public boolean isRateLimited() {
+		return rateLimited;
+	}
+
+	/**
+	 * Run all the searches. This blocks until they're done.
+	 *
+	 * @param searchTerms
+	 *            As for {@link Twitter#search(String)}
+	 * @param callback
+	 *            Can be null. Called with each page of new (i.e. not seen
+	 *            before in this search) results, as they arrive. Calls are
+	 *            synchronized on the callback, so it need not be thread-safe.
+	 *            Return true to stop all the searches.
+	 * @return de-duplicated results from all the searches.
+	 */
+	public List<Status> search(Collection<String> searchTerms,
+			final ICallback callback) {
+		stopFlag = false;
+		rateLimited = false;
+		seen.clear();
+		unfinished.clear();
+		errors.clear();
+		final List<Status> results = Collections
+				.synchronizedList(new ArrayList<Status>());
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(
+				numThreads, Math.max(1, searchTerms.size())));
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>(
+					searchTerms.size());
+			for (final String searchTerm : searchTerms) {
+				futures.add(pool.submit(new Runnable() {
+					@Override
+					public void run() {
+						search2(searchTerm, callback, results);
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			stopFlag = true;
+			throw new TwitterException(e);
+		} catch (Exception e) {
+			// search2 handles its own exceptions, so this is unexpected
+			throw new TwitterException(e);
+		} finally {
+			pool.shutdownNow();
+		}
+		return results;
+	}
+
+	private void search2(String searchTerm, final ICallback callback,
+			final List<Status> results) {
+		if (stopFlag) {
+			unfinished.add(searchTerm);
+			return;
+		}
+		// Twitter objects are not thread safe, so each search gets a copy
+		final Twitter jtwit2 = jtwit.copyWithSettings();
+		ICallback perPage = new ICallback() {
+			@Override
+			public boolean process(List<Status> statuses) {
+				List<Status> fresh = new ArrayList<Status>(statuses.size());
+				for (Status status : statuses) {
+					if (seen.add(status.id)) {
+						fresh.add(status);
+					}
+				}
+				results.addAll(fresh);
+				if (callback != null && !fresh.isEmpty()) {
+					synchronized (callback) {
+						if (callback.process(fresh)) {
+							stopFlag = true;
+						}
+					}
+				}
+				// out of credit?
+				RateLimit rl = jtwit2.getRateLimit(KRequestType.SEARCH);
+				if (rl != null && rl.getRemaining() <= minRateLimit
+						&& !rl.isOutOfDate()) {
+					rateLimited = true;
+					stopFlag = true;
+				}
+				return stopFlag;
+			}
+		};
+		try {
+			jtwit2.search(searchTerm, perPage, rpp);
+			// stopped early? (not if that was the last page anyway)
+			if (jtwit2.searchStopped) {
+				unfinished.add(searchTerm);
+			}
+		} catch (TwitterException.RateLimit e) {
+			rateLimited = true;
+			stopFlag = true;
+			errors.put(searchTerm, e);
+			unfinished.add(searchTerm);
+		} catch (Exception e) {
+			// keep the other searches going
+			errors.put(searchTerm, e);
+			unfinished.add(searchTerm);
+		}
+	}
+
+	/**
+	 * @param minCalls
+	 *            Stop searching when the search rate limit falls to this.
+	 *            0 by default.
+	 */
+	public void setMinRateLimit(int minCalls) {
+		this.minRateLimit = minCalls;
+	}
+
+	/**
+	 * @param rpp
+	 *            results per page. 100 by default.
+	 * @see Twitter#search(String, ICallback, int)
+	 */
+	public void setResultsPerPage(int rpp) {
+		this.rpp = rpp;
+	}
+
+}
@@ -0,0 +1,319 @@
+package winterwell.jtwitter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import winterwell.jtwitter.AStream.KBackpressure;
+
+/**
+ * Applies the stream's {@link KBackpressure} policy when the gobbler hands a
+ * message to a consumer (the polling buffer, or the listener pipeline) which
+ * has no room for it. Also keeps count of what happened.
+ */
+final class Overflow {
+
+	/**
+	 * A bounded queue of raw json, which the gobbler feeds.
+	 */
+	static interface ITarget {
+		/**
+		 * @return true if json was added, false if there's no room
+		 */
+		boolean tryOffer(String json);
+
+		/**
+		 * Throw away the oldest message.
+		 *
+		 * @return false if there was nothing to drop
+		 */
+		boolean dropOldest();
+	}
+
+	/**
+	 * A simple on-disk queue of strings (as length-prefixed UTF-8). The file
+	 * is truncated whenever it empties, and deleted on close.
+	 * <p>
+	 * Writes are buffered, and only flushed when the reader catches up with
+	 * them.
+	 */
+	static final class SpillFile {
+		private static final int BUFFER_SIZE = 64 * 1024;
+		private int count;
+		private final File dir;
+		private File file;
+		/**
+		 * Everything before this has been flushed to the file
+		 */
+		private long flushedPos;
+		private String next;
+		private long nextEnd;
+		private DataOutputStream out;
+		private FileOutputStream outFile;
+		private RandomAccessFile raf;
+		private long readPos;
+		private final String name;
+		private long writePos;
+
+		SpillFile(File dir, String name) {
+			this.dir = dir;
+			this.name = name;
+		}
+
+		synchronized void append(String json) throws IOException {
+			if (raf == null) {
+				file = File.createTempFile("jtwitter-" + name + "-", ".spill",
+						dir);
+				outFile = new FileOutputStream(file);
+				out = new DataOutputStream(new BufferedOutputStream(outFile,
+						BUFFER_SIZE));
+				raf = new RandomAccessFile(file, "r");
+			}
+			byte[] bytes = json.getBytes(StreamFramer.UTF8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+			writePos += 4 + bytes.length;
+			count++;
+		}
+
+		synchronized void close() {
+			if (raf == null)
+				return;
+			InternalUtils.close(out);
+			InternalUtils.close(raf);
+			file.delete();
+			raf = null;
+			out = null;
+			outFile = null;
+			count = 0;
+			readPos = writePos = flushedPos = 0;
+			next = null;
+		}
+
+		/**
+		 * @return the oldest message, or null if empty
+		 */
+		synchronized String peek() throws IOException {
+			if (count == 0)
+				return null;
+			if (next == null) {
+				if (readPos >= flushedPos) {
+					out.flush();
+					flushedPos = writePos;
+				}
+				raf.seek(readPos);
+				byte[] bytes = new byte[raf.readInt()];
+				raf.readFully(bytes);
+				next = new String(bytes, StreamFramer.UTF8);
+				nextEnd = raf.getFilePointer();
+			}
+			return next;
+		}
+
+		/**
+		 * Remove the message returned by {@link #peek()}
+		 */
+		synchronized void remove() throws IOException {
+			assert next != null;
+			readPos = nextEnd;
+			next = null;
+			count--;
+			if (count == 0) {
+				// everything was flushed to be read, so the buffer is empty
+				readPos = writePos = flushedPos = 0;
+				outFile.getChannel().truncate(0);
+			}
+		}
+
+		synchronized int size() {
+			return count;
+		}
+	}
+
+	final AtomicLong blocked = new AtomicLong();
+	final AtomicLong blockedMillis = new AtomicLong();
+	final AtomicLong droppedNewest = new AtomicLong();
+	final AtomicLong droppedOldest = new AtomicLong();
+	private final String name;
+	final AtomicLong replayed = new AtomicLong();
+	/**
+	 * The gobbler waits on this under {@link KBackpressure#BLOCK}
+	 */
+	private final Object room = new Object();
+	private final SpillFile spill;
+	final AtomicLong spilled = new AtomicLong();
+	final AtomicLong spillErrors = new AtomicLong();
+	private final AStream stream;
+	private final ITarget target;
+	final AtomicLong timeouts = new AtomicLong();
+	/**
+	 * Number of threads waiting on {@link #room}
+	 */
+	private volatile int waiting;
+
+	/**
+	 * @param target
+	 * @param stream
+	 *            Provides the policy settings
+	 * @param name
+	 *            e.g. "poll" or "listen". Used for stats & spill-file names.
+	 */
+	Overflow(ITarget target, AStream stream, String name) {
+		this.target = target;
+		this.stream = stream;
+		this.name = name;
+		spill = new SpillFile(stream.spillDir, name);
+	}
+
+	void close() {
+		spill.close();
+	}
+
+	/**
+	 * Keep dropping the oldest message until json fits.
+	 *
+	 * @return number dropped
+	 */
+	private int dropOldestUntilAdded(String json) {
+		int dropped = 0;
+		while (!target.tryOffer(json)) {
+			if (target.dropOldest()) {
+				dropped++;
+			}
+		}
+		droppedOldest.addAndGet(dropped);
+		return dropped;
+	}
+
+	/**
+	 * Add json to the target, applying the backpressure policy if it's full.
+	 * Call from the gobbler thread.
+	 *
+	 * @param json
+	 * @return the number of messages lost as a result
+	 */
+	int offer(String json) {
+		KBackpressure policy = stream.backpressure;
+		// Always go via the spill file if it's in use (to preserve order), even
+		// if the policy has changed since
+		if (policy == KBackpressure.SPILL || spill.size() != 0) {
+			synchronized (spill) {
+				replay();
+				if (spill.size() == 0 && target.tryOffer(json))
+					return 0;
+				try {
+					spill.append(json);
+					spilled.incrementAndGet();
+					return 0;
+				} catch (IOException e) {
+					// disk full? fall back to the default
+					spillErrors.incrementAndGet();
+					return dropOldestUntilAdded(json);
+				}
+			}
+		}
+		if (target.tryOffer(json))
+			return 0;
+		switch (policy) {
+		case DROP_NEWEST:
+			droppedNewest.incrementAndGet();
+			return 1;
+		case BLOCK:
+			blocked.incrementAndGet();
+			long start = System.currentTimeMillis();
+			long deadline = start + stream.maxBlockMillis;
+			try {
+				synchronized (room) {
+					waiting++;
+					try {
+						// roomMade() can't slip in between the offer and the
+						// wait, as it needs the lock
+						while (true) {
+							if (target.tryOffer(json))
+								return 0;
+							long wait = deadline - System.currentTimeMillis();
+							if (wait <= 0) {
+								break;
+							}
+							room.wait(wait);
+						}
+					} finally {
+						waiting--;
+					}
+				}
+			} catch (InterruptedException e) {
+				// closing -- fall through to dropping
+				Thread.currentThread().interrupt();
+			} finally {
+				blockedMillis.addAndGet(System.currentTimeMillis() - start);
+			}
+			timeouts.incrementAndGet();
+			return dropOldestUntilAdded(json);
+		default:
+			return dropOldestUntilAdded(json);
+		}
+	}
+
+	/**
+	 * Wake the gobbler if it is blocked. Call from the consumer's thread
+	 * after taking messages from the target. Cheap when nothing is waiting.
+	 */
+	void roomMade() {
+		if (waiting == 0)
+			return;
+		synchronized (room) {
+			room.notifyAll();
+		}
+	}
+
+	/**
+	 * Move spilled messages back into the target, while it has room. Safe to
+	 * call from the consumer's thread.
+	 *
+	 * @return the number of messages moved
+	 */
+	int replay() {
+		if (spill.size() == 0)
+			return 0;
+		int cnt = 0;
+		synchronized (spill) {
+			try {
+				String json;
+				while ((json = spill.peek()) != null) {
+					if (!target.tryOffer(json)) {
+						break;
+					}
+					spill.remove();
+					cnt++;
+				}
+			} catch (IOException e) {
+				// give up on the spill file
+				spillErrors.incrementAndGet();
+				droppedOldest.addAndGet(spill.size());
+				spill.close();
+			}
+		}
+		replayed.addAndGet(cnt);
+		return cnt;
+	}
+
+	/**
+	 * Add this overflow's counts to stats, prefixed by its name.
+	 */
+	void stats(Map<String, Long> stats) {
+		stats.put(name + ".droppedOldest", droppedOldest.get());
+		stats.put(name + ".droppedNewest", droppedNewest.get());
+		stats.put(name + ".blocked", blocked.get());
+		stats.put(name + ".blockedMillis", blockedMillis.get());
+		stats.put(name + ".blockTimeouts", timeouts.get());
+		stats.put(name + ".spilled", spilled.get());
+		stats.put(name + ".replayed", replayed.get());
+		stats.put(name + ".spillErrors", spillErrors.get());
+		stats.put(name + ".spillSize", (long) spill.size());
+	}
+}
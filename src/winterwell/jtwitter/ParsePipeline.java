@@ -0,0 +1,252 @@
+package winterwell.jtwitter;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import winterwell.json.JSONObject;
+import winterwell.jtwitter.AStream.KBackpressure;
+
+/**
+ * Parses stream messages for push-notification listeners, off the gobbler
+ * thread. So the gobbler just reads from the socket, which keeps Twitter happy
+ * (they disconnect slow readers).
+ * <p>
+ * Messages are parsed in parallel by a small pool of threads, then passed to
+ * the listeners -- in the order they arrived -- by a single delivery thread.
+ * <p>
+ * If the listeners fall behind by more than {@link AStream#MAX_BUFFER}
+ * messages, the stream's {@link KBackpressure} policy applies.
+ */
+final class ParsePipeline implements Overflow.ITarget {
+
+	/**
+	 * Marks the end of the queue, so delivery can finish cleanly.
+	 */
+	private static final Future<Object> END = new FutureTask<Object>(
+			new Callable<Object>() {
+				@Override
+				public Object call() {
+					return null;
+				}
+			});
+
+	private final Thread deliverer;
+
+	/**
+	 * Futures of parsed messages, in arrival order.
+	 */
+	private final BlockingQueue<Future<Object>> inOrder;
+
+	final Overflow overflow;
+
+	private final ExecutorService parsers;
+
+	private volatile boolean stopFlag;
+
+	private final AStream stream;
+
+	ParsePipeline(final AStream stream, int numThreads) {
+		this.stream = stream;
+		inOrder = new ArrayBlockingQueue<Future<Object>>(AStream.MAX_BUFFER);
+		final String name = stream.toString();
+		parsers = Executors.newFixedThreadPool(Math.max(1, numThreads),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "Parse:" + name);
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		deliverer = new Thread("Deliver:" + name) {
+			@Override
+			public void run() {
+				deliverLoop();
+			}
+		};
+		deliverer.setDaemon(true);
+		overflow = new Overflow(this, stream, "listen");
+		deliverer.start();
+	}
+
+	/**
+	 * Finish off any queued messages, then stop the threads. Does not wait.
+	 */
+	void close() {
+		if (stopFlag)
+			return;
+		stopFlag = true;
+		parsers.shutdown();
+		overflow.close();
+		// If the queue is full, the deliverer stops once it has emptied it
+		inOrder.offer(END);
+	}
+
+	/**
+	 * Queue an already-parsed object (e.g. a connection sys-event) for
+	 * delivery, after the messages already queued.
+	 *
+	 * @param obj
+	 */
+	void deliver(final Object obj) throws InterruptedException {
+		FutureTask<Object> done = new FutureTask<Object>(
+				new Callable<Object>() {
+					@Override
+					public Object call() {
+						return obj;
+					}
+				});
+		done.run();
+		inOrder.put(done);
+	}
+
+	private void deliverLoop() {
+		try {
+			while (true) {
+				Future<Object> next = inOrder.take();
+				overflow.roomMade();
+				if (next == END)
+					return;
+				Object obj;
+				try {
+					obj = next.get();
+				} catch (ExecutionException e) {
+					// report it & keep the stream flowing
+					stream.addSysEvent(new Object[] { "exception",
+							e.getCause() });
+					obj = null;
+				}
+				if (obj != null) {
+					stream.notifyListeners(obj);
+				}
+				// catch up on anything spilled to disk
+				if (!stopFlag) {
+					overflow.replay();
+				} else if (inOrder.isEmpty()) {
+					// closed when the queue was too full for END
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			// stop
+		}
+	}
+
+	@Override
+	public boolean dropOldest() {
+		Future<Object> oldest = inOrder.poll();
+		if (oldest == null)
+			return false;
+		oldest.cancel(false);
+		return true;
+	}
+
+	/**
+	 * Deliver everything queued, then stop. Waits for this to finish.
+	 *
+	 * @throws InterruptedException
+	 */
+	void finish() throws InterruptedException {
+		if (!stopFlag) {
+			stopFlag = true;
+			parsers.shutdown();
+			overflow.close();
+			inOrder.put(END);
+		}
+		deliverer.join();
+	}
+
+	boolean isClosed() {
+		return stopFlag;
+	}
+
+	/**
+	 * @return true if called from the delivery thread -- which must not wait
+	 *         on its own queue
+	 */
+	boolean isDeliverer() {
+		return Thread.currentThread() == deliverer;
+	}
+
+	private Future<Object> parse(final String json) {
+		return parsers.submit(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				long t0 = System.nanoTime();
+				JSONObject jo = new JSONObject(json);
+				Object obj = AStream.read3_parse(jo, stream.jtwit);
+				stream.tag(obj);
+				stream.parseLatency.end(t0);
+				return obj;
+			}
+		});
+	}
+
+	/**
+	 * Like {@link #submit(String)}, but waits for room rather than applying
+	 * the backpressure policy. For replaying from a {@link StreamJournal}.
+	 *
+	 * @param json
+	 * @throws InterruptedException
+	 */
+	void put(String json) throws InterruptedException {
+		if (stopFlag)
+			return;
+		Future<Object> parsed;
+		try {
+			parsed = parse(json);
+		} catch (RejectedExecutionException e) {
+			// closed since the check
+			return;
+		}
+		inOrder.put(parsed);
+	}
+
+	/**
+	 * Parse json in the thread pool, then deliver it to the listeners. Call
+	 * this from one thread only (the gobbler), so that order is preserved.
+	 *
+	 * @param json
+	 * @return the number of messages lost due to the backpressure policy
+	 */
+	int submit(String json) {
+		if (stopFlag)
+			return 0;
+		return overflow.offer(json);
+	}
+
+	@Override
+	public boolean tryOffer(String json) {
+		if (stopFlag)
+			return true; // quietly ignore
+		if (inOrder.remainingCapacity() == 0)
+			return false;
+		Future<Object> parsed;
+		try {
+			parsed = parse(json);
+		} catch (RejectedExecutionException e) {
+			// closed since the check -- quietly ignore
+			return true;
+		}
+		if (inOrder.offer(parsed))
+			return true;
+		// lost a race with deliver()
+		parsed.cancel(false);
+		return false;
+	}
+
+	/**
+	 * @return the number of messages waiting to be delivered
+	 */
+	int size() {
+		return inOrder.size();
+	}
+}
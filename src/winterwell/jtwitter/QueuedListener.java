@@ -0,0 +1,53 @@
+package winterwell.jtwitter;
+
+import winterwell.jtwitter.AStream.IListen;
+import winterwell.jtwitter.Twitter.ITweet;
+
+/**
+ * Wraps a listener with its own bounded queue and thread, so it can consume
+ * at its own pace without holding up the other listeners. If it falls too far
+ * behind, its oldest messages are dropped.
+ * <p>
+ * Since it runs separately, a queued listener always passes messages on --
+ * it cannot hide them from earlier listeners.
+ *
+ * @see AStream#addListener(IListen, int)
+ */
+final class QueuedListener extends ThreadedListener {
+
+	private final IListen target;
+
+	QueuedListener(IListen listener, int queueSize) {
+		super(listener, "Listen", queueSize);
+		target = listener;
+		start();
+	}
+
+	@Override
+	void runLoop() throws InterruptedException {
+		while (true) {
+			Object obj = queue.take();
+			if (obj == STOP)
+				return;
+			long t0 = System.nanoTime();
+			try {
+				if (obj instanceof ITweet) {
+					target.processTweet((ITweet) obj);
+				} else if (obj instanceof TwitterEvent) {
+					target.processEvent((TwitterEvent) obj);
+				} else {
+					target.processSystemEvent((Object[]) obj);
+				}
+			} catch (Exception e) {
+				// swallow it & keep the stream flowing
+				e.printStackTrace();
+			}
+			latency.end(t0);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "QueuedListener[" + listener + "]";
+	}
+}
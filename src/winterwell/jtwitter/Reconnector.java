@@ -0,0 +1,445 @@
+package winterwell.jtwitter;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import winterwell.jtwitter.AStream.KConnectionState;
+import winterwell.jtwitter.AStream.Outage;
+
+/**
+ * The one place where a stream reconnects. Failures (from the gobbler, or
+ * spotted by {@link AStream#read()}) are reported here, and a single
+ * background thread works through reconnecting -- following Twitter's
+ * back-off rules -- then records the outage, and later fills it in via the
+ * REST API. Fill-ins run on their own thread, so a slow fill-in never holds
+ * up a reconnect, and one that doesn't finish (it hit the rate limit, or the
+ * outage was too recent) is tried again after another {@link #FILL_IN_DELAY}.
+ * <p>
+ * The threads only live whilst there's work to do, so an idle reconnector
+ * does not keep its stream from being garbage collected.
+ * <p>
+ * From <i>dev.twitter.com</i>:
+ * <ul>
+ * <li>Back off linearly for TCP/IP level network errors. Increase the delay
+ * by 250ms each attempt, up to 16 seconds.
+ * <li>Back off exponentially for HTTP errors. Start with a 5 second wait,
+ * doubling each attempt, up to 320 seconds.
+ * <li>Back off exponentially for HTTP 420 errors. Start with a 1 minute wait
+ * and double each attempt.
+ * </ul>
+ */
+final class Reconnector {
+
+	/**
+	 * How long to wait after reconnecting before filling in the outage. From
+	 * dev.twitter.com: "Wait at least a minute or two after the initial
+	 * failure before you begin REST API polling."
+	 */
+	static final long FILL_IN_DELAY = 90 * 1000;
+
+	static final long HTTP_MAX = 320 * 1000;
+
+	static final long HTTP_START = 5000;
+
+	static final long NETWORK_MAX = 16 * 1000;
+
+	static final long NETWORK_STEP = 250;
+
+	static final long TOO_MANY_START = 60 * 1000;
+
+	/**
+	 * Give up after this much waiting (15 minutes).
+	 */
+	static final long MAX_TOTAL_WAIT = 15 * 60 * 1000;
+
+	/**
+	 * @return the next wait, in milliseconds
+	 * @param ex
+	 *            the latest failure
+	 * @param prevEx
+	 *            the previous failure, or null
+	 * @param prevWait
+	 *            the previous wait
+	 */
+	static long nextWait(Exception ex, Exception prevEx, long prevWait) {
+		int kind = kind(ex);
+		boolean same = prevEx != null && kind(prevEx) == kind;
+		switch (kind) {
+		case 420:
+			return same ? prevWait * 2 : TOO_MANY_START;
+		case 500:
+			return same ? Math.min(prevWait * 2, HTTP_MAX) : HTTP_START;
+		default:
+			return same ? Math.min(prevWait + NETWORK_STEP, NETWORK_MAX)
+					: NETWORK_STEP;
+		}
+	}
+
+	/**
+	 * @return 420 for "enhance your calm" (too many logins), 500 for other
+	 *         HTTP errors, 0 for network errors.
+	 */
+	static int kind(Exception ex) {
+		if (ex instanceof TwitterException.TooManyLogins)
+			return 420;
+		if (ex instanceof TwitterException.Timeout
+				|| ex instanceof TwitterException.IO
+				|| ex instanceof IOException || ex == null
+				|| ex.getCause() instanceof IOException)
+			return 0;
+		// URLConnectionHttpClient reports socket errors as E50X
+		String msg = ex.getMessage();
+		if (msg != null && msg.startsWith("java.net."))
+			return 0;
+		if (ex instanceof TwitterException)
+			return 500;
+		return 0;
+	}
+
+	private boolean autoFillIn = true;
+
+	private BigInteger downSinceId;
+
+	private long downSinceTime;
+
+	/**
+	 * Set if we've given up
+	 */
+	private TwitterException fatal;
+
+	private Exception failure;
+
+	/**
+	 * Runs the fill-ins, one at a time. Its thread dies when idle. Created when
+	 * first needed, and shut down by {@link #cancel()}.
+	 */
+	private ThreadPoolExecutor fillInPool;
+
+	/**
+	 * true whilst a fill-in is queued or running
+	 */
+	private boolean fillingIn;
+
+	/**
+	 * Bumped by {@link #cancel()}, so that a reconnect which started before
+	 * then can tell it's no longer wanted.
+	 */
+	private int generation;
+
+	/**
+	 * When to next try filling in outages. 0 for never.
+	 */
+	private long nextFillIn;
+
+	private volatile KConnectionState state = KConnectionState.DISCONNECTED;
+
+	private final AStream stream;
+
+	private Thread thread;
+
+	Reconnector(AStream stream) {
+		this.stream = stream;
+	}
+
+	/**
+	 * Stop any reconnect in progress (e.g. the user has closed the stream).
+	 * Called by {@link AStream#close()}, with the stream's lock held -- so a
+	 * reconnect can't be part-way through {@link AStream#reconnect(int)}.
+	 */
+	synchronized void cancel() {
+		generation++;
+		failure = null;
+		nextFillIn = 0;
+		if (state != KConnectionState.FAILED) {
+			state = KConnectionState.DISCONNECTED;
+		}
+		if (fillInPool != null) {
+			fillInPool.shutdown();
+			fillInPool = null;
+		}
+		// wake the reconnect thread, so it can finish
+		notifyAll();
+	}
+
+	/**
+	 * Called by {@link AStream#connect()} on success.
+	 */
+	synchronized void connected() {
+		fatal = null;
+		state = KConnectionState.CONNECTED;
+	}
+
+	/**
+	 * Called on the fill-in thread. If outages are left over (rate-limited, too
+	 * recent, or an error), schedule another go. Each outage only gets
+	 * {@link AStream#MAX_FILL_IN_ATTEMPTS}, so this doesn't go on forever.
+	 */
+	private void fillIn() {
+		try {
+			if (state != KConnectionState.CONNECTED)
+				return; // closed (or down again) since this was queued
+			stream.fillInOutages();
+		} catch (UnsupportedOperationException e) {
+			// this stream can't be filled in -- don't keep trying
+			synchronized (this) {
+				autoFillIn = false;
+			}
+		} catch (Exception e) {
+			// oh well -- try again next time
+			stream.addSysEvent(new Object[] { "fill-in-failed", e });
+		} finally {
+			synchronized (this) {
+				fillingIn = false;
+				if (autoFillIn && ! stream.outages.isEmpty()
+						&& state == KConnectionState.CONNECTED
+						&& nextFillIn == 0) {
+					nextFillIn = System.currentTimeMillis() + FILL_IN_DELAY;
+					startThread();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hand a fill-in to the fill-in thread, unless one is already under way.
+	 */
+	private synchronized void startFillIn() {
+		if (fillingIn)
+			return;
+		fillingIn = true;
+		if (fillInPool == null) {
+			final String name = stream.toString();
+			fillInPool = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "FillIn:" + name);
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			fillInPool.allowCoreThreadTimeOut(true);
+		}
+		fillInPool.execute(new Runnable() {
+			@Override
+			public void run() {
+				fillIn();
+			}
+		});
+	}
+
+	/**
+	 * @return The exception which made us give up, or null
+	 */
+	synchronized TwitterException getFatal() {
+		return fatal;
+	}
+
+	KConnectionState getState() {
+		return state;
+	}
+
+	/**
+	 * @return true if working on a reconnect
+	 */
+	boolean isReconnecting() {
+		KConnectionState s = state;
+		return s == KConnectionState.BACKING_OFF
+				|| s == KConnectionState.CONNECTING;
+	}
+
+	/**
+	 * @return true if {@link #cancel()} has not been called since the
+	 *         generation was taken.
+	 */
+	synchronized boolean isCurrent(int gen) {
+		return gen == generation;
+	}
+
+	/**
+	 * Report that the connection has gone down. Returns straight away: the
+	 * reconnect happens in the background. Repeat reports (whilst we're
+	 * already reconnecting) are ignored.
+	 *
+	 * @param ex
+	 *            Can be null
+	 */
+	synchronized void onFailure(Exception ex) {
+		if (isReconnecting() || failure != null
+				|| state == KConnectionState.FAILED)
+			return;
+		if (state == KConnectionState.CONNECTED) {
+			// mark the start of the outage
+			downSinceTime = System.currentTimeMillis();
+			long id = stream.lastTweetId;
+			downSinceId = id == 0 ? null : BigInteger.valueOf(id);
+		}
+		failure = ex;
+		state = KConnectionState.BACKING_OFF;
+		startThread();
+	}
+
+	/**
+	 * Start the reconnect thread, or wake it if it's already running.
+	 */
+	private synchronized void startThread() {
+		if (thread == null || !thread.isAlive()) {
+			thread = new Thread("Reconnect:" + stream) {
+				@Override
+				public void run() {
+					runLoop();
+				}
+			};
+			thread.setDaemon(true);
+			thread.start();
+		} else {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Back off & retry until connected, or we give up, or we're cancelled.
+	 * 
+	 * @param gen
+	 *            The generation when the failure was taken. If
+	 *            {@link #cancel()} is called after that, this stops.
+	 */
+	private void reconnect(Exception ex, int gen) throws InterruptedException {
+		long start = System.currentTimeMillis();
+		Exception prevEx = null;
+		long wait = 0;
+		long waited = 0;
+		while (true) {
+			wait = nextWait(ex, prevEx, wait);
+			if (waited + wait > MAX_TOTAL_WAIT) {
+				giveUp(ex, gen);
+				return;
+			}
+			// wait (unless cancelled)
+			synchronized (this) {
+				if (gen != generation)
+					return;
+				state = KConnectionState.BACKING_OFF;
+				stream.backoffSeconds = (int) Math.max(1, wait / 1000);
+				// loop, as wait() can wake early
+				long until = System.currentTimeMillis() + wait;
+				for (long left = wait; left > 0 && gen == generation; left = until
+						- System.currentTimeMillis()) {
+					wait(left);
+				}
+				stream.backoffSeconds = 0;
+				if (gen != generation)
+					return;
+				state = KConnectionState.CONNECTING;
+			}
+			waited += wait;
+			try {
+				// this re-checks the generation under the stream's lock
+				if ( ! stream.reconnect(gen))
+					return;
+				break;
+			} catch (TwitterException.E40X e) {
+				if (!(e instanceof TwitterException.TooManyLogins)) {
+					// user error -- retrying won't help
+					giveUp(e, gen);
+					return;
+				}
+				prevEx = ex;
+				ex = e;
+			} catch (Exception e) {
+				prevEx = ex;
+				ex = e;
+			}
+		}
+		// success :)
+		long now = System.currentTimeMillis();
+		stream.reconnects++;
+		stream.addSysEvent(new Object[] { "reconnect", now - start });
+		synchronized (this) {
+			if (downSinceId != null) {
+				stream.addOutage2(new Outage(downSinceId, downSinceTime, now));
+				if (autoFillIn) {
+					nextFillIn = now + FILL_IN_DELAY;
+				}
+			}
+			downSinceId = null;
+		}
+	}
+
+	private void giveUp(Exception ex, int gen) {
+		TwitterException te = ex instanceof TwitterException ? (TwitterException) ex
+				: new TwitterException.E50X(
+						"Could not connect to streaming server: " + ex);
+		synchronized (this) {
+			if (gen != generation)
+				return; // closed anyway
+			fatal = te;
+			state = KConnectionState.FAILED;
+		}
+		stream.addSysEvent(new Object[] { "reconnect-failed", te });
+	}
+
+	private void runLoop() {
+		try {
+			while (true) {
+				Exception ex;
+				boolean doFillIn;
+				int gen;
+				synchronized (this) {
+					if (thread != Thread.currentThread())
+						return; // paranoia: we've been replaced
+					// wait for a fill-in to be due
+					while (failure == null && !isReconnecting()
+							&& nextFillIn > System.currentTimeMillis()) {
+						wait(nextFillIn - System.currentTimeMillis());
+					}
+					if (failure == null && !isReconnecting() && nextFillIn == 0) {
+						// nothing to do: let the thread go (rather than hold
+						// on to the stream). onFailure() starts a new one.
+						thread = null;
+						return;
+					}
+					gen = generation;
+					ex = failure;
+					failure = null;
+					doFillIn = nextFillIn != 0
+							&& nextFillIn <= System.currentTimeMillis();
+					if (doFillIn) {
+						nextFillIn = 0;
+					}
+				}
+				if (doFillIn) {
+					startFillIn();
+				}
+				if (isReconnecting()) {
+					reconnect(ex, gen);
+				}
+			}
+		} catch (InterruptedException e) {
+			// stop
+			synchronized (this) {
+				if (thread == Thread.currentThread()) {
+					thread = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param yes
+	 *            If true (the default), fill in outages via the REST API a
+	 *            little while after reconnecting.
+	 */
+	synchronized void setAutoFillIn(boolean yes) {
+		autoFillIn = yes;
+	}
+
+	@Override
+	public String toString() {
+		return "Reconnector[" + stream + " " + state + "]";
+	}
+}
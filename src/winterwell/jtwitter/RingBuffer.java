@@ -0,0 +1,260 @@
+package winterwell.jtwitter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded queue used by {@link AStream} for its tweets, events and raw json.
+ * When full, adding an item overwrites the oldest one.
+ * <p>
+ * Threading: Adding is synchronized -- in normal use there is one producer
+ * (e.g. the gobbler thread), so the lock is uncontended. Draining and peeking
+ * are lock-free, and safe from any number of threads: each item is drained
+ * exactly once. A consumer takes the lock briefly after draining, to pass
+ * the items it took to {@link #onRelease(Object)}.
+ * <p>
+ * How: items live at sequence numbers [head, tail). Consumers copy out a run
+ * of items, then claim it by moving head forward with a compare-and-set. The
+ * producer only overwrites a slot after moving head past it, so a consumer
+ * whose copy might be stale always loses the compare-and-set and retries.
+ */
+class RingBuffer<T> {
+
+	private final int capacity;
+
+	/**
+	 * Sequence number of the oldest item. Moved by consumers (drain) and by
+	 * the producer (overwrite).
+	 */
+	private final AtomicLong head = new AtomicLong();
+
+	/**
+	 * Everything before this has been passed to {@link #onRelease(Object)}.
+	 * Only touch this whilst holding the lock.
+	 */
+	private long releasedUpTo;
+
+	private final AtomicReferenceArray<T> slots;
+
+	/**
+	 * Sequence number of the next item to add. Only the producer writes this.
+	 */
+	private volatile long tail;
+
+	RingBuffer(int capacity) {
+		assert capacity > 0 : capacity;
+		this.capacity = capacity;
+		slots = new AtomicReferenceArray<T>(capacity);
+	}
+
+	/**
+	 * Drop the oldest item.
+	 *
+	 * @return false if empty
+	 */
+	boolean dropOldest() {
+		while (true) {
+			long h = head.get();
+			if (h >= tail)
+				return false;
+			if (head.compareAndSet(h, h + 1)) {
+				release();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Drop everything.
+	 */
+	void clear() {
+		while (true) {
+			long h = head.get();
+			if (h >= tail)
+				return;
+			if (head.compareAndSet(h, tail)) {
+				release();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Move up to max items from the buffer into out (oldest first).
+	 *
+	 * @param out
+	 * @param max
+	 * @return the number of items added to out. 0 if the buffer is empty.
+	 */
+	int drainTo(List<? super T> out, int max) {
+		assert max > 0 : max;
+		int size0 = out.size();
+		while (true) {
+			long h = head.get();
+			long n = Math.min(tail - h, max);
+			if (n <= 0)
+				return 0;
+			for (long s = h; s < h + n; s++) {
+				T item = slots.get(index(s));
+				// null = removed
+				if (item != null) {
+					out.add(item);
+				}
+			}
+			if (!head.compareAndSet(h, h + n)) {
+				// lost the race (or the producer overwrote us) -- try again
+				out.subList(size0, out.size()).clear();
+				continue;
+			}
+			release();
+			int added = out.size() - size0;
+			// only removed items? keep going
+			if (added == 0) {
+				continue;
+			}
+			return added;
+		}
+	}
+
+	private int index(long seq) {
+		return (int) (seq % capacity);
+	}
+
+	boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * Add an item, overwriting the oldest item if the buffer is full.
+	 *
+	 * @param item
+	 *            never null
+	 * @return the number of items dropped to make room (0 or 1)
+	 */
+	synchronized int offer(T item) {
+		assert item != null;
+		long t = tail;
+		int dropped = 0;
+		// full? then overwrite the oldest
+		while (true) {
+			long h = head.get();
+			if (t - h < capacity) {
+				break;
+			}
+			if (head.compareAndSet(h, h + 1)) {
+				dropped = 1;
+				break;
+			}
+		}
+		// before we reuse the slot
+		release();
+		slots.set(index(t), item);
+		tail = t + 1;
+		return dropped;
+	}
+
+	/**
+	 * Let subclasses know about items which have left the buffer. Their
+	 * slots can't be reused until this has run, as offer() calls it first.
+	 */
+	private synchronized void release() {
+		long h = head.get();
+		for (; releasedUpTo < h; releasedUpTo++) {
+			T old = slots.get(index(releasedUpTo));
+			if (old != null) {
+				onRelease(old);
+			}
+		}
+	}
+
+	/**
+	 * @return how many more items can be added before the buffer is full.
+	 *         This is only a snapshot.
+	 */
+	int remaining() {
+		return capacity - size();
+	}
+
+	/**
+	 * Add an item if there's room.
+	 *
+	 * @param item
+	 *            never null
+	 * @return false if the buffer is full
+	 */
+	synchronized boolean tryOffer(T item) {
+		if (tail - head.get() >= capacity)
+			return false;
+		offer(item);
+		return true;
+	}
+
+	/**
+	 * Called, whilst holding the lock, for items which have been drained,
+	 * dropped or overwritten: straight after a drain (in the consumer's
+	 * thread), or before an overwrite (in the producer's thread). Each item
+	 * is released once. Does nothing by default -- override to keep an index
+	 * in step with the buffer.
+	 *
+	 * @param item
+	 */
+	void onRelease(T item) {
+		// no-op
+	}
+
+	/**
+	 * Remove an item from the buffer (if it is there).
+	 * <p>
+	 * This is a linear scan -- so check an index first if you have one.
+	 *
+	 * @param item
+	 * @return true if removed
+	 */
+	synchronized boolean remove(Object item) {
+		for (long s = head.get(); s < tail; s++) {
+			int i = index(s);
+			T si = slots.get(i);
+			if (si != null && si.equals(item)) {
+				return slots.compareAndSet(i, si, null);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of items in the buffer. This is only a snapshot.
+	 */
+	int size() {
+		long n = tail - head.get();
+		return (int) Math.max(0, Math.min(n, capacity));
+	}
+
+	/**
+	 * @return a copy of the buffer contents (oldest first), without removing
+	 *         them.
+	 */
+	List<T> toList() {
+		while (true) {
+			long h = head.get();
+			long t = tail;
+			ArrayList<T> list = new ArrayList<T>((int) Math.max(0,
+					Math.min(t - h, capacity)));
+			for (long s = h; s < t; s++) {
+				T item = slots.get(index(s));
+				if (item != null) {
+					list.add(item);
+				}
+			}
+			// if head hasn't moved, nothing we read can have been overwritten
+			if (head.get() == h)
+				return list;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "RingBuffer[" + size() + "/" + capacity + "]";
+	}
+}
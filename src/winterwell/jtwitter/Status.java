@@ -2,6 +2,7 @@ package winterwell.jtwitter;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.EnumMap;
@@ -146,8 +147,19 @@ public final class Status implements ITweet {
 	 */
 	public final BigInteger inReplyToStatusId;
 
+	/**
+	 * The language of the text as detected by Twitter, e.g. "en". null if
+	 * unknown (Twitter only started sending this in 2013).
+	 */
+	public final String lang;
+
 	private String location;
 
+	/**
+	 * Set by a {@link StreamFilter}. null if not filtered.
+	 */
+	String[] matchedRules;
+
 	/**
 	 * null, except for official retweets when this is the original retweeted
 	 * Status.
@@ -285,6 +297,7 @@ public final class Status implements ITweet {
 			}
 
 			retweetCount = object.optInt("retweet_count", -1);
+			lang = InternalUtils.jsonGet("lang", object);
 
 			// ignore this as it can be misleading: true is reliable, false
 			// isn't
@@ -368,6 +381,7 @@ public final class Status implements ITweet {
 		inReplyToStatusId = null;
 		source = FAKE;
 		retweetCount = -1;
+		lang = null;
 	}
 
 	/**
@@ -403,6 +417,16 @@ public final class Status implements ITweet {
 		return location;
 	}
 
+	/**
+	 * @return the names of the {@link StreamFilter} rules this tweet matched.
+	 *         Empty unless it came from a stream with a filter. Never null.
+	 */
+	public List<String> getMatchedRules() {
+		if (matchedRules == null)
+			return Collections.emptyList();
+		return Arrays.asList(matchedRules);
+	}
+
 	/**
 	 * @return list of \@mentioned people (there is no guarantee that these
 	 *         mentions are for correct Twitter screen-names). May be empty,
@@ -0,0 +1,374 @@
+package winterwell.jtwitter;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import winterwell.jtwitter.guts.AhoCorasick;
+import winterwell.jtwitter.guts.LongSet;
+
+/**
+ * Client-side routing for a stream. Twitter OR together all the keywords and
+ * users a stream tracks, so a mixed stream has to be re-filtered to route
+ * each tweet to the right consumer. This does that on the raw bytes of each
+ * message, before it is parsed: tweets which match no rule are thrown away
+ * cheaply, and the rest are tagged with the rules they match (see
+ * {@link Status#getMatchedRules()}).
+ * <p>
+ * Keyword rules follow Twitter's track syntax: a phrase matches if all its
+ * (space separated) words are present, case-insensitively. Unlike Twitter,
+ * this looks for the words anywhere in the message (e.g. also in the user's
+ * profile), so it can let through a few extra tweets -- but it won't miss
+ * any. Phrases with non-ASCII characters always match, since Twitter may
+ * send those characters as json escapes.
+ * <p>
+ * User rules match tweets by, replying to, or retweeting one of the users --
+ * again, like Twitter.
+ * <p>
+ * Non-tweet messages (deletes, limits, events) always pass through.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * StreamFilter filter = new StreamFilter();
+ * filter.addKeywords(&quot;apple&quot;, Arrays.asList(&quot;iphone&quot;, &quot;ipad mini&quot;));
+ * filter.addUsers(&quot;friends&quot;, friendIds);
+ * stream.setFilter(filter);
+ * </pre>
+ *
+ * Thread-safe: rules can be changed whilst the stream is running.
+ */
+public class StreamFilter {
+
+	/**
+	 * An immutable snapshot of the rules, ready for matching.
+	 */
+	static final class Compiled {
+		final AhoCorasick automaton;
+		/**
+		 * rule -> phrases -> word indexes. null phrases match anything.
+		 */
+		final int[][][] keywordRules;
+		final String[] keywordRuleNames;
+		final String[] userRuleNames;
+		final LongSet[] userRules;
+
+		Compiled(List<String> kwNames, List<List<String>> kwPhrases,
+				List<String> userNames, List<LongSet> users) {
+			List<String> words = new ArrayList<String>();
+			Map<String, Integer> word2index = new LinkedHashMap<String, Integer>();
+			keywordRules = new int[kwNames.size()][][];
+			for (int r = 0; r < keywordRules.length; r++) {
+				List<String> phrases = kwPhrases.get(r);
+				keywordRules[r] = new int[phrases.size()][];
+				for (int p = 0; p < phrases.size(); p++) {
+					String phrase = phrases.get(p).trim();
+					if (!isAscii(phrase)) {
+						continue; // leave null = always match
+					}
+					String[] bits = phrase.toLowerCase().split("\\s+");
+					int[] ws = new int[bits.length];
+					for (int i = 0; i < bits.length; i++) {
+						Integer wi = word2index.get(bits[i]);
+						if (wi == null) {
+							wi = words.size();
+							words.add(bits[i]);
+							word2index.put(bits[i], wi);
+						}
+						ws[i] = wi;
+					}
+					keywordRules[r][p] = ws;
+				}
+			}
+			automaton = words.isEmpty() ? null : new AhoCorasick(words);
+			keywordRuleNames = kwNames.toArray(new String[0]);
+			userRuleNames = userNames.toArray(new String[0]);
+			userRules = users.toArray(new LongSet[0]);
+		}
+
+		/**
+		 * @return names of the matching rules (can be empty)
+		 */
+		String[] match(ByteBuffer frame, BitSet found) {
+			List<String> rules = new ArrayList<String>(2);
+			// keywords
+			if (keywordRules.length != 0) {
+				found.clear();
+				if (automaton != null) {
+					automaton.match(frame, found);
+				}
+				for (int r = 0; r < keywordRules.length; r++) {
+					for (int[] phrase : keywordRules[r]) {
+						if (allFound(phrase, found)) {
+							rules.add(keywordRuleNames[r]);
+							break;
+						}
+					}
+				}
+			}
+			// users
+			if (userRules.length != 0) {
+				long[] ids = userIds(frame);
+				for (int r = 0; r < userRules.length; r++) {
+					for (long id : ids) {
+						if (id != 0 && userRules[r].contains(id)) {
+							rules.add(userRuleNames[r]);
+							break;
+						}
+					}
+				}
+			}
+			return rules.toArray(new String[rules.size()]);
+		}
+	}
+
+	private static final byte[] IN_REPLY_TO = "\"in_reply_to_user_id\":"
+			.getBytes(StreamFramer.UTF8);
+
+	private static final byte[] USER_ID = "\"user\":{\"id\":"
+			.getBytes(StreamFramer.UTF8);
+
+	static boolean allFound(int[] phrase, BitSet found) {
+		if (phrase == null)
+			return true;
+		for (int w : phrase) {
+			if (!found.get(w))
+				return false;
+		}
+		return true;
+	}
+
+	static boolean isAscii(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) > 127)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return index of the first match at or after from, or -1
+	 */
+	private static int indexOf(ByteBuffer frame, byte[] pattern, int from) {
+		int end = frame.limit() - pattern.length;
+		outer: for (int i = from; i <= end; i++) {
+			for (int j = 0; j < pattern.length; j++) {
+				if (frame.get(i + j) != pattern[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private static long readLong(ByteBuffer frame, int i) {
+		long x = 0;
+		int end = Math.min(frame.limit(), i + 19);
+		for (; i < end; i++) {
+			byte b = frame.get(i);
+			if (b < '0' || b > '9') {
+				break;
+			}
+			x = x * 10 + (b - '0');
+		}
+		return x;
+	}
+
+	/**
+	 * @return the author, reply-to, and retweeted users. Can contain 0s.
+	 */
+	static long[] userIds(ByteBuffer frame) {
+		// tweet-author, in-reply-to, and the retweeted tweet's author & reply
+		long[] ids = new long[4];
+		int n = 0;
+		int start = frame.position();
+		for (int i = indexOf(frame, USER_ID, start); i != -1 && n < 2; i = indexOf(
+				frame, USER_ID, i + 1)) {
+			ids[n++] = readLong(frame, i + USER_ID.length);
+		}
+		for (int i = indexOf(frame, IN_REPLY_TO, start); i != -1 && n < 4; i = indexOf(
+				frame, IN_REPLY_TO, i + 1)) {
+			ids[n++] = readLong(frame, i + IN_REPLY_TO.length);
+		}
+		return ids;
+	}
+
+	private volatile Compiled compiled;
+
+	private volatile boolean discardUnmatched = true;
+
+	final AtomicLong discarded = new AtomicLong();
+
+	/**
+	 * Re-used by {@link #accept(ByteBuffer)} -- which is only called by the
+	 * gobbler thread.
+	 */
+	private final BitSet found = new BitSet();
+
+	private final List<String> kwNames = new ArrayList<String>();
+
+	private final List<List<String>> kwPhrases = new ArrayList<List<String>>();
+
+	final AtomicLong matched = new AtomicLong();
+
+	/**
+	 * tweet-id -> matched rules, for recent tweets. Access whilst holding the
+	 * lock.
+	 */
+	private final Map<Long, String[]> tags = new LinkedHashMap<Long, String[]>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, String[]> eldest) {
+			return size() > 2 * AStream.MAX_BUFFER;
+		}
+	};
+
+	private final List<String> userNames = new ArrayList<String>();
+
+	private final List<LongSet> users = new ArrayList<LongSet>();
+
+	/**
+	 * Called by the gobbler thread, on each raw message.
+	 *
+	 * @param frame
+	 *            This is not modified.
+	 * @return false to throw it away
+	 */
+	boolean accept(ByteBuffer frame) {
+		long id = StreamJournal.parseId(frame);
+		if (id == 0)
+			return true; // not a tweet
+		Compiled c = compiled;
+		if (c == null) {
+			c = compile();
+		}
+		String[] rules = c.match(frame, found);
+		if (rules.length == 0) {
+			if (discardUnmatched) {
+				discarded.incrementAndGet();
+				return false;
+			}
+			return true;
+		}
+		matched.incrementAndGet();
+		synchronized (tags) {
+			tags.put(id, rules);
+		}
+		return true;
+	}
+
+	/**
+	 * Add a keyword rule. Can be called more than once for the same rule.
+	 *
+	 * @param rule
+	 *            A name for the rule, which tweets will be tagged with.
+	 * @param phrases
+	 *            Keywords or phrases, as for
+	 *            {@link TwitterStream#setTrackKeywords(List)}. A tweet matches
+	 *            the rule if it matches any of these.
+	 */
+	public synchronized void addKeywords(String rule, Collection<String> phrases) {
+		int i = kwNames.indexOf(rule);
+		if (i == -1) {
+			kwNames.add(rule);
+			kwPhrases.add(new ArrayList<String>(phrases));
+		} else {
+			kwPhrases.get(i).addAll(phrases);
+		}
+		compiled = null;
+	}
+
+	/**
+	 * Add a user rule. Can be called more than once for the same rule.
+	 *
+	 * @param rule
+	 *            A name for the rule, which tweets will be tagged with.
+	 * @param userIds
+	 *            A tweet matches if it is by, in reply to, or a retweet of
+	 *            one of these users.
+	 */
+	public synchronized void addUsers(String rule, Collection<Long> userIds) {
+		int i = userNames.indexOf(rule);
+		LongSet set;
+		if (i == -1) {
+			userNames.add(rule);
+			set = new LongSet(userIds.size());
+			users.add(set);
+		} else {
+			// copy, so a compiled snapshot never changes under the gobbler
+			set = new LongSet(userIds.size());
+			LongSet old = users.get(i);
+			users.set(i, set);
+			set.addAll(old);
+		}
+		for (Long id : userIds) {
+			set.add(id);
+		}
+		compiled = null;
+	}
+
+	private synchronized Compiled compile() {
+		if (compiled == null) {
+			compiled = new Compiled(kwNames, kwPhrases, userNames, users);
+		}
+		return compiled;
+	}
+
+	/**
+	 * @return the number of tweets thrown away for matching no rule
+	 */
+	public long getDiscardedCount() {
+		return discarded.get();
+	}
+
+	/**
+	 * @return the number of tweets which matched at least one rule
+	 */
+	public long getMatchedCount() {
+		return matched.get();
+	}
+
+	/**
+	 * @param id
+	 * @return the rules a recent tweet matched, or null if unknown.
+	 */
+	String[] getRules(BigInteger id) {
+		synchronized (tags) {
+			return tags.get(id.longValue());
+		}
+	}
+
+	/**
+	 * Remove all the rules.
+	 */
+	public synchronized void clear() {
+		kwNames.clear();
+		kwPhrases.clear();
+		userNames.clear();
+		users.clear();
+		compiled = null;
+	}
+
+	/**
+	 * @param discard
+	 *            If true (the default), tweets which match no rule are thrown
+	 *            away before parsing. If false, they are passed on (untagged).
+	 */
+	public void setDiscardUnmatched(boolean discard) {
+		discardUnmatched = discard;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "StreamFilter[keywords:" + kwNames + " users:" + userNames
+				+ "]";
+	}
+}
@@ -0,0 +1,153 @@
+package winterwell.jtwitter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Split the streaming API's output into messages. Twitter send each message
+ * prefixed by its length <i>in bytes</i> (we ask for this with
+ * delimited=length), e.g. "1953\r\n{...}". Blank lines are keep-alives.
+ * <p>
+ * This works on bytes, re-using one buffer, so the only per-message
+ * allocation is the final String.
+ * <p>
+ * Not thread-safe: use from the gobbler thread only.
+ */
+final class StreamFramer {
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Twitter messages are rarely over 8k, so this is usually plenty. It will
+	 * grow if need be.
+	 */
+	private static final int INITIAL_CAPACITY = 64 * 1024;
+
+	/**
+	 * Refuse length prefixes above this (16mb), rather than try to allocate a
+	 * buffer for them: it's a garbled stream, not a real message.
+	 */
+	static final int MAX_FRAME = 16 * 1024 * 1024;
+
+	/**
+	 * Kept ready for reading: position to limit is the unread input.
+	 */
+	private ByteBuffer buf = ByteBuffer.allocate(INITIAL_CAPACITY);
+
+	private final InputStream in;
+
+	/**
+	 * For metrics. Can be null.
+	 */
+	private final AStream stream;
+
+	/**
+	 * @param in
+	 * @param stream
+	 *            Byte counts & timings are recorded here. Can be null.
+	 */
+	StreamFramer(InputStream in, AStream stream) {
+		this.in = in;
+		this.stream = stream;
+		buf.flip(); // start empty
+	}
+
+	/**
+	 * Read more from the stream, keeping any unread bytes.
+	 *
+	 * @throws IOException
+	 *             at the end of the stream
+	 */
+	private void fill() throws IOException {
+		buf.compact();
+		int rd = in.read(buf.array(), buf.arrayOffset() + buf.position(),
+				buf.remaining());
+		if (rd == -1)
+			throw new IOException("end of stream");
+		buf.position(buf.position() + rd);
+		buf.flip();
+		if (stream != null) {
+			stream.bytesIn.addAndGet(rd);
+			stream.lastDataTime = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * @return the next message. This is a view onto an internal buffer, so it
+	 *         is only valid until the next call.
+	 * @throws IOException
+	 */
+	ByteBuffer nextFrame() throws IOException {
+		int len = readLength();
+		// make sure the whole message is in the buffer
+		if (len > buf.capacity()) {
+			int cap = buf.capacity();
+			while (cap < len) {
+				cap *= 2;
+			}
+			ByteBuffer bigger = ByteBuffer.allocate(cap);
+			bigger.put(buf);
+			bigger.flip();
+			buf = bigger;
+		}
+		while (buf.remaining() < len) {
+			fill();
+		}
+		ByteBuffer frame = buf.slice();
+		frame.limit(len);
+		buf.position(buf.position() + len);
+		return frame;
+	}
+
+	/**
+	 * Read a number from the stream -- which is the length of the next
+	 * message. Skips blank keep-alive lines. Consumes the line-end after the
+	 * number.
+	 *
+	 * @throws IOException
+	 */
+	private int readLength() throws IOException {
+		int len = 0;
+		int digits = 0;
+		while (true) {
+			if (!buf.hasRemaining()) {
+				fill();
+			}
+			byte b = buf.get();
+			if (b == '\n' || b == '\r') {
+				// ignore leading whitespace, stop otherwise
+				if (digits == 0) {
+					continue;
+				}
+				break;
+			}
+			if (b < '0' || b > '9' || digits == 9)
+				throw new IOException("Bad length prefix in stream: " + b);
+			len = len * 10 + (b - '0');
+			digits++;
+		}
+		if (len > MAX_FRAME)
+			throw new IOException("Bad length prefix in stream: " + len);
+		// consume the \n of \r\n
+		if (!buf.hasRemaining()) {
+			fill();
+		}
+		if (buf.get(buf.position()) == '\n') {
+			buf.get();
+		}
+		return len;
+	}
+
+	/**
+	 * @param frame
+	 *            from {@link #nextFrame()}
+	 * @return frame decoded as UTF-8
+	 */
+	static String toString(ByteBuffer frame) {
+		return new String(frame.array(),
+				frame.arrayOffset() + frame.position(), frame.remaining(),
+				UTF8);
+	}
+}
@@ -0,0 +1,523 @@
+package winterwell.jtwitter;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import winterwell.jtwitter.AStream.IListen;
+import winterwell.jtwitter.Twitter.ITweet;
+
+/**
+ * Several {@link TwitterStream}s working as one. Use this when you want to
+ * follow more keywords or users than one connection allows (see
+ * {@link TwitterStream#MAX_KEYWORDS} and {@link TwitterStream#MAX_USERS}).
+ * <p>
+ * Each login gets one connection (a "shard"), and the keywords & users are
+ * shared out between them. The shards' output is merged into one feed:
+ * duplicates (e.g. a tweet which matches keywords in two shards) are removed,
+ * and tweets are put back into id order -- within a short window, see
+ * {@link #setOrderWindow(long)}.
+ * <p>
+ * Changing the filters moves as few keywords/users as possible, and only
+ * reconnects the shards which changed.
+ * <p>
+ * Twitter allow one stream per account, so each login should be a different
+ * account. Example:
+ *
+ * <pre>
+ * StreamGroup group = new StreamGroup(Arrays.asList(jtwit1, jtwit2));
+ * group.setTrackKeywords(lotsOfKeywords);
+ * group.addListener(myListener);
+ * group.connect();
+ * </pre>
+ */
+public class StreamGroup {
+
+	/**
+	 * A tweet waiting to go out in order.
+	 */
+	private static final class Held implements Comparable<Held> {
+		final long arrived;
+		final BigInteger id;
+		final ITweet tweet;
+
+		Held(ITweet tweet, long arrived) {
+			this.tweet = tweet;
+			this.arrived = arrived;
+			Number n = tweet.getId();
+			id = n instanceof BigInteger ? (BigInteger) n : new BigInteger(
+					n.toString());
+		}
+
+		@Override
+		public int compareTo(Held o) {
+			return id.compareTo(o.id);
+		}
+	}
+
+	/**
+	 * Listens to one shard, and passes its output into the merge.
+	 */
+	private final class ShardListener implements IListen {
+		@Override
+		public boolean processEvent(TwitterEvent event) {
+			notifyListeners(event);
+			return true;
+		}
+
+		@Override
+		public boolean processSystemEvent(Object[] obj) {
+			notifyListeners(obj);
+			return true;
+		}
+
+		@Override
+		public boolean processTweet(ITweet tweet) {
+			merge(tweet);
+			return true;
+		}
+	}
+
+	/**
+	 * How many recent tweet-ids to remember for de-duplication.
+	 */
+	static final int DEDUP_WINDOW = 10000;
+
+	private boolean connected;
+
+	/**
+	 * Lock for calling the listeners, so they're called from one thread at a
+	 * time. Take this before held -- never whilst holding it.
+	 */
+	private final Object delivery = new Object();
+
+	final AtomicLong duplicates = new AtomicLong();
+
+	private List<Long> follow = Collections.emptyList();
+
+	/**
+	 * Tweets waiting for the order window to pass. This is also the lock for
+	 * the merge (kept separate from the filter lock, so a slow reconnect
+	 * doesn't hold up the other shards). Listeners are never called whilst
+	 * holding it, so a slow listener doesn't hold up the shards either.
+	 */
+	private final PriorityQueue<Held> held = new PriorityQueue<Held>();
+
+	private final CopyOnWriteArrayList<IListen> listeners = new CopyOnWriteArrayList<IListen>();
+
+	private volatile long orderWindow = 1000;
+
+	/**
+	 * Lock for (re)connecting shards. Taken before the group lock: the
+	 * network calls happen whilst holding this, but not the group lock.
+	 */
+	private final Object reconnecting = new Object();
+
+	/**
+	 * Recent tweet-ids, for de-duplication. Lock on held.
+	 */
+	private final IdSet seen = new IdSet(DEDUP_WINDOW);
+
+	private final ArrayDeque<Number> seenOrder = new ArrayDeque<Number>(
+			DEDUP_WINDOW);
+
+	/**
+	 * The keywords for each shard
+	 */
+	private final List<List<String>> shardTrack;
+
+	/**
+	 * The users for each shard
+	 */
+	private final List<List<Long>> shardFollow;
+
+	private final ShardListener shardListener = new ShardListener();
+
+	private final List<TwitterStream> streams;
+
+	private Thread thread;
+
+	private List<String> track = Collections.emptyList();
+
+	/**
+	 * @param logins
+	 *            One per connection. Each should be a different account.
+	 */
+	public StreamGroup(List<Twitter> logins) {
+		if (logins.isEmpty())
+			throw new IllegalArgumentException("No logins");
+		int n = logins.size();
+		streams = new ArrayList<TwitterStream>(n);
+		shardTrack = new ArrayList<List<String>>(n);
+		shardFollow = new ArrayList<List<Long>>(n);
+		for (int i = 0; i < n; i++) {
+			TwitterStream stream = new TwitterStream(logins.get(i));
+			stream.setAutoReconnect(true);
+			// the group's listeners get the output -- don't keep a copy
+			stream.setListenersOnly(true);
+			stream.addListener(shardListener);
+			streams.add(stream);
+			shardTrack.add(new ArrayList<String>());
+			shardFollow.add(new ArrayList<Long>());
+		}
+	}
+
+	/**
+	 * Add a listener to the front of the queue. The same rules apply as for
+	 * {@link AStream#addListener(IListen)}. Listeners are called from one
+	 * thread at a time.
+	 */
+	public void addListener(IListen listener) {
+		listeners.remove(listener);
+		listeners.add(0, listener);
+	}
+
+	/**
+	 * Spread items across the shards. Items which are already on a shard stay
+	 * put. New items go to the emptiest shard.
+	 *
+	 * @return which shards changed
+	 */
+	private <X> boolean[] assign(List<X> items, List<List<X>> shards, int max) {
+		int n = shards.size();
+		if (items.size() > max * n)
+			throw new IllegalArgumentException("Too many for " + n
+					+ " connections: " + items.size() + " (limit " + max
+					+ " each)");
+		boolean[] changed = new boolean[n];
+		Set<X> todo = new LinkedHashSet<X>(items);
+		// keep what we can
+		for (int i = 0; i < n; i++) {
+			List<X> shard = shards.get(i);
+			List<X> kept = new ArrayList<X>(shard.size());
+			for (X x : shard) {
+				if (todo.remove(x)) {
+					kept.add(x);
+				}
+			}
+			if (kept.size() != shard.size()) {
+				changed[i] = true;
+			}
+			shards.set(i, kept);
+		}
+		// fill up the emptiest
+		for (X x : todo) {
+			int best = 0;
+			for (int i = 1; i < n; i++) {
+				if (shards.get(i).size() < shards.get(best).size()) {
+					best = i;
+				}
+			}
+			shards.get(best).add(x);
+			changed[best] = true;
+		}
+		return changed;
+	}
+
+	/**
+	 * Close all the connections. Tweets still in the order window are
+	 * delivered first.
+	 */
+	public void close() {
+		synchronized (reconnecting) {
+			Thread t;
+			synchronized (this) {
+				connected = false;
+				t = thread;
+				thread = null;
+			}
+			for (TwitterStream stream : streams) {
+				stream.close();
+			}
+			if (t != null) {
+				t.interrupt();
+			}
+		}
+		release(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Connect all the shards which have something to follow.
+	 *
+	 * @throws TwitterException
+	 *             from the first shard to fail. Any others are left running.
+	 */
+	public void connect() throws TwitterException {
+		synchronized (reconnecting) {
+			synchronized (this) {
+				connected = true;
+				if (thread == null) {
+					thread = new Thread("StreamGroup:" + this) {
+						@Override
+						public void run() {
+							runLoop();
+						}
+					};
+					thread.setDaemon(true);
+					thread.start();
+				}
+			}
+			TwitterException ex = null;
+			for (int i = 0; i < streams.size(); i++) {
+				try {
+					connect2(i);
+				} catch (TwitterException e) {
+					if (ex == null) {
+						ex = e;
+					}
+				}
+			}
+			if (ex != null)
+				throw ex;
+		}
+	}
+
+	/**
+	 * (Re)connect one shard with its latest filters. Call whilst holding the
+	 * reconnecting lock, but not the group lock.
+	 */
+	private void connect2(int i) {
+		List<String> kws;
+		List<Long> users;
+		synchronized (this) {
+			if (!connected)
+				return;
+			kws = new ArrayList<String>(shardTrack.get(i));
+			users = new ArrayList<Long>(shardFollow.get(i));
+		}
+		TwitterStream stream = streams.get(i);
+		stream.close();
+		if (kws.isEmpty() && users.isEmpty())
+			return; // nothing to do
+		stream.setTrackKeywords(kws);
+		stream.setFollowUsers(users);
+		stream.connect();
+	}
+
+	/**
+	 * @return Tweets which were dropped because another shard had already
+	 *         delivered them.
+	 */
+	public long getDuplicateCount() {
+		return duplicates.get();
+	}
+
+	/**
+	 * @return The connections, one per login. Use this for per-shard status
+	 *         -- e.g. {@link AStream#getMetrics()}. Do not change their
+	 *         filters directly.
+	 */
+	public List<TwitterStream> getStreams() {
+		return Collections.unmodifiableList(streams);
+	}
+
+	/**
+	 * @return true if every shard which has something to follow is connected
+	 *         (or reconnecting).
+	 */
+	public synchronized boolean isAlive() {
+		if (!connected)
+			return false;
+		for (int i = 0; i < streams.size(); i++) {
+			if (shardTrack.get(i).isEmpty() && shardFollow.get(i).isEmpty()) {
+				continue;
+			}
+			if (!streams.get(i).isAlive())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * De-duplicate, and hold for ordering.
+	 */
+	private void merge(ITweet tweet) {
+		synchronized (held) {
+			Number id = tweet.getId();
+			if (!seen.add(id)) {
+				duplicates.incrementAndGet();
+				return;
+			}
+			seenOrder.add(id);
+			if (seenOrder.size() > DEDUP_WINDOW) {
+				seen.remove(seenOrder.poll());
+			}
+			if (orderWindow != 0) {
+				boolean wake = held.isEmpty();
+				held.add(new Held(tweet, System.currentTimeMillis()));
+				if (wake) {
+					held.notifyAll();
+				}
+				return;
+			}
+		}
+		// no ordering: straight out (outside the held lock)
+		notifyListeners(tweet);
+	}
+
+	/**
+	 * Call the listeners, front first, until one returns false.
+	 */
+	private void notifyListeners(Object obj) {
+		synchronized (delivery) {
+			notifyListeners2(obj);
+		}
+	}
+
+	private void notifyListeners2(Object obj) {
+		try {
+			for (IListen listener : listeners) {
+				boolean carryOn;
+				if (obj instanceof ITweet) {
+					carryOn = listener.processTweet((ITweet) obj);
+				} else if (obj instanceof TwitterEvent) {
+					carryOn = listener.processEvent((TwitterEvent) obj);
+				} else {
+					carryOn = listener.processSystemEvent((Object[]) obj);
+				}
+				if (!carryOn) {
+					break;
+				}
+			}
+		} catch (Exception e) {
+			// swallow it & keep the stream flowing
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Reconnect the shards whose filters changed.
+	 */
+	private void rebalance(boolean[] changed) {
+		synchronized (reconnecting) {
+			for (int i = 0; i < changed.length; i++) {
+				if (changed[i]) {
+					connect2(i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deliver held tweets, in id order, which arrived before cutoff. The
+	 * tweets are taken out under the held lock, then delivered after letting
+	 * go of it. Don't call whilst holding the held lock.
+	 */
+	private void release(long cutoff) {
+		synchronized (delivery) {
+			List<ITweet> due = new ArrayList<ITweet>();
+			synchronized (held) {
+				while (!held.isEmpty()) {
+					Held h = held.peek();
+					if (h.arrived > cutoff) {
+						break;
+					}
+					held.poll();
+					due.add(h.tweet);
+				}
+			}
+			for (ITweet tweet : due) {
+				notifyListeners2(tweet);
+			}
+		}
+	}
+
+	public void removeListener(IListen listener) {
+		listeners.remove(listener);
+	}
+
+	private void runLoop() {
+		try {
+			while (true) {
+				release(System.currentTimeMillis() - orderWindow);
+				synchronized (held) {
+					// re-check under the lock, so we can't miss a wake-up
+					Held first = held.peek();
+					if (first == null) {
+						held.wait();
+					} else {
+						long wait = first.arrived + orderWindow
+								- System.currentTimeMillis();
+						if (wait > 0) {
+							held.wait(wait);
+						}
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// stop
+		}
+	}
+
+	/**
+	 * @param userIds
+	 *            Upto {@link TwitterStream#MAX_USERS} per login. Can be
+	 *            changed whilst connected.
+	 * @throws IllegalArgumentException
+	 *             if there are too many for the logins
+	 */
+	public void setFollowUsers(List<Long> userIds)
+			throws IllegalArgumentException {
+		if (userIds == null) {
+			userIds = Collections.emptyList();
+		}
+		boolean[] changed;
+		synchronized (this) {
+			changed = assign(userIds, shardFollow, TwitterStream.MAX_USERS);
+			follow = userIds;
+		}
+		// reconnect outside the group lock
+		rebalance(changed);
+	}
+
+	/**
+	 * @param millis
+	 *            How long to hold tweets, so that tweets from different
+	 *            shards can be put in id order. 1 second by default. 0 for
+	 *            arrival order, with no delay.
+	 */
+	public void setOrderWindow(long millis) {
+		orderWindow = millis;
+	}
+
+	/**
+	 * @param keywords
+	 *            Upto {@link TwitterStream#MAX_KEYWORDS} per login. Can be
+	 *            changed whilst connected.
+	 * @throws IllegalArgumentException
+	 *             if there are too many for the logins
+	 * @see TwitterStream#setTrackKeywords(List)
+	 */
+	public void setTrackKeywords(List<String> keywords)
+			throws IllegalArgumentException {
+		if (keywords == null) {
+			keywords = Collections.emptyList();
+		}
+		for (String kw : keywords) {
+			if (kw.length() > TwitterStream.MAX_KEYWORD_LENGTH)
+				throw new IllegalArgumentException("Track term too long: "
+						+ kw + " (60 char limit)");
+		}
+		boolean[] changed;
+		synchronized (this) {
+			changed = assign(keywords, shardTrack, TwitterStream.MAX_KEYWORDS);
+			track = keywords;
+		}
+		// reconnect outside the group lock
+		rebalance(changed);
+	}
+
+	@Override
+	public String toString() {
+		return "StreamGroup[" + streams.size() + " track:"
+				+ InternalUtils.join(track, 0, 5) + " follow:"
+				+ InternalUtils.join(follow, 0, 5) + "]";
+	}
+}
@@ -0,0 +1,535 @@
+package winterwell.jtwitter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * An on-disk log of the raw messages from a stream. Use it for crash recovery
+ * (replay whatever arrived after the last tweet you processed), or to re-run
+ * an analysis over a captured stream without reconnecting.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * StreamJournal journal = new StreamJournal(new File(&quot;journal&quot;));
+ * stream.setJournal(journal);
+ * // ...after a restart
+ * stream.addListener(myListener);
+ * journal.replay(lastIdSeen, stream);
+ * </pre>
+ * <p>
+ * Messages are appended to memory-mapped segment files, so a write is just a
+ * memory copy, and anything written survives the process dying. Segments are
+ * rolled when full, and deleted when they get too old, or the journal gets
+ * too big. Each segment is indexed (in memory) by tweet-id and arrival time,
+ * so replay finds its starting point with a binary search.
+ * <p>
+ * Threading: appends come from the stream's gobbler thread. Replay is safe
+ * from any thread, whilst appending continues.
+ */
+public class StreamJournal implements Closeable {
+
+	/**
+	 * One segment file. Records are: int length, long id, long time, then
+	 * length bytes of json. A length of 0 marks the end.
+	 */
+	static final class Segment {
+		MappedByteBuffer buf;
+		int count;
+		/**
+		 * Write position
+		 */
+		int end;
+		final File file;
+		/**
+		 * The highest tweet-id up to and including each record. Ids don't
+		 * arrive in strict order, but this is sorted -- so the first record
+		 * above an id can be found by binary search.
+		 */
+		long[] maxIds = new long[256];
+		long maxId;
+		int[] offsets = new int[256];
+		long[] times = new long[256];
+
+		Segment(File file, MappedByteBuffer buf) {
+			this.file = file;
+			this.buf = buf;
+		}
+
+		void add(int offset, long id, long time) {
+			if (count == offsets.length) {
+				offsets = Arrays.copyOf(offsets, count * 2);
+				maxIds = Arrays.copyOf(maxIds, count * 2);
+				times = Arrays.copyOf(times, count * 2);
+			}
+			maxId = Math.max(maxId, id);
+			offsets[count] = offset;
+			maxIds[count] = maxId;
+			times[count] = time;
+			count++;
+		}
+
+		void delete() {
+			buf = null;
+			if (!file.delete()) {
+				file.deleteOnExit();
+			}
+		}
+
+		long lastTime() {
+			return count == 0 ? 0 : times[count - 1];
+		}
+
+		/**
+		 * @param n
+		 *            only look at the first n records
+		 * @return index of the first record with a tweet-id above id, or -1
+		 */
+		int seekId(long id, int n) {
+			if (n == 0 || maxIds[n - 1] <= id)
+				return -1;
+			// the first record whose running max is above id
+			int lo = 0, hi = n - 1;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (maxIds[mid] > id) {
+					hi = mid;
+				} else {
+					lo = mid + 1;
+				}
+			}
+			return lo;
+		}
+
+		/**
+		 * @param n
+		 *            only look at the first n records
+		 * @return index of the first record which arrived at or after time,
+		 *         or -1
+		 */
+		int seekTime(long time, int n) {
+			if (n == 0 || times[n - 1] < time)
+				return -1;
+			int i = Arrays.binarySearch(times, 0, n, time);
+			if (i < 0)
+				return -i - 1;
+			// step back to the first of any equal times
+			while (i > 0 && times[i - 1] == time) {
+				i--;
+			}
+			return i;
+		}
+
+		@Override
+		public String toString() {
+			return "Segment[" + file.getName() + " " + count + "]";
+		}
+	}
+
+	private static final int HEADER = 4 + 8 + 8;
+
+	private static final String SUFFIX = ".jnl";
+
+	/**
+	 * @return the position of the closing quote of the string starting at
+	 *         start, or end if it isn't closed
+	 */
+	private static int endOfString(ByteBuffer frame, int start, int end) {
+		for (int i = start + 1; i < end; i++) {
+			byte b = frame.get(i);
+			if (b == '\\') {
+				i++;
+			} else if (b == '"') {
+				return i;
+			}
+		}
+		return end;
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+	}
+
+	/**
+	 * @return the tweet-id, or 0 if this is not a tweet. This is the "id" of
+	 *         the top-level object, wherever it comes in the message. Nested
+	 *         ids (e.g. the user's, or a deleted status's) are skipped.
+	 */
+	static long parseId(ByteBuffer frame) {
+		int end = frame.limit();
+		int depth = 0;
+		for (int i = frame.position(); i < end; i++) {
+			byte b = frame.get(i);
+			if (b == '{' || b == '[') {
+				depth++;
+			} else if (b == '}' || b == ']') {
+				depth--;
+			} else if (b == '"') {
+				int close = endOfString(frame, i, end);
+				if (depth == 1 && close - i == 3 && frame.get(i + 1) == 'i'
+						&& frame.get(i + 2) == 'd') {
+					// a key (not a value) if a colon follows
+					int k = close + 1;
+					while (k < end && isSpace(frame.get(k))) {
+						k++;
+					}
+					if (k < end && frame.get(k) == ':') {
+						k++;
+						while (k < end && isSpace(frame.get(k))) {
+							k++;
+						}
+						long id = 0;
+						for (int n = 0; k < end && n < 19; k++, n++) {
+							byte d = frame.get(k);
+							if (d < '0' || d > '9') {
+								break;
+							}
+							id = id * 10 + (d - '0');
+						}
+						return id;
+					}
+				}
+				i = close;
+			}
+		}
+		return 0;
+	}
+
+	private boolean closed;
+
+	private Segment current;
+
+	private final File dir;
+
+	private int errors;
+
+	private IOException lastError;
+
+	private long lastStamp;
+
+	private long maxAge = 24 * 60 * 60 * 1000L;
+
+	private long maxBytes = 256 * 1024 * 1024L;
+
+	private int segmentBytes = 16 * 1024 * 1024;
+
+	private final List<Segment> segments = new ArrayList<Segment>();
+
+	/**
+	 * Open (or create) a journal. Existing segments are indexed, ready for
+	 * replay. New messages go into a fresh segment.
+	 *
+	 * @param dir
+	 *            Only use this directory for one journal!
+	 * @throws TwitterException.IO
+	 */
+	public StreamJournal(File dir) {
+		this.dir = dir;
+		dir.mkdirs();
+		File[] files = dir.listFiles();
+		if (files == null)
+			throw new TwitterException.IO(new IOException("Not a directory: "
+					+ dir));
+		Arrays.sort(files);
+		for (File f : files) {
+			if (!f.getName().endsWith(SUFFIX)) {
+				continue;
+			}
+			try {
+				segments.add(load(f));
+			} catch (IOException e) {
+				// skip it, but say so via getErrors()
+				errors++;
+				lastError = e;
+			}
+		}
+	}
+
+	/**
+	 * Add a message. Called by the gobbler thread. Never throws: problems are
+	 * counted in {@link #getErrors()}, see {@link #getLastError()}. Does
+	 * nothing once the journal is closed.
+	 *
+	 * @param frame
+	 *            a raw message. This is not modified.
+	 */
+	synchronized void append(ByteBuffer frame) {
+		int len = frame.remaining();
+		if (len == 0 || closed)
+			return;
+		long now = System.currentTimeMillis();
+		try {
+			if (current == null
+					|| current.end + HEADER + len > current.buf.capacity()) {
+				roll(len, now);
+			}
+		} catch (IOException e) {
+			errors++;
+			lastError = e;
+			return;
+		}
+		long id = parseId(frame);
+		int pos = current.end;
+		MappedByteBuffer buf = current.buf;
+		buf.putLong(pos + 4, id);
+		buf.putLong(pos + 12, now);
+		ByteBuffer dest = buf.duplicate();
+		dest.position(pos + HEADER);
+		dest.put(frame.duplicate());
+		// write the length last, so a half-written record is ignored
+		buf.putInt(pos, len);
+		current.end = pos + HEADER + len;
+		current.add(pos, id, now);
+	}
+
+	/**
+	 * Flush to disk and stop appending: later messages are ignored. The
+	 * journal can still be replayed.
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		if (current == null)
+			return;
+		current.buf.force();
+		current = null;
+	}
+
+	/**
+	 * @return the number of messages which could not be written, plus the
+	 *         number of segments which could not be read when the journal
+	 *         was opened
+	 */
+	public synchronized int getErrors() {
+		return errors;
+	}
+
+	/**
+	 * @return the most recent error counted by {@link #getErrors()}, or null
+	 */
+	public synchronized IOException getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * @return the number of messages in the journal
+	 */
+	public synchronized int getSize() {
+		int n = 0;
+		for (Segment s : segments) {
+			n += s.count;
+		}
+		return n;
+	}
+
+	private Segment load(File f) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		MappedByteBuffer buf;
+		try {
+			FileChannel ch = raf.getChannel();
+			buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+		} finally {
+			InternalUtils.close(raf);
+		}
+		Segment seg = new Segment(f, buf);
+		int pos = 0;
+		int cap = buf.capacity();
+		while (pos + HEADER <= cap) {
+			int len = buf.getInt(pos);
+			if (len <= 0 || pos + HEADER + len > cap) {
+				break;
+			}
+			seg.add(pos, buf.getLong(pos + 4), buf.getLong(pos + 12));
+			pos += HEADER + len;
+		}
+		seg.end = pos;
+		lastStamp = Math.max(lastStamp, seg.lastTime());
+		return seg;
+	}
+
+	/**
+	 * Delete old segments. Never deletes the current segment.
+	 */
+	private void prune(long now) {
+		long total = 0;
+		for (Segment s : segments) {
+			total += s.buf.capacity();
+		}
+		while (segments.size() > 1) {
+			Segment s = segments.get(0);
+			boolean old = maxAge > 0 && s.lastTime() < now - maxAge;
+			if (!old && total <= maxBytes) {
+				break;
+			}
+			segments.remove(0);
+			total -= s.buf.capacity();
+			s.delete();
+		}
+	}
+
+	/**
+	 * Replay messages which arrived at or after a given time.
+	 *
+	 * @param since
+	 * @param stream
+	 *            The messages go to this stream's listeners, in order (the
+	 *            polling buffers are not affected).
+	 * @return the number of messages replayed
+	 * @throws InterruptedException
+	 */
+	public int replay(Date since, AStream stream) throws InterruptedException {
+		return replay2(-1, since.getTime(), stream);
+	}
+
+	/**
+	 * Replay messages from just after a given tweet. Warning: Twitter do not
+	 * send tweets in strict id order, so expect a few duplicates.
+	 *
+	 * @param sinceId
+	 *            e.g. the last tweet you processed. Can be null to replay
+	 *            everything.
+	 * @param stream
+	 *            The messages go to this stream's listeners, in order (the
+	 *            polling buffers are not affected).
+	 * @return the number of messages replayed
+	 * @throws InterruptedException
+	 */
+	public int replay(BigInteger sinceId, AStream stream)
+			throws InterruptedException {
+		// null: everything, including events journaled before the first
+		// tweet (their running max id is 0)
+		return replay2(sinceId == null ? Long.MIN_VALUE : sinceId.longValue(),
+				-1, stream);
+	}
+
+	/**
+	 * @param sinceId
+	 *            -1 to use sinceTime. Long.MIN_VALUE for everything.
+	 * @param sinceTime
+	 * @param stream
+	 */
+	private int replay2(long sinceId, long sinceTime, AStream stream)
+			throws InterruptedException {
+		// find the start, and snapshot what's there now
+		List<Segment> segs = new ArrayList<Segment>();
+		List<ByteBuffer> bufs = new ArrayList<ByteBuffer>();
+		List<int[]> offsets = new ArrayList<int[]>();
+		int[] counts;
+		int start = -1;
+		synchronized (this) {
+			for (Segment seg : segments) {
+				if (start == -1) {
+					start = sinceId == -1 ? seg.seekTime(sinceTime, seg.count)
+							: seg.seekId(sinceId, seg.count);
+					if (start == -1) {
+						continue;
+					}
+				}
+				segs.add(seg);
+				bufs.add(seg.buf.duplicate());
+				offsets.add(seg.offsets);
+			}
+			counts = new int[segs.size()];
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = segs.get(i).count;
+			}
+		}
+		if (segs.isEmpty())
+			return 0;
+		// Parse in parallel, but block rather than drop if the listeners
+		// are slow
+		ParsePipeline pipeline = new ParsePipeline(stream,
+				AStream.PARSE_THREADS);
+		int cnt = 0;
+		try {
+			for (int si = 0; si < segs.size(); si++) {
+				ByteBuffer rd = bufs.get(si);
+				int[] offs = offsets.get(si);
+				for (int i = si == 0 ? start : 0; i < counts[si]; i++) {
+					int off = offs[i];
+					int len = rd.getInt(off);
+					rd.limit(off + HEADER + len);
+					rd.position(off + HEADER);
+					String json = StreamFramer.UTF8.decode(rd).toString();
+					rd.clear();
+					pipeline.put(json);
+					cnt++;
+				}
+			}
+		} finally {
+			pipeline.finish();
+		}
+		return cnt;
+	}
+
+	/**
+	 * Start a new segment.
+	 *
+	 * @param len
+	 *            The segment must be big enough for this message
+	 */
+	private void roll(int len, long now) throws IOException {
+		if (current != null) {
+			current.buf.force();
+		}
+		// file names sort by time
+		long stamp = Math.max(now, lastStamp + 1);
+		lastStamp = stamp;
+		File f = new File(dir, String.format("%019d", stamp) + SUFFIX);
+		int size = Math.max(segmentBytes, HEADER + len + 4);
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		MappedByteBuffer buf;
+		try {
+			buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					size);
+		} finally {
+			InternalUtils.close(raf);
+		}
+		current = new Segment(f, buf);
+		segments.add(current);
+		prune(now);
+	}
+
+	/**
+	 * @param maxAge
+	 *            Delete segments older than this. 0 for no limit. 1 day by
+	 *            default.
+	 */
+	public synchronized void setMaxAge(long maxAge) {
+		this.maxAge = maxAge;
+	}
+
+	/**
+	 * @param maxBytes
+	 *            Delete the oldest segments once the journal is bigger than
+	 *            this. 256mb by default.
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @param segmentBytes
+	 *            The size of each segment file. 16mb by default. Affects new
+	 *            segments only.
+	 */
+	public synchronized void setSegmentBytes(int segmentBytes) {
+		assert segmentBytes > HEADER : segmentBytes;
+		this.segmentBytes = segmentBytes;
+	}
+
+	@Override
+	public String toString() {
+		return "StreamJournal[" + dir + "]";
+	}
+}
@@ -0,0 +1,132 @@
+package winterwell.jtwitter;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A snapshot of a stream's health & throughput. Get one from
+ * {@link AStream#getMetrics()}. Rates and latencies cover the period since the
+ * previous snapshot was taken (or since the stream was created).
+ * <p>
+ * Tip: the quickest signs of falling behind are growing queue depths and
+ * non-zero drops. A long keep-alive gap (Twitter send one every 30 seconds)
+ * means the connection has probably stalled.
+ */
+public final class StreamMetrics {
+
+	/**
+	 * Seconds until the next reconnect attempt, or 0 if not waiting.
+	 */
+	public final int backoffSeconds;
+
+	/**
+	 * Total bytes read from Twitter, including keep-alives.
+	 */
+	public final long bytes;
+
+	public final double bytesPerSecond;
+
+	public final boolean connected;
+
+	/**
+	 * Messages lost, by reason. E.g. "forgotten" (polling buffers
+	 * overflowed), "duplicate", "filtered", plus the
+	 * {@link AStream#getBackpressureStats()} drops.
+	 */
+	public final Map<String, Long> dropped;
+
+	/**
+	 * Number of exceptions from the connection.
+	 */
+	public final int errors;
+
+	/**
+	 * Total messages received from Twitter.
+	 */
+	public final long frames;
+
+	public final double framesPerSecond;
+
+	/**
+	 * Milliseconds since anything (even a keep-alive) arrived. -1 if nothing
+	 * has arrived yet.
+	 */
+	public final long keepAliveGap;
+
+	/**
+	 * The latest exception from the connection, or null.
+	 */
+	public final String lastError;
+
+	/**
+	 * Per listener (by toString()): the longest call (or batch) in
+	 * milliseconds.
+	 */
+	public final Map<String, Double> listenerMaxMillis;
+
+	/**
+	 * Per listener (by toString()): the average call (or batch) in
+	 * milliseconds.
+	 */
+	public final Map<String, Double> listenerMeanMillis;
+
+	public final int outages;
+
+	public final double parseMaxMillis;
+
+	public final double parseMeanMillis;
+
+	/**
+	 * Messages waiting, by queue. E.g. "poll" (raw json for popTweets()),
+	 * "tweets", "listen" (the listener pipeline).
+	 */
+	public final Map<String, Integer> queueDepths;
+
+	public final int reconnects;
+
+	/**
+	 * When this snapshot was taken.
+	 */
+	public final long time;
+
+	StreamMetrics(long time, boolean connected, long frames,
+			double framesPerSecond, long bytes, double bytesPerSecond,
+			long keepAliveGap, double parseMeanMillis, double parseMaxMillis,
+			Map<String, Double> listenerMeanMillis,
+			Map<String, Double> listenerMaxMillis,
+			Map<String, Integer> queueDepths, Map<String, Long> dropped,
+			int reconnects, int backoffSeconds, int outages, int errors,
+			String lastError) {
+		this.time = time;
+		this.connected = connected;
+		this.frames = frames;
+		this.framesPerSecond = framesPerSecond;
+		this.bytes = bytes;
+		this.bytesPerSecond = bytesPerSecond;
+		this.keepAliveGap = keepAliveGap;
+		this.parseMeanMillis = parseMeanMillis;
+		this.parseMaxMillis = parseMaxMillis;
+		this.listenerMeanMillis = Collections
+				.unmodifiableMap(listenerMeanMillis);
+		this.listenerMaxMillis = Collections.unmodifiableMap(listenerMaxMillis);
+		this.queueDepths = Collections.unmodifiableMap(queueDepths);
+		this.dropped = Collections.unmodifiableMap(dropped);
+		this.reconnects = reconnects;
+		this.backoffSeconds = backoffSeconds;
+		this.outages = outages;
+		this.errors = errors;
+		this.lastError = lastError;
+	}
+
+	@Override
+	public String toString() {
+		return "StreamMetrics[" + (connected ? "connected" : "disconnected")
+				+ " frames/s:" + Math.round(framesPerSecond) + " bytes/s:"
+				+ Math.round(bytesPerSecond) + " parse:"
+				+ String.format("%.2f", parseMeanMillis) + "ms keepAliveGap:"
+				+ keepAliveGap + "ms queues:" + queueDepths + " dropped:"
+				+ dropped + " reconnects:" + reconnects
+				+ (backoffSeconds == 0 ? "" : " backoff:" + backoffSeconds + "s")
+				+ "]";
+	}
+}
@@ -0,0 +1,112 @@
+package winterwell.jtwitter;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import winterwell.jtwitter.AStream.IListen;
+import winterwell.jtwitter.Twitter.ITweet;
+
+/**
+ * The shared part of {@link QueuedListener} and {@link BatchListener}: a
+ * bounded queue, fed by the stream, and a thread which empties it. If the
+ * thread falls too far behind, the oldest messages are dropped.
+ * <p>
+ * Subclasses call {@link #start()} at the end of their constructor, and
+ * implement {@link #runLoop()}.
+ */
+abstract class ThreadedListener implements IListen {
+
+	/**
+	 * Put on the queue by {@link #close()}
+	 */
+	static final Object STOP = new Object();
+
+	final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Time spent in the wrapped listener
+	 */
+	final Latency latency = new Latency();
+
+	/**
+	 * The wrapped listener
+	 */
+	final Object listener;
+
+	final BlockingQueue<Object> queue;
+
+	private final Thread thread;
+
+	ThreadedListener(Object listener, String threadName, int queueSize) {
+		this.listener = listener;
+		queue = new ArrayBlockingQueue<Object>(Math.max(1, queueSize));
+		thread = new Thread(threadName + ":" + listener) {
+			@Override
+			public void run() {
+				try {
+					runLoop();
+				} catch (InterruptedException e) {
+					// stop
+				}
+			}
+		};
+		thread.setDaemon(true);
+	}
+
+	/**
+	 * Stop the thread. Anything still queued is thrown away.
+	 */
+	final void close() {
+		queue.clear();
+		if (!queue.offer(STOP)) {
+			thread.interrupt();
+		}
+	}
+
+	private void enqueue(Object obj) {
+		while (!queue.offer(obj)) {
+			if (queue.poll() != null) {
+				dropped.incrementAndGet();
+			}
+		}
+	}
+
+	@Override
+	public final boolean processEvent(TwitterEvent event) {
+		enqueue(event);
+		return true;
+	}
+
+	@Override
+	public final boolean processSystemEvent(Object[] obj) {
+		enqueue(obj);
+		return true;
+	}
+
+	@Override
+	public final boolean processTweet(ITweet tweet) {
+		enqueue(tweet);
+		return true;
+	}
+
+	/**
+	 * Take messages from {@link #queue} and pass them on, until
+	 * {@link #STOP} is taken. Runs in the listener's thread.
+	 */
+	abstract void runLoop() throws InterruptedException;
+
+	final void start() {
+		thread.start();
+	}
+
+	/**
+	 * Add this listener's counts to stats.
+	 */
+	void stats(Map<String, Long> stats) {
+		String name = "listener:" + listener;
+		stats.put(name + ".dropped", dropped.get());
+		stats.put(name + ".queued", (long) queue.size());
+	}
+}
@@ -636,6 +636,12 @@ public class Twitter implements Serializable {
 	 */
 	Integer pageNumber;
 
+	/**
+	 * Set by {@link #search(String, ICallback, int)}: true if the callback
+	 * stopped the search before the last page. For {@link MultiSearch}.
+	 */
+	boolean searchStopped;
+
 	private String resultType;
 
 	/**
@@ -690,12 +696,44 @@ public class Twitter implements Serializable {
 
 	/**
 	 * Copy constructor. Use this to pass cloned Twitter objects for
-	 * multi-threaded work.
+	 * multi-threaded work. The copy gets its own http client, and keeps the
+	 * search and paging settings (since/until, maxResults, language,
+	 * location, etc.).
 	 * 
 	 * @param jtwit
 	 */
 	public Twitter(Twitter jtwit) {
-		this(jtwit.getScreenName(), jtwit.http.copy());
+		this(jtwit.getScreenName(), jtwit);
+	}
+
+	private Twitter(String name, Twitter jtwit) {
+		this(name, jtwit.http.copy());
+		self = jtwit.self;
+		count = jtwit.count;
+		geocode = jtwit.geocode;
+		includeRTs = jtwit.includeRTs;
+		lang = jtwit.lang;
+		maxResults = jtwit.maxResults;
+		myLatLong = jtwit.myLatLong;
+		resultType = jtwit.resultType;
+		sinceDate = jtwit.sinceDate;
+		sinceId = jtwit.sinceId;
+		sourceApp = jtwit.sourceApp;
+		tweetEntities = jtwit.tweetEntities;
+		TWITTER_URL = jtwit.TWITTER_URL;
+		untilDate = jtwit.untilDate;
+		untilId = jtwit.untilId;
+	}
+
+	/**
+	 * A copy for running requests in another thread, as
+	 * {@link #Twitter(Twitter)}, except that this never calls Twitter to look
+	 * up the screen name.
+	 * 
+	 * @see MultiSearch
+	 */
+	Twitter copyWithSettings() {
+		return new Twitter(name, this);
 	}
 
 	/**
@@ -719,7 +757,7 @@ public class Twitter implements Serializable {
 	 * @param vars
 	 * @return vars
 	 */
-	private Map<String, String> addStandardishParameters(
+	Map<String, String> addStandardishParameters(
 			Map<String, String> vars) {
 		if (sinceId != null) {
 			vars.put("since_id", sinceId.toString());
@@ -832,12 +870,28 @@ public class Twitter implements Serializable {
 	 */
 	public List<TwitterList> getListsAll(User user, TweetyCloudActivity tweety) {		
 		assert user!=null || http.canAuthenticate() : "No authenticating user";
+		String url = TWITTER_URL + "/lists/all.json";
+		Map<String, String> vars = user.screenName==null?
+				InternalUtils.asMap("user_id", user.id)
+				: InternalUtils.asMap("screen_name", user.screenName);
+		String listsJson = http.getPage(url, vars, http.canAuthenticate());
+		if (tweety != null) {
+			tweety.onListsJson(listsJson);
+		}
+		return getListsFromJson(listsJson, tweety);
+	}
+
+	/**
+	 * Parse the json from /lists/all.json, e.g. as saved from an earlier call
+	 * to {@link #getListsAll(User, TweetyCloudActivity)}. No network needed.
+	 * 
+	 * @param listsJson
+	 * @param tweety
+	 *            Can be null
+	 */
+	public List<TwitterList> getListsFromJson(String listsJson,
+			TweetyCloudActivity tweety) {
 		try {
-			String url = TWITTER_URL + "/lists/all.json";
-			Map<String, String> vars = user.screenName==null?
-					InternalUtils.asMap("user_id", user.id)
-					: InternalUtils.asMap("screen_name", user.screenName);
-			String listsJson = http.getPage(url, vars, http.canAuthenticate());
 			//JSONObject wrapper = new JSONObject(listsJson);
 			//JSONArray jarr = (JSONArray) wrapper.get("lists");
 			JSONArray jarr = new JSONArray(listsJson, tweety);
@@ -1011,20 +1065,28 @@ public class Twitter implements Serializable {
 	}
 
 	/**
-	 * Does the grunt work for paged status fetching
+	 * Does the grunt work for paged status fetching. Also used by
+	 * {@link TwitterList#getStatuses(TweetyCloudActivity, int)}.
 	 * 
 	 * @param url
 	 * @param var
 	 * @param authenticate
-	 * @return
+	 * @param tweety
+	 *            Can be null. If set, paging stops when the user cancels,
+	 *            and each page is passed to tweety.onStatusPage() as soon as
+	 *            it arrives.
+	 * @return null if cancelled via tweety
 	 */
-	private List<Status> getStatuses(final String url, Map<String, String> var,
+	List<Status> getStatuses(final String url, Map<String, String> var,
 			boolean authenticate, TweetyCloudActivity tweety) {
 		// Default: 1 page
 		if (maxResults < 1) {
 			List<Status> msgs = Status.getStatuses(http.getPage(url, var,
 					authenticate), tweety);
 			msgs = dateFilter(msgs);
+			if (tweety != null) {
+				tweety.onStatusPage(msgs);
+			}
 			return msgs;
 		}
 		// Fetch all pages until we reach the desired maxResults, or run out
@@ -1036,7 +1098,7 @@ public class Twitter implements Serializable {
 		List<Status> msgs = new ArrayList<Status>();
 		//var.put("per_page", Integer.toString(maxResults));
 		while (msgs.size() <= maxResults) {
-			if (tweety.stopThread) {
+			if (tweety != null && tweety.stopThread) {
 				return null;
 			}
 			String json = http.getPage(url, var, authenticate);
@@ -1053,7 +1115,11 @@ public class Twitter implements Serializable {
 					.subtract(BigInteger.ONE);
 			// System.out.println(maxId + " -> " + nextpage.get(0).id);
 
-			msgs.addAll(dateFilter(nextpage));
+			nextpage = dateFilter(nextpage);
+			if (tweety != null) {
+				tweety.onStatusPage(nextpage);
+			}
+			msgs.addAll(nextpage);
 			// pageNumber++;
 			var.put("max_id", maxId.toString());
 		}
@@ -1241,6 +1307,7 @@ public class Twitter implements Serializable {
 				rpp));
 		String url = TWITTER_SEARCH_URL + "/search.json";
 		int localPageNumber = 1; // pageNumber is nulled by getSearchParams
+		searchStopped = false;
 		do {
 			pageNumber = localPageNumber;
 			vars.put("page", Integer.toString(pageNumber));
@@ -1249,13 +1316,16 @@ public class Twitter implements Serializable {
 			int numResults = stati.size();
 			stati = dateFilter(stati);
 			allResults.addAll(stati);
+			// We've reached the end of the results?
+			boolean last = numResults < rpp || allResults.size() >= maxResults;
 			if (callback != null) {
 				// the callback may tell us to stop, by returning true
 				if (callback.process(stati)) {
+					searchStopped = ! last;
 					break;
 				}
 			}
-			if (numResults < rpp) { // We've reached the end of the results
+			if (numResults < rpp) {
 				break;
 			}
 			// paranoia
@@ -281,6 +281,14 @@ public class TwitterList extends AbstractList<User> {
 		return vars;
 	}
 
+	/**
+	 * @return the list's id, or null if not known (e.g. a list made with
+	 *         {@link #get(String, String, Twitter)} which hasn't been loaded)
+	 */
+	public Number getId() {
+		return id;
+	}
+
 	public String getName() {
 		return name;
 	}
@@ -291,28 +299,30 @@ public class TwitterList extends AbstractList<User> {
 
 	/**
 	 * Returns a list of statuses from this list.
+	 * <p>
+	 * This behaves like {@link Twitter#getHomeTimeline(TweetyCloudActivity)}:
+	 * it supports {@link Twitter#setMaxResults(int)} (paging back through the
+	 * list by status id) and {@link Twitter#setSinceId(Number)}, as set on the
+	 * Twitter object used to create this list.
 	 * 
-	 * @return List<Status> a list of Status objects for the list
+	 * @param tweety
+	 *            Can be null. If set, paging stops when the user cancels.
+	 * @param per_page
+	 *            statuses to request per page (Twitter allow up to 200)
+	 * @return List<Status> a list of Status objects for the list, or null if
+	 *         cancelled
 	 * @throws TwitterException
 	 */
 	// Added TG 3/31/10
 	public List<Status> getStatuses(TweetyCloudActivity tweety, int per_page)
 			throws TwitterException {
-		// try {
-		// String jsonListStatuses = http.getPage(
-		// jtwit.TWITTER_URL + "/" + owner.screenName + "/lists/"
-		// + URLEncoder.encode(slug, "UTF-8")
-		// + "/statuses.json", null, http.canAuthenticate());
 		Map<String, String> vars = getListVars();
 		vars.put("per_page", Integer.toString(per_page));
-		vars.put("page", "1");
-		String jsonListStatuses = http.getPage(jtwit.TWITTER_URL + "/lists"
-				+ "/statuses.json", vars, http.canAuthenticate());
-		List<Status> msgs = Status.getStatuses(jsonListStatuses, tweety);
-		return msgs;
-		// } catch (UnsupportedEncodingException e) {
-		// throw new TwitterException(e);
-		// }
+		// since_id, max_id, entities & retweets -- but not page: we page by id
+		jtwit.addStandardishParameters(vars);
+		vars.remove("page");
+		return jtwit.getStatuses(jtwit.TWITTER_URL + "/lists/statuses.json",
+				vars, http.canAuthenticate(), tweety);
 	}
 
 	public int getSubscriberCount() {
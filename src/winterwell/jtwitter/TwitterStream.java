@@ -4,7 +4,15 @@ import java.net.HttpURLConnection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.ArrayList;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import winterwell.jtwitter.Twitter.KRequestType;
 
 
 /**
@@ -64,6 +72,12 @@ public class TwitterStream extends AStream {
 	 */
 	public static final int MAX_USERS = 5000;
 
+	/**
+	 * How many searches to run at once when filling in outages.
+	 * @see #fillInOutages()
+	 */
+	public static int FILL_IN_THREADS = 8;
+
 	/**
 	 * Used to help avoid breaking api limits.
 	 */
@@ -133,37 +147,99 @@ public class TwitterStream extends AStream {
 	}
 
 	@Override
-	void fillInOutages2(Twitter jtwit2, Outage outage) {
+	boolean fillInOutages2(Twitter jtwit2, Outage outage) {
 		if (method != KMethod.filter)
 			throw new UnsupportedOperationException();
-		// keywords?
-		if (track != null) {
-			for (String keyword : track) {
-				List<Status> msgs = jtwit.search(keyword);
-				for (Status status : msgs) {
-					if (tweets.contains(status)) {
-						continue;
-					}
-					tweets.add(status);
+		boolean done = true;
+		// keywords? (searched in parallel)
+		if (track != null && ! track.isEmpty()) {
+			MultiSearch ms = new MultiSearch(jtwit2, FILL_IN_THREADS);
+			List<Status> msgs = ms.search(track, null);
+			for (Status status : msgs) {
+				addTweet(status);
+			}
+			if (ms.isRateLimited()) {
+				done = false;
+			}
+			// a failed search won't do better next time: report it & move on
+			for (Map.Entry<String, Exception> e : ms.getErrors().entrySet()) {
+				if ( ! (e.getValue() instanceof TwitterException.RateLimit)) {
+					addSysEvent(new Object[] { "fill-in-failed", e.getKey(),
+							e.getValue() });
 				}
 			}
 		}
 		
-		// users?
-		if (follow != null) {
-			for (Long user : follow) {
-				List<Status> msgs = jtwit.getUserTimeline(user);
-				for (Status status : msgs) {
-					if (tweets.contains(status)) {
-						continue;
-					}
-					tweets.add(status);
-				}
+		// users? (also in parallel)
+		if (follow != null && ! follow.isEmpty()) {
+			if ( ! fillInOutages3_users(jtwit2)) {
+				done = false;
 			}
 		}
 		// regions?
 		if (locns != null && ! locns.isEmpty())
 			throw new UnsupportedOperationException("TODO"); // TODO
+		return done;
+	}
+
+	/**
+	 * Fetch the followed users' timelines, upto FILL_IN_THREADS at a time.
+	 * Stops early if the rate limit runs low. Other errors (e.g. a user who
+	 * has gone private, or been deleted) are reported as "fill-in-failed"
+	 * system events, and the other users carry on -- as {@link MultiSearch}
+	 * does for search terms.
+	 * 
+	 * @return true if all were fetched
+	 */
+	private boolean fillInOutages3_users(final Twitter jtwit2) {
+		final AtomicBoolean rateLimited = new AtomicBoolean();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(
+				FILL_IN_THREADS, follow.size()));
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>(follow.size());
+			for (final Long user : follow) {
+				futures.add(pool.submit(new Runnable() {
+					@Override
+					public void run() {
+						if (rateLimited.get())
+							return;
+						// Twitter objects are not thread safe, so each call
+						// gets a copy
+						Twitter jtwit3 = jtwit2.copyWithSettings();
+						try {
+							List<Status> msgs = jtwit3.getUserTimeline(user);
+							for (Status status : msgs) {
+								addTweet(status);
+							}
+						} catch (TwitterException.RateLimit e) {
+							rateLimited.set(true);
+							return;
+						} catch (TwitterException e) {
+							addSysEvent(new Object[] { "fill-in-failed", user, e });
+							return;
+						}
+						// out of credit?
+						RateLimit rl = jtwit3.getRateLimit(KRequestType.NORMAL);
+						if (rl != null && rl.getRemaining() <= FILL_IN_THREADS
+								&& ! rl.isOutOfDate()) {
+							rateLimited.set(true);
+						}
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			throw new TwitterException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof TwitterException)
+				throw (TwitterException) e.getCause();
+			throw new TwitterException(e);
+		} finally {
+			pool.shutdownNow();
+		}
+		return ! rateLimited.get();
 	}
 
 	/**
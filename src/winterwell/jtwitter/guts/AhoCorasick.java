@@ -0,0 +1,181 @@
+package winterwell.jtwitter.guts;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Finds many patterns at once in a run of bytes, in a single pass (the
+ * Aho-Corasick algorithm). Matching is case-insensitive for ASCII letters.
+ * Patterns are matched as UTF-8 bytes.
+ * <p>
+ * Immutable once built, so safe to share between threads.
+ */
+public final class AhoCorasick {
+
+	/**
+	 * byte -> input class. Class 0 is "any byte not in a pattern", which keeps
+	 * the state table small.
+	 */
+	private final int[] classOf = new int[256];
+
+	/**
+	 * state * numClasses + class -> next state. State 0 is the root.
+	 */
+	private final int[] delta;
+
+	private final int numClasses;
+
+	/**
+	 * state -> indexes of the patterns which end there (or null)
+	 */
+	private final int[][] out;
+
+	private final int size;
+
+	/**
+	 * @param patterns
+	 *            Must not be empty strings.
+	 */
+	public AhoCorasick(List<String> patterns) {
+		size = patterns.size();
+		Charset utf8 = Charset.forName("UTF-8");
+		byte[][] pats = new byte[patterns.size()][];
+		int nc = 1;
+		for (int i = 0; i < pats.length; i++) {
+			pats[i] = patterns.get(i).getBytes(utf8);
+			if (pats[i].length == 0)
+				throw new IllegalArgumentException("empty pattern");
+			for (int j = 0; j < pats[i].length; j++) {
+				byte b = pats[i][j];
+				if (b >= 'A' && b <= 'Z') {
+					b += 'a' - 'A';
+					pats[i][j] = b;
+				}
+				int ub = b & 0xff;
+				if (classOf[ub] == 0) {
+					classOf[ub] = nc++;
+				}
+			}
+		}
+		// fold upper-case ASCII
+		for (int c = 'A'; c <= 'Z'; c++) {
+			classOf[c] = classOf[c + ('a' - 'A')];
+		}
+		numClasses = nc;
+
+		// build the trie
+		List<int[]> kids = new ArrayList<int[]>();
+		List<int[]> outs = new ArrayList<int[]>();
+		kids.add(new int[nc]);
+		outs.add(null);
+		for (int i = 0; i < pats.length; i++) {
+			int s = 0;
+			for (byte b : pats[i]) {
+				int c = classOf[b & 0xff];
+				int next = kids.get(s)[c];
+				if (next == 0) {
+					next = kids.size();
+					kids.add(new int[nc]);
+					outs.add(null);
+					kids.get(s)[c] = next;
+				}
+				s = next;
+			}
+			outs.set(s, append(outs.get(s), i));
+		}
+
+		// breadth-first: fill in failure links, turning the trie into a DFA
+		int n = kids.size();
+		delta = new int[n * nc];
+		out = new int[n][];
+		int[] fail = new int[n];
+		int[] queue = new int[n];
+		int qHead = 0, qTail = 0;
+		for (int c = 0; c < nc; c++) {
+			int k = kids.get(0)[c];
+			delta[c] = k;
+			if (k != 0) {
+				queue[qTail++] = k;
+			}
+		}
+		out[0] = outs.get(0);
+		while (qHead < qTail) {
+			int s = queue[qHead++];
+			int f = fail[s];
+			out[s] = merge(outs.get(s), out[f]);
+			int[] ks = kids.get(s);
+			for (int c = 0; c < nc; c++) {
+				int k = ks[c];
+				if (k == 0) {
+					delta[s * nc + c] = delta[f * nc + c];
+				} else {
+					delta[s * nc + c] = k;
+					fail[k] = delta[f * nc + c];
+					queue[qTail++] = k;
+				}
+			}
+		}
+	}
+
+	private static int[] append(int[] arr, int x) {
+		if (arr == null)
+			return new int[] { x };
+		int[] arr2 = new int[arr.length + 1];
+		System.arraycopy(arr, 0, arr2, 0, arr.length);
+		arr2[arr.length] = x;
+		return arr2;
+	}
+
+	private static int[] merge(int[] a, int[] b) {
+		if (a == null)
+			return b;
+		if (b == null)
+			return a;
+		int[] ab = new int[a.length + b.length];
+		System.arraycopy(a, 0, ab, 0, a.length);
+		System.arraycopy(b, 0, ab, a.length, b.length);
+		return ab;
+	}
+
+	/**
+	 * Find all the patterns in bytes (from position to limit). bytes is not
+	 * modified.
+	 *
+	 * @param bytes
+	 * @param found
+	 *            The index of each pattern found gets set here. This is not
+	 *            cleared first.
+	 * @return the number of matches (counting repeats)
+	 */
+	public int match(ByteBuffer bytes, BitSet found) {
+		int cnt = 0;
+		int s = 0;
+		for (int i = bytes.position(), end = bytes.limit(); i < end; i++) {
+			s = delta[s * numClasses + classOf[bytes.get(i) & 0xff]];
+			int[] o = out[s];
+			if (o != null) {
+				for (int p : o) {
+					found.set(p);
+				}
+				cnt += o.length;
+			}
+		}
+		return cnt;
+	}
+
+	/**
+	 * @return the number of patterns
+	 */
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return "AhoCorasick[" + size + " patterns, " + out.length
+				+ " states]";
+	}
+}
@@ -0,0 +1,170 @@
+package winterwell.jtwitter.guts;
+
+import java.util.Arrays;
+
+/**
+ * A set of primitive longs, using open addressing (linear probing). This
+ * avoids boxing each value, so it is much lighter than a HashSet&lt;Long&gt;
+ * for large sets of ids.
+ * <p>
+ * Not thread-safe.
+ */
+public final class LongSet {
+
+	/**
+	 * 0 marks an empty slot, so the value 0 is tracked separately.
+	 */
+	private boolean hasZero;
+
+	private int mask;
+
+	private int size;
+
+	private long[] table;
+
+	public LongSet() {
+		this(16);
+	}
+
+	/**
+	 * @param expectedSize
+	 *            The set will grow if need be.
+	 */
+	public LongSet(int expectedSize) {
+		int cap = 16;
+		// keep the load factor at or below 1/2
+		while (cap < expectedSize * 2) {
+			cap <<= 1;
+		}
+		table = new long[cap];
+		mask = cap - 1;
+	}
+
+	/**
+	 * @return true if x was not already in the set
+	 */
+	public boolean add(long x) {
+		if (x == 0) {
+			if (hasZero)
+				return false;
+			hasZero = true;
+			size++;
+			return true;
+		}
+		int i = slot(x);
+		while (table[i] != 0) {
+			if (table[i] == x)
+				return false;
+			i = (i + 1) & mask;
+		}
+		table[i] = x;
+		size++;
+		if (size * 2 > table.length) {
+			grow();
+		}
+		return true;
+	}
+
+	/**
+	 * Add all the values from another set.
+	 */
+	public void addAll(LongSet other) {
+		if (other.hasZero) {
+			add(0);
+		}
+		for (long x : other.table) {
+			if (x != 0) {
+				add(x);
+			}
+		}
+	}
+
+	public void clear() {
+		if (size == 0)
+			return;
+		Arrays.fill(table, 0);
+		hasZero = false;
+		size = 0;
+	}
+
+	public boolean contains(long x) {
+		if (x == 0)
+			return hasZero;
+		int i = slot(x);
+		while (table[i] != 0) {
+			if (table[i] == x)
+				return true;
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+
+	private void grow() {
+		long[] old = table;
+		table = new long[old.length * 2];
+		mask = table.length - 1;
+		for (long x : old) {
+			if (x == 0) {
+				continue;
+			}
+			int i = slot(x);
+			while (table[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			table[i] = x;
+		}
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return true if x was in the set
+	 */
+	public boolean remove(long x) {
+		if (x == 0) {
+			if (!hasZero)
+				return false;
+			hasZero = false;
+			size--;
+			return true;
+		}
+		int i = slot(x);
+		while (table[i] != x) {
+			if (table[i] == 0)
+				return false;
+			i = (i + 1) & mask;
+		}
+		// Backward-shift the rest of the probe run, so lookups never hit a gap
+		int gap = i;
+		i = (i + 1) & mask;
+		while (table[i] != 0) {
+			int home = slot(table[i]);
+			// can table[i] move back into the gap?
+			if (((i - home) & mask) >= ((i - gap) & mask)) {
+				table[gap] = table[i];
+				gap = i;
+			}
+			i = (i + 1) & mask;
+		}
+		table[gap] = 0;
+		size--;
+		return true;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private int slot(long x) {
+		// mix the bits: Twitter ids have structure in the low bits
+		long h = x * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	@Override
+	public String toString() {
+		return "LongSet[" + size + "]";
+	}
+}
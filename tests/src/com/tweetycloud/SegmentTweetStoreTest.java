@@ -0,0 +1,294 @@
+package com.tweetycloud;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import winterwell.jtwitter.Status;
+import winterwell.jtwitter.User;
+
+/*
+ Copyright (c) 2012 Shigeru Sasao
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy
+ of this software and associated documentation files (the "Software"), to deal
+ in the Software without restriction, including without limitation the rights
+ to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ copies of the Software, and to permit persons to whom the Software is
+ furnished to do so, subject to the following conditions:
+
+ The above copyright notice and this permission notice shall be included in all
+ copies or substantial portions of the Software.
+
+ The Software shall be used for Good, not Evil.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ SOFTWARE.
+ */
+
+/**
+ * Tests for SegmentTweetStore. It is plain Java, so these run on any JVM as
+ * well as on a device.
+ *
+ * @author Shigeru Sasao
+ *
+ */
+public class SegmentTweetStoreTest extends TestCase {
+
+	/** Small segments, so a few tweets fill several */
+	private static final long SMALL_SEGMENT = 1024;
+
+	/** Where the store under test keeps its files */
+	private File dir;
+
+	private SegmentTweetStore store;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("segments", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (store != null) {
+			store.close();
+		}
+		File[] files = dir.listFiles();
+		for (File file : files == null ? new File[0] : files) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	public void testSaveAndDedupe() {
+		store = new SegmentTweetStore(dir);
+		save("home", tweet(1, "one", 1000), tweet(2, "two", 2000));
+		save("home", tweet(2, "two again", 2000), tweet(3, "three", 3000));
+		save("list:7", tweet(2, "two", 2000));
+
+		// a tweet which is already saved is left as it is
+		assertEquals(Arrays.asList("one", "two", "three"), texts("home"));
+		assertEquals(Arrays.asList("two"), texts("list:7"));
+		assertEquals(BigInteger.valueOf(3), store.getSinceId("home"));
+		assertNull(store.getSinceId("nowhere"));
+		assertEquals(Arrays.asList("home", "list:7"), store.getSources());
+		// null for all sources
+		assertEquals(4, texts(null).size());
+	}
+
+	public void testWindowedVisit() {
+		store = new SegmentTweetStore(dir);
+		// enough for several blocks of the sparse index
+		List<Status> tweets = new ArrayList<Status>();
+		for (int i = 1; i <= 5 * SegmentTweetStore.INDEX_INTERVAL; i++) {
+			tweets.add(tweet(i, "t" + i, i * 1000L));
+		}
+		tweets.add(new Status(new User("nobody"), "no time", 100000, null));
+		save("home", tweets.toArray(new Status[0]));
+
+		List<String> window = new ArrayList<String>();
+		store.visitTweetText("home", 100000, 105000, collect(window));
+		assertEquals(Arrays.asList("t100", "t101", "t102", "t103", "t104"),
+				window);
+		// tweets without a time are only left out of windows
+		assertEquals(tweets.size(), texts("home").size());
+		window.clear();
+		store.visitTweetText("home", 0, 1000, collect(window));
+		assertTrue(window.isEmpty());
+	}
+
+	public void testPruning() {
+		store = new SegmentTweetStore(dir);
+		long now = System.currentTimeMillis();
+		List<Status> tweets = new ArrayList<Status>();
+		for (int i = 1; i <= 10; i++) {
+			tweets.add(tweet(i, "t" + i, now - (10 - i) * 60000L));
+		}
+		save("home", tweets.toArray(new Status[0]));
+
+		// keep the newest 6, deleting at most 3 at a time
+		RetentionPolicy rows = new RetentionPolicy(0, 6, 0);
+		assertEquals(3, store.pruneTweets("home", rows, 3));
+		assertEquals(1, store.pruneTweets("home", rows, 3));
+		assertEquals(0, store.pruneTweets("home", rows, 3));
+		assertEquals(Arrays.asList("t5", "t6", "t7", "t8", "t9", "t10"),
+				texts("home"));
+
+		// then everything older than 2.5 minutes
+		RetentionPolicy age = new RetentionPolicy(150000, 0, 0);
+		assertEquals(3, store.pruneTweets("home", age, 100));
+		assertEquals(Arrays.asList("t8", "t9", "t10"), texts("home"));
+		assertEquals(BigInteger.valueOf(10), store.getSinceId("home"));
+		assertEquals(0, store.pruneTweets("home", RetentionPolicy.KEEP_ALL,
+				100));
+	}
+
+	public void testMerge() {
+		store = new SegmentTweetStore(dir, SMALL_SEGMENT, 0);
+		List<Status> tweets = new ArrayList<Status>();
+		for (int i = 1; i <= 100; i++) {
+			tweets.add(tweet(i, "tweet number " + i, i * 1000L));
+		}
+		save("home", tweets.toArray(new Status[0]));
+		store.pruneTweets("home", new RetentionPolicy(0, 40, 0), 100);
+		int before = segmentFiles();
+		assertTrue("several segments", before > 2);
+
+		store.merge();
+		// the sealed segments became one, next to the active one
+		assertEquals(2, segmentFiles());
+		List<String> expected = new ArrayList<String>();
+		for (int i = 61; i <= 100; i++) {
+			expected.add("tweet number " + i);
+		}
+		assertEquals(expected, texts("home"));
+
+		// the merged tweets can be saved over, deleted and found again
+		save("home", tweet(100, "duplicate", 100000), tweet(101, "new", 101000));
+		expected.add("new");
+		assertEquals(expected, texts("home"));
+		assertEquals(1, store.pruneTweets("home", new RetentionPolicy(0, 40,
+				0), 100));
+		expected.remove(0);
+		assertEquals(expected, texts("home"));
+	}
+
+	public void testReopenAfterMerge() {
+		store = new SegmentTweetStore(dir, SMALL_SEGMENT, 0);
+		for (int i = 1; i <= 60; i++) {
+			save(i % 2 == 0 ? "home" : "list:1",
+					tweet(i, "tweet number " + i, i * 1000L));
+		}
+		store.pruneTweets("home", new RetentionPolicy(0, 10, 0), 100);
+		store.merge();
+		save("home", tweet(61, "after the merge", 61000));
+		List<String> home = texts("home");
+		List<String> list = texts("list:1");
+		store.close();
+
+		store = new SegmentTweetStore(dir, SMALL_SEGMENT, 0);
+		assertEquals(home, texts("home"));
+		assertEquals(list, texts("list:1"));
+		assertEquals(11, home.size());
+		assertEquals(BigInteger.valueOf(61), store.getSinceId("home"));
+		assertEquals(BigInteger.valueOf(59), store.getSinceId("list:1"));
+	}
+
+	public void testTornTail() throws IOException {
+		store = new SegmentTweetStore(dir);
+		save("home", tweet(1, "one", 1000), tweet(2, "two", 2000));
+		store.close();
+		store = null;
+
+		// half a record at the end, as if the app died whilst saving
+		File newest = newestSegment();
+		RandomAccessFile raf = new RandomAccessFile(newest, "rw");
+		long length = raf.length();
+		raf.seek(length);
+		raf.writeInt(200);
+		raf.write(new byte[] { 1, 0, 0, 0 });
+		raf.close();
+
+		store = new SegmentTweetStore(dir);
+		assertEquals(Arrays.asList("one", "two"), texts("home"));
+		assertEquals(length, newest.length());
+		save("home", tweet(3, "three", 3000));
+		store.close();
+
+		// and zeros at the end, as left by a map which wasn't cut down
+		raf = new RandomAccessFile(newestSegment(), "rw");
+		raf.setLength(raf.length() + 4096);
+		raf.close();
+
+		store = new SegmentTweetStore(dir);
+		assertEquals(Arrays.asList("one", "two", "three"), texts("home"));
+		assertEquals(BigInteger.valueOf(3), store.getSinceId("home"));
+	}
+
+	public void testBackgroundMerge() throws InterruptedException {
+		store = new SegmentTweetStore(dir, SMALL_SEGMENT, 2);
+		final List<SegmentTweetStore.StoreException> failures = Collections
+				.synchronizedList(new ArrayList<SegmentTweetStore.StoreException>());
+		store.setMergeListener(new SegmentTweetStore.MergeListener() {
+			public void mergeFailed(SegmentTweetStore.StoreException e) {
+				failures.add(e);
+			}
+		});
+		for (int i = 1; i <= 100; i++) {
+			save("home", tweet(i, "tweet number " + i, i * 1000L));
+		}
+		// the merges run on one thread; wait for them to catch up
+		for (int i = 0; i < 100 && segmentFiles() > 3; i++) {
+			Thread.sleep(50);
+		}
+		assertTrue("merged", segmentFiles() <= 3);
+		assertTrue(failures.isEmpty());
+		assertEquals(100, texts("home").size());
+	}
+
+	private static Status tweet(long id, String text, long time) {
+		return new Status(new User("someone"), text, id, new Date(time));
+	}
+
+	private void save(String source, Status... tweets) {
+		Map<String, Collection<Status>> bySource = new HashMap<String, Collection<Status>>();
+		bySource.put(source, Arrays.asList(tweets));
+		store.saveTweets(bySource);
+	}
+
+	/**
+	 * @return The text of the saved tweets, in the order visited
+	 */
+	private List<String> texts(String source) {
+		List<String> texts = new ArrayList<String>();
+		store.visitTweetText(source, collect(texts));
+		return texts;
+	}
+
+	private static TweetStore.TextVisitor collect(final List<String> texts) {
+		return new TweetStore.TextVisitor() {
+			public void visit(char[] text, int length) {
+				texts.add(new String(text, 0, length));
+			}
+		};
+	}
+
+	private int segmentFiles() {
+		return dir.listFiles().length;
+	}
+
+	/**
+	 * @return The segment file with the highest number
+	 */
+	private File newestSegment() {
+		File newest = null;
+		long newestNumber = -1;
+		for (File file : dir.listFiles()) {
+			String name = file.getName();
+			long number = Long.parseLong(name.substring(name.indexOf('-') + 1,
+					name.indexOf('.')));
+			if (number > newestNumber) {
+				newest = file;
+				newestNumber = number;
+			}
+		}
+		return newest;
+	}
+}
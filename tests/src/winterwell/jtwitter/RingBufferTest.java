@@ -0,0 +1,172 @@
+package winterwell.jtwitter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link RingBuffer}: overwriting, wraparound, and each item being
+ * drained (and released) exactly once when several threads drain at once.
+ */
+public class RingBufferTest extends TestCase {
+
+	/**
+	 * Counts how many times each item is released.
+	 */
+	static final class CountingBuffer extends RingBuffer<Integer> {
+		final int[] released;
+
+		CountingBuffer(int capacity, int items) {
+			super(capacity);
+			released = new int[items];
+		}
+
+		@Override
+		void onRelease(Integer item) {
+			released[item]++;
+		}
+	}
+
+	public void testWraparound() {
+		CountingBuffer rb = new CountingBuffer(4, 10);
+		int dropped = 0;
+		for (int i = 0; i < 10; i++) {
+			dropped += rb.offer(i);
+		}
+		// the oldest were overwritten, and released first
+		assertEquals(6, dropped);
+		assertEquals(Arrays.asList(6, 7, 8, 9), rb.toList());
+		for (int i = 0; i < 6; i++) {
+			assertEquals(1, rb.released[i]);
+		}
+		assertEquals(0, rb.released[6]);
+
+		// drain across the end of the slot array
+		List<Integer> out = new ArrayList<Integer>();
+		assertEquals(3, rb.drainTo(out, 3));
+		assertEquals(Arrays.asList(6, 7, 8), out);
+		assertEquals(1, rb.size());
+		assertEquals(3, rb.remaining());
+		assertEquals(1, rb.released[8]);
+		assertEquals(0, rb.released[9]);
+		out.clear();
+		assertEquals(1, rb.drainTo(out, 10));
+		assertEquals(Arrays.asList(9), out);
+		assertEquals(0, rb.drainTo(out, 10));
+		assertTrue(rb.isEmpty());
+		for (int i = 0; i < 10; i++) {
+			assertEquals(1, rb.released[i]);
+		}
+	}
+
+	public void testTryOfferAndRemove() {
+		CountingBuffer rb = new CountingBuffer(3, 5);
+		assertTrue(rb.tryOffer(0));
+		assertTrue(rb.tryOffer(1));
+		assertTrue(rb.tryOffer(2));
+		// full: tryOffer refuses, rather than overwrite
+		assertFalse(rb.tryOffer(3));
+		assertEquals(Arrays.asList(0, 1, 2), rb.toList());
+
+		assertTrue(rb.remove(1));
+		assertFalse(rb.remove(1));
+		assertEquals(Arrays.asList(0, 2), rb.toList());
+		// a removed item is skipped by drains, and not released
+		List<Integer> out = new ArrayList<Integer>();
+		assertEquals(2, rb.drainTo(out, 10));
+		assertEquals(Arrays.asList(0, 2), out);
+		assertEquals(0, rb.released[1]);
+
+		// a run of only removed items is drained past
+		rb.offer(3);
+		rb.offer(4);
+		rb.remove(3);
+		out.clear();
+		assertEquals(1, rb.drainTo(out, 1));
+		assertEquals(Arrays.asList(4), out);
+	}
+
+	public void testDropOldestAndClear() {
+		CountingBuffer rb = new CountingBuffer(4, 6);
+		for (int i = 0; i < 6; i++) {
+			rb.offer(i);
+		}
+		assertTrue(rb.dropOldest());
+		assertEquals(Arrays.asList(3, 4, 5), rb.toList());
+		rb.clear();
+		assertTrue(rb.isEmpty());
+		assertFalse(rb.dropOldest());
+		for (int i = 0; i < 6; i++) {
+			assertEquals(1, rb.released[i]);
+		}
+	}
+
+	/**
+	 * One producer (overwriting when full) and several consumers. Every item
+	 * must be drained at most once, in order, and released exactly once.
+	 */
+	public void testConcurrentDrainOnce() throws InterruptedException {
+		final int items = 200000;
+		final CountingBuffer rb = new CountingBuffer(64, items);
+		final int[] drainedBy = new int[items];
+		final boolean[] done = new boolean[1];
+		final List<String> problems = Collections
+				.synchronizedList(new ArrayList<String>());
+		Thread[] consumers = new Thread[4];
+		for (int c = 0; c < consumers.length; c++) {
+			final int id = c + 1;
+			consumers[c] = new Thread() {
+				@Override
+				public void run() {
+					List<Integer> out = new ArrayList<Integer>();
+					int last = -1;
+					while (true) {
+						boolean finished;
+						synchronized (done) {
+							finished = done[0];
+						}
+						out.clear();
+						int n = rb.drainTo(out, 7);
+						for (int x : out) {
+							synchronized (drainedBy) {
+								if (drainedBy[x] != 0) {
+									problems.add(x + " drained twice");
+								}
+								drainedBy[x] = id;
+							}
+							if (x <= last) {
+								problems.add(x + " after " + last);
+							}
+							last = x;
+						}
+						if (n == 0 && finished)
+							return;
+					}
+				}
+			};
+			consumers[c].start();
+		}
+		for (int i = 0; i < items; i++) {
+			rb.offer(i);
+		}
+		synchronized (done) {
+			done[0] = true;
+		}
+		for (Thread t : consumers) {
+			t.join();
+		}
+		assertTrue(problems.toString(), problems.isEmpty());
+		assertTrue(rb.isEmpty());
+		int drained = 0;
+		for (int i = 0; i < items; i++) {
+			assertEquals("released " + i, 1, rb.released[i]);
+			if (drainedBy[i] != 0) {
+				drained++;
+			}
+		}
+		assertTrue("drained some", drained > 0);
+	}
+}
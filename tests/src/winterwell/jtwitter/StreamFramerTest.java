@@ -0,0 +1,114 @@
+package winterwell.jtwitter;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link StreamFramer}: messages which arrive split across reads,
+ * keep-alives, big messages and bad length prefixes.
+ */
+public class StreamFramerTest extends TestCase {
+
+	/**
+	 * Hands out its bytes a few at a time, as a slow connection does.
+	 */
+	static final class Trickle extends InputStream {
+		private final byte[] bytes;
+		private int pos;
+		private final Random sizes;
+
+		/**
+		 * @param seed
+		 *            for the read sizes. -1 for one byte per read.
+		 */
+		Trickle(byte[] bytes, long seed) {
+			this.bytes = bytes;
+			sizes = seed == -1 ? null : new Random(seed);
+		}
+
+		@Override
+		public int read() throws IOException {
+			return pos < bytes.length ? bytes[pos++] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (pos == bytes.length)
+				return -1;
+			int n = sizes == null ? 1 : 1 + sizes.nextInt(7);
+			n = Math.min(n, Math.min(len, bytes.length - pos));
+			System.arraycopy(bytes, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+	}
+
+	/**
+	 * @return the message with its length prefix, as Twitter send it
+	 */
+	private static String frame(String json) {
+		return json.getBytes(StreamFramer.UTF8).length + "\r\n" + json;
+	}
+
+	private static StreamFramer framer(String stream, long seed) {
+		return new StreamFramer(new Trickle(stream.getBytes(StreamFramer.UTF8),
+				seed), null);
+	}
+
+	public void testSplitAcrossReads() throws IOException {
+		String[] msgs = { "{\"text\":\"hello\"}", "{\"text\":\"café ☃\"}",
+				"{}", "{\"id\":12345678901234}" };
+		// keep-alives between (and before) the messages
+		String stream = "\r\n" + frame(msgs[0]) + "\r\n\r\n" + frame(msgs[1])
+				+ frame(msgs[2]) + "\r\n" + frame(msgs[3]);
+		for (long seed = -1; seed < 20; seed++) {
+			StreamFramer framer = framer(stream, seed);
+			for (String msg : msgs) {
+				assertEquals("seed " + seed, msg,
+						StreamFramer.toString(framer.nextFrame()));
+			}
+			try {
+				framer.nextFrame();
+				fail("expected the end of the stream");
+			} catch (IOException e) {
+				// good
+			}
+		}
+	}
+
+	public void testBiggerThanTheBuffer() throws IOException {
+		char[] text = new char[200 * 1024];
+		Arrays.fill(text, 'x');
+		String big = "{\"text\":\"" + new String(text) + "\"}";
+		StreamFramer framer = new StreamFramer(new ByteArrayInputStream(
+				(frame("{}") + frame(big) + frame("{\"a\":1}"))
+						.getBytes(StreamFramer.UTF8)), null);
+		assertEquals("{}", StreamFramer.toString(framer.nextFrame()));
+		assertEquals(big, StreamFramer.toString(framer.nextFrame()));
+		assertEquals("{\"a\":1}", StreamFramer.toString(framer.nextFrame()));
+	}
+
+	public void testBadLengths() {
+		String[] bad = {
+				// over MAX_FRAME
+				(StreamFramer.MAX_FRAME + 1) + "\r\n{}",
+				// too many digits
+				"1234567890\r\n{}",
+				// not a number
+				"12a\r\n{}", "{}\r\n" };
+		for (String stream : bad) {
+			try {
+				framer(stream, 1).nextFrame();
+				fail(stream);
+			} catch (IOException e) {
+				assertTrue(e.getMessage(),
+						e.getMessage().startsWith("Bad length prefix"));
+			}
+		}
+	}
+}
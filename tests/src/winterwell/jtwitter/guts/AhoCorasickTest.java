@@ -0,0 +1,84 @@
+package winterwell.jtwitter.guts;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link AhoCorasick}: overlapping patterns, which need the failure
+ * links to be right.
+ */
+public class AhoCorasickTest extends TestCase {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static BitSet find(AhoCorasick ac, String text) {
+		BitSet found = new BitSet();
+		ac.match(ByteBuffer.wrap(text.getBytes(UTF8)), found);
+		return found;
+	}
+
+	private static BitSet bits(int... indexes) {
+		BitSet bs = new BitSet();
+		for (int i : indexes) {
+			bs.set(i);
+		}
+		return bs;
+	}
+
+	public void testOverlapping() {
+		// the textbook example
+		AhoCorasick ac = new AhoCorasick(Arrays.asList("he", "she", "his",
+				"hers"));
+		assertEquals(4, ac.size());
+		BitSet found = new BitSet();
+		// she & he end at the same place, hers starts inside she
+		assertEquals(3, ac.match(ByteBuffer.wrap("ushers".getBytes(UTF8)),
+				found));
+		assertEquals(bits(0, 1, 3), found);
+		assertEquals(bits(0, 2), find(ac, "xhhisxhe"));
+		assertEquals(new BitSet(), find(ac, "hxexshxi"));
+	}
+
+	public void testSuffixesAndPrefixes() {
+		// each is a suffix of the one before, so found via failure links
+		AhoCorasick ac = new AhoCorasick(Arrays.asList("abcd", "bcd", "cd",
+				"d", "abx"));
+		assertEquals(bits(0, 1, 2, 3), find(ac, "abcd"));
+		// fail part-way along abcd, into bcd
+		assertEquals(bits(1, 2, 3), find(ac, "abbcd"));
+		// abx and abcd share a prefix
+		assertEquals(bits(4), find(ac, "zabxab"));
+		// repeats are counted, but set once
+		BitSet found = new BitSet();
+		assertEquals(4, ac.match(ByteBuffer.wrap("dddd".getBytes(UTF8)),
+				found));
+		assertEquals(bits(3), found);
+	}
+
+	public void testCaseAndUtf8() {
+		AhoCorasick ac = new AhoCorasick(Arrays.asList("Tweet", "café",
+				"#java"));
+		assertEquals(bits(0, 2), find(ac, "TWEETS about #JAVA"));
+		assertEquals(bits(1), find(ac, "un café"));
+		// not case-insensitive beyond ASCII
+		assertEquals(new BitSet(), find(ac, "CAFÉ"));
+	}
+
+	public void testPositionAndLimit() {
+		AhoCorasick ac = new AhoCorasick(Arrays.asList("one", "two"));
+		ByteBuffer bytes = ByteBuffer.wrap("one two three".getBytes(UTF8));
+		bytes.position(2);
+		bytes.limit(7);
+		BitSet found = new BitSet();
+		ac.match(bytes, found);
+		// "one" starts before position
+		assertEquals(bits(1), found);
+		// bytes is not modified
+		assertEquals(2, bytes.position());
+		assertEquals(7, bytes.limit());
+	}
+}
@@ -0,0 +1,122 @@
+package winterwell.jtwitter.guts;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link LongSet}, in particular that remove() (a backward-shift
+ * delete) leaves every other value findable.
+ */
+public class LongSetTest extends TestCase {
+
+	/**
+	 * The same mixing as LongSet.slot(), so we can pick values which collide.
+	 */
+	private static int home(long x, int mask) {
+		long h = x * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	/**
+	 * @return n values whose home slot (in a table of 16) is slot
+	 */
+	private static List<Long> collidingAt(int slot, int n, long from) {
+		List<Long> xs = new ArrayList<Long>();
+		for (long x = from; xs.size() < n; x++) {
+			if (x != 0 && home(x, 15) == slot) {
+				xs.add(x);
+			}
+		}
+		return xs;
+	}
+
+	public void testAddContainsZero() {
+		LongSet set = new LongSet();
+		assertTrue(set.isEmpty());
+		assertTrue(set.add(0));
+		assertFalse(set.add(0));
+		assertTrue(set.add(-7));
+		assertTrue(set.contains(0));
+		assertTrue(set.contains(-7));
+		assertFalse(set.contains(7));
+		assertEquals(2, set.size());
+		assertTrue(set.remove(0));
+		assertFalse(set.contains(0));
+		assertFalse(set.remove(0));
+		set.clear();
+		assertTrue(set.isEmpty());
+		assertFalse(set.contains(-7));
+	}
+
+	public void testRemoveAfterCollisions() {
+		// a table of 16 slots, which won't grow: 7 values at most
+		LongSet set = new LongSet(8);
+		// a probe run which wraps past the end of the table: three values at
+		// home 14, then two at home 15, then one at home 0
+		List<Long> at14 = collidingAt(14, 3, 1);
+		List<Long> at15 = collidingAt(15, 2, 1);
+		List<Long> at0 = collidingAt(0, 1, 1);
+		List<Long> all = new ArrayList<Long>();
+		all.addAll(at14);
+		all.addAll(at15);
+		all.addAll(at0);
+		for (long x : all) {
+			assertTrue(set.add(x));
+		}
+		// remove from the start, the middle and the end of the run
+		for (long gone : new long[] { at14.get(0), at15.get(0), at0.get(0) }) {
+			assertTrue(set.remove(gone));
+			assertFalse(set.remove(gone));
+			all.remove(gone);
+			assertFalse(set.contains(gone));
+			for (long x : all) {
+				assertTrue("lost " + x + " after removing " + gone,
+						set.contains(x));
+			}
+		}
+		assertEquals(all.size(), set.size());
+		// and the freed slots can be used again
+		for (long x : collidingAt(14, 2, at14.get(2) + 1)) {
+			assertTrue(set.add(x));
+			assertTrue(set.contains(x));
+		}
+		for (long x : all) {
+			assertTrue(set.contains(x));
+		}
+	}
+
+	/**
+	 * Random adds & removes over a small range (so lots of collisions and
+	 * growth), checked against a HashSet.
+	 */
+	public void testAgainstHashSet() {
+		Random r = new Random(42);
+		LongSet set = new LongSet(4);
+		Set<Long> expected = new HashSet<Long>();
+		for (int i = 0; i < 20000; i++) {
+			long x = r.nextInt(300) - 20;
+			if (r.nextInt(3) == 0) {
+				assertEquals(expected.remove(x), set.remove(x));
+			} else {
+				assertEquals(expected.add(x), set.add(x));
+			}
+			assertEquals(expected.size(), set.size());
+			if (i % 500 == 0) {
+				for (long y = -20; y < 280; y++) {
+					assertEquals(expected.contains(y), set.contains(y));
+				}
+			}
+		}
+		LongSet copy = new LongSet();
+		copy.addAll(set);
+		assertEquals(set.size(), copy.size());
+		for (long y : expected) {
+			assertTrue(copy.contains(y));
+		}
+	}
+}